@@ -31,7 +31,7 @@ dependencies {
     implementation     ("com.h2database:h2:2.1.214")
     runtimeOnly        ("org.glassfish.jaxb:jaxb-runtime:4.0.2")
     implementation     ("org.xerial:sqlite-jdbc:3.46.0.0")
-    implementation     ("org.java-websocket:Java-WebSocket:1.5.2")
+    implementation     ("org.java-websocket:Java-WebSocket:1.5.4")
     implementation     ("info.picocli:picocli:4.7.6")
     annotationProcessor("info.picocli:picocli-codegen:4.7.6")
     implementation     ("info.picocli:picocli:4.7.1")
@@ -50,11 +50,7 @@ public class ModularXeroConsole extends Thread {
                 try {
                     String input = reader.readLine("[MoX] >> ");
                     if ("exit".equalsIgnoreCase(input) || "quit".equalsIgnoreCase(input)) {
-                        dispatcher.getModules().forEach((name, it) -> {
-                            try {
-                                it.stop();
-                            } catch (Exception e) { }
-                        });
+                        // modules are drained and stopped by onExit, while the listeners can still answer
                         running = false;
                         ModularXeroConsole.GLOBAL_READER.printAbove("Quitting....");
                         serverThread.interrupt();
@@ -0,0 +1,18 @@
+package com.vicky.modularxero.common;
+
+import com.vicky.modularxero.common.values.MapValue;
+import com.vicky.modularxero.common.values.MessageValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A bound {@link MessageHandler} method that returns a {@link CompletableFuture}, so the dispatch thread is
+ * released as soon as the work is started. The response is sent, on the request's {@code id}, when the
+ * future completes.
+ */
+@FunctionalInterface
+public interface AsyncRequestHandler {
+    @Nullable CompletableFuture<Response<MapValue<MessageValue<?>>>> handle(@NotNull RequestEnvelope envelope) throws Exception;
+}
@@ -4,36 +4,90 @@ import com.vicky.modularxero.common.util.HibernateUtil;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
+import org.hibernate.query.CommonQueryContract;
 
 import java.io.Serializable;
 import java.util.List;
+import java.util.function.Supplier;
 
+/**
+ * Basic CRUD over one entity type. Every query and transaction started through this class is bounded by
+ * the {@link Deadline} of the request being handled, if it has one, so a request stuck behind SQLite
+ * locks gives its pooled connection back once the client has stopped waiting.
+ */
 public class GenericDao<T, ID extends Serializable> {
     private final Class<T> persistentClass;
-    private final SessionFactory sessionFactory;
+    private final Supplier<SessionFactory> sessionFactory;
 
     public GenericDao(Class<T> type, SessionFactory sf) {
+        this(type, () -> sf);
+    }
+
+    /**
+     * For DAOs that outlive their module's factory: {@code sf} is asked on every call, so a module that is
+     * stopped and started again (which closes the old factory and builds a new one) is picked up.
+     */
+    public GenericDao(Class<T> type, Supplier<SessionFactory> sf) {
         this.persistentClass = type;
         this.sessionFactory = sf;
     }
 
+    /**
+     * Opens a session, failing fast if the current request's deadline has already passed.
+     */
+    protected Session openSession() {
+        Deadline deadline = Deadline.current();
+        if (deadline != null) deadline.check();
+        SessionFactory factory = sessionFactory.get();
+        if (factory == null) throw new IllegalStateException(persistentClass.getSimpleName() + " has no session factory, is its module started?");
+        return factory.openSession();
+    }
+
+    /**
+     * Limits {@code query} to the time left on the current request's deadline (JDBC timeouts are in whole
+     * seconds, so this rounds up). Queries run outside a request are left alone.
+     */
+    protected static <Q extends CommonQueryContract> Q applyDeadline(Q query) {
+        Integer seconds = remainingSeconds();
+        if (seconds != null) query.setTimeout(seconds);
+        return query;
+    }
+
+    /**
+     * Begins a transaction bounded by the current request's deadline, see {@link #applyDeadline}.
+     */
+    protected static Transaction beginTransaction(Session session) {
+        Transaction tx = session.getTransaction();
+        Integer seconds = remainingSeconds();
+        if (seconds != null) tx.setTimeout(seconds);
+        tx.begin();
+        return tx;
+    }
+
+    private static Integer remainingSeconds() {
+        Deadline deadline = Deadline.current();
+        if (deadline == null) return null;
+        deadline.check();
+        return (int) Math.max(1, (deadline.remainingMillis() + 999) / 1000);
+    }
+
     public T findById(ID id) {
-        try (Session session = sessionFactory.openSession()) {
+        try (Session session = openSession()) {
             return session.get(persistentClass, id);
         }
     }
 
     @SuppressWarnings("unchecked")
     public List<T> findAll() {
-        try (Session session = sessionFactory.openSession()) {
-            return session.createQuery("from " + persistentClass.getName()).list();
+        try (Session session = openSession()) {
+            return applyDeadline(session.createQuery("from " + persistentClass.getName())).list();
         }
     }
 
     public void save(T entity) {
         Transaction tx = null;
-        try (Session session = sessionFactory.openSession()) {
-            tx = session.beginTransaction();
+        try (Session session = openSession()) {
+            tx = beginTransaction(session);
             session.saveOrUpdate(entity);
             tx.commit();
         } catch (Exception e) {
@@ -44,8 +98,8 @@ public class GenericDao<T, ID extends Serializable> {
 
     public void delete(T entity) {
         Transaction tx = null;
-        try (Session session = sessionFactory.openSession()) {
-            tx = session.beginTransaction();
+        try (Session session = openSession()) {
+            tx = beginTransaction(session);
             session.delete(entity);
             tx.commit();
         } catch (Exception e) {
@@ -0,0 +1,43 @@
+package com.vicky.modularxero.common;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a module method as the handler for one or more request types.
+ * <p>
+ * Type names are free-form, so a module can declare its own operations instead of squeezing
+ * them into {@link MessageType}. The method must take a single {@link RequestEnvelope} and return a
+ * {@link Response} (or null), or a {@code CompletableFuture} of one for work that shouldn't hold a dispatch
+ * thread. Handlers are bound once when the module is registered, nothing is looked up reflectively per request.
+ * </p>
+ * <pre>
+ *     &#64;MessageHandler("LOGIN")
+ *     public Response&lt;MapValue&lt;MessageValue&lt;?&gt;&gt;&gt; login(RequestEnvelope request) { ... }
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface MessageHandler {
+    /**
+     * The request {@code type} values this method handles.
+     */
+    String[] value();
+
+    /**
+     * For {@code CompletableFuture} handlers: answer with a {@code PENDING} response right away instead of
+     * only when the future is still running after {@code mox.async.pending_after_ms}.
+     */
+    boolean ackPending() default false;
+
+    /**
+     * The handler reads its payload through {@link RequestEnvelope#payloadParser()} rather than
+     * {@link RequestEnvelope#getPayload()}, so it may be given requests over {@code mox.request.tree_max_bytes}
+     * (up to the module's {@code max_request_bytes}). Other handlers get a FAILED response for those.
+     */
+    boolean streaming() default false;
+}
@@ -4,5 +4,7 @@ public enum MessageType {
     LOGIN,
     SIGNUP,
     REQUEST_DATA,
+    BATCH,
+    EVENT,
     NULL
 }
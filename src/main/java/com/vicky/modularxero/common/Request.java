@@ -9,6 +9,8 @@ public class Request<T> {
     public T payload;
     public String id;
     public String moduleAddress;
+    /** Optional: how long the client will wait for this request, in milliseconds. */
+    public Long timeoutMs;
     public Request() {}
     public Request(MessageType type, T payload) {
         this.type = type;
@@ -21,4 +23,7 @@ public class Request<T> {
     public void setModuleAddress(String moduleAddress) {
         this.moduleAddress = moduleAddress;
     }
+    public void setTimeoutMs(Long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,14 @@
+package com.vicky.modularxero.common;
+
+import com.vicky.modularxero.common.values.MapValue;
+import com.vicky.modularxero.common.values.MessageValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A bound {@link MessageHandler} method, as stored in the dispatcher's route table.
+ */
+@FunctionalInterface
+public interface RequestHandler {
+    @Nullable Response<MapValue<MessageValue<?>>> handle(@NotNull RequestEnvelope envelope) throws Exception;
+}
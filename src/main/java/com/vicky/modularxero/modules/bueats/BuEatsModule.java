@@ -4,7 +4,9 @@ import com.vicky.modularxero.AbstractModule;
 import com.vicky.modularxero.Module;
 import com.vicky.modularxero.ModuleMetrics;
 import com.vicky.modularxero.modules.bueats.models.*;
+import com.vicky.modularxero.common.MessageHandler;
 import com.vicky.modularxero.common.MessageType;
+import com.vicky.modularxero.common.RequestEnvelope;
 import com.vicky.modularxero.common.Response;
 import com.vicky.modularxero.common.values.ListValue;
 import com.vicky.modularxero.common.values.MapValue;
@@ -17,13 +19,14 @@ import com.fasterxml.jackson.databind.JsonNode;
 import org.hibernate.SessionFactory;
 import org.jetbrains.annotations.NotNull;
 
+import java.lang.invoke.MethodHandles;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 public class BuEatsModule extends AbstractModule {
     private final ModuleMetrics metrics = new ModuleMetrics();
-    public static SessionFactory buSF;
+    public static volatile SessionFactory buSF;
 
     private Response<MapValue<MessageValue<?>>> handleLogin(JsonNode payload) {
         boolean isCafeteria = payload.get("isCaf").get("value").asBoolean();
@@ -114,14 +117,14 @@ public class BuEatsModule extends AbstractModule {
 
     }
 
+    @MessageHandler("LOGIN")
+    public Response<MapValue<MessageValue<?>>> onLogin(@NotNull RequestEnvelope envelope) {
+        return handleLogin(envelope.getPayload().get("value"));
+    }
+
     @Override
-    public Response<MapValue<MessageValue<?>>> handleRequest(@NotNull JsonNode node) {
-        MessageType type = MessageType.valueOf(node.get("type").asText());
-        switch (type) {
-            case LOGIN:
-                return handleLogin(node.get("payload").get("value"));
-            default: return null;
-        }
+    public MethodHandles.Lookup handlerLookup() {
+        return MethodHandles.lookup();
     }
 
     @NotNull
@@ -16,23 +16,23 @@ import static com.vicky.modularxero.modules.bueats.BuEatsModule.buSF;
 public class CafeteriaDao extends GenericDao<Cafeteria, String> implements UserAccessible<String, Cafeteria> {
 
     public CafeteriaDao() {
-        super(Cafeteria.class, buSF);
+        super(Cafeteria.class, () -> buSF);
     }
 
     public Cafeteria findByUsername(String cafNumber) {
-        try (var session = buSF.openSession()) {
-            return session.createQuery(
-                            "from Cafeteria c where c.cafNumber = :sname", Cafeteria.class)
+        try (var session = openSession()) {
+            return applyDeadline(session.createQuery(
+                            "from Cafeteria c where c.cafNumber = :sname", Cafeteria.class))
                     .setParameter("sname", cafNumber)
                     .uniqueResult();
         }
     }
 
     public List<StudentOrder> getCafeteriaOrders(String cafeteriaNumber) {
-        try (var session = buSF.openSession()) {
-            return session.createQuery(
+        try (var session = openSession()) {
+            return applyDeadline(session.createQuery(
                     "from StudentOrder o where o.linkedCafeteria.cafNumber = :cafNo", StudentOrder.class
-                    )
+                    ))
                     .setParameter("cafNo", cafeteriaNumber)
                     .getResultList();
         }
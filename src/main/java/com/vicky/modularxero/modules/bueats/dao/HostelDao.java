@@ -7,6 +7,6 @@ import static com.vicky.modularxero.modules.bueats.BuEatsModule.buSF;
 
 public class HostelDao extends GenericDao<Hostel, String> {
     public HostelDao() {
-        super(Hostel.class, buSF);
+        super(Hostel.class, () -> buSF);
     }
 }
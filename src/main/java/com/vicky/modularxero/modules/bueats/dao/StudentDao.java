@@ -15,13 +15,13 @@ import static com.vicky.modularxero.modules.bueats.BuEatsModule.buSF;
 public class StudentDao extends GenericDao<Student, String> implements UserAccessible<String, Student> {
 
     public StudentDao() {
-        super(Student.class, buSF);
+        super(Student.class, () -> buSF);
     }
 
     public Student findByUsername(String matricNumber) {
-        try (var session = buSF.openSession()) {
-            return session.createQuery(
-                            "from Student s where s.matricNumber = :sname", Student.class)
+        try (var session = openSession()) {
+            return applyDeadline(session.createQuery(
+                            "from Student s where s.matricNumber = :sname", Student.class))
                     .setParameter("sname", matricNumber)
                     .uniqueResult();
         }
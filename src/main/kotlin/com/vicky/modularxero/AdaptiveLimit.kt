@@ -0,0 +1,60 @@
+package com.vicky.modularxero
+
+import kotlin.math.sqrt
+
+/**
+ * Concurrency limit that follows observed handler latency, after the gradient limit from Netflix's
+ * concurrency-limits.
+ *
+ * A long-running average of latency stands for how fast the module is when it isn't contended. When a
+ * request takes longer than that (times [tolerance]) the limit shrinks in proportion; while latency stays
+ * in line it grows by about √limit, and a request that ran past its deadline cuts it by [backoff] at once.
+ * The limit stays within [minLimit]..[maxLimit].
+ *
+ * Not thread-safe, [ModuleBulkhead] only calls it under its lock.
+ */
+class AdaptiveLimit(
+    val minLimit: Int,
+    val maxLimit: Int,
+    initialLimit: Int = 20,
+    private val tolerance: Double = 1.5,
+    private val smoothing: Double = 0.2,
+    private val backoff: Double = 0.9,
+    longWindow: Int = 600
+) {
+    private var estimate = initialLimit.coerceIn(minLimit, maxLimit).toDouble()
+    private val longFactor = 2.0 / (longWindow + 1)
+    private var longRtt = 0.0
+    private var samples = 0
+
+    val limit: Int get() = estimate.toInt()
+
+    /**
+     * Feed one finished request, [inFlight] being how many were running when it finished. Returns the new limit.
+     */
+    fun onSample(rttNanos: Long, inFlight: Int, dropped: Boolean): Int {
+        if (dropped) {
+            estimate = (estimate * backoff).coerceAtLeast(minLimit.toDouble())
+            return limit
+        }
+
+        val shortRtt = rttNanos.coerceAtLeast(1).toDouble()
+        // plain average while warming up, then exponential
+        samples++
+        longRtt = if (samples <= WARMUP) longRtt + (shortRtt - longRtt) / samples else longRtt + (shortRtt - longRtt) * longFactor
+        // let the average come back down after a burst of slow requests
+        if (longRtt / shortRtt > 2) longRtt *= 0.95
+
+        // the module isn't using the limit it has, latency says nothing about a higher one
+        if (inFlight < estimate / 2) return limit
+
+        val gradient = (tolerance * longRtt / shortRtt).coerceIn(0.5, 1.0)
+        val target = estimate * gradient + sqrt(estimate)
+        estimate = (estimate * (1 - smoothing) + target * smoothing).coerceIn(minLimit.toDouble(), maxLimit.toDouble())
+        return limit
+    }
+
+    private companion object {
+        const val WARMUP = 10
+    }
+}
@@ -0,0 +1,79 @@
+package com.vicky.modularxero
+
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Bounded pool of equally sized heap buffers that responses are serialized into.
+ * Buffers are heap-backed on purpose, the deflate extension compresses straight from `array()`.
+ */
+class ByteBufferPool(val bufferSize: Int, private val maxPooled: Int) {
+    private val free = ConcurrentLinkedQueue<ByteBuffer>()
+    private val pooled = AtomicInteger()
+
+    fun acquire(): ByteBuffer {
+        val buffer = free.poll() ?: return ByteBuffer.allocate(bufferSize)
+        pooled.decrementAndGet()
+        return buffer.clear()
+    }
+
+    /**
+     * Hand [buffer] back for reuse. Buffers of another size (grown past [bufferSize]) and anything over
+     * the pool's bound are simply left to the GC.
+     */
+    fun release(buffer: ByteBuffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect) return
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet()
+            return
+        }
+        free.offer(buffer)
+    }
+
+    /**
+     * An output stream writing into a buffer from this pool, call [PooledOutputStream.release] when done.
+     */
+    fun openStream(): PooledOutputStream = PooledOutputStream(this)
+}
+
+/**
+ * [OutputStream] over a pooled [ByteBuffer] that doubles the buffer when it runs out of room.
+ * Not thread-safe, one stream per message.
+ */
+class PooledOutputStream internal constructor(private val pool: ByteBufferPool) : OutputStream() {
+    private var buffer: ByteBuffer = pool.acquire()
+
+    /** Bytes written so far. */
+    val size: Int get() = buffer.position()
+
+    override fun write(b: Int) {
+        ensure(1)
+        buffer.put(b.toByte())
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        ensure(len)
+        buffer.put(b, off, len)
+    }
+
+    /**
+     * The written bytes as a view from the start of the buffer, valid until [release].
+     */
+    fun frame(): ByteBuffer = buffer.duplicate().flip()
+
+    fun release() {
+        pool.release(buffer)
+    }
+
+    private fun ensure(extra: Int) {
+        if (buffer.remaining() >= extra) return
+        var capacity = buffer.capacity() * 2
+        while (capacity - buffer.position() < extra) capacity *= 2
+        val grown = ByteBuffer.allocate(capacity)
+        grown.put(buffer.flip())
+        pool.release(buffer)
+        buffer = grown
+    }
+}
@@ -0,0 +1,205 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.RequestEnvelope
+import com.vicky.modularxero.common.Response
+import com.vicky.modularxero.common.values.MapValue
+import com.vicky.modularxero.common.values.MessageValue
+import java.time.Instant
+import java.util.concurrent.TimeUnit
+
+/**
+ * Stops sending requests to a module that keeps failing or hanging, e.g. because its database is wedged.
+ *
+ * The outcomes of the last [window] requests are kept. Once at least [minCalls] are in and the share that
+ * threw (or ran out of time) reaches [failureRate], or the share slower than [slowCallNanos] reaches
+ * [slowRate], the breaker opens: requests are answered with a FAILED response straight away for
+ * [openNanos]. After that up to [probes] trial requests are let through (half-open); if they all succeed it
+ * closes again, if any fails or is slow it opens for another round.
+ *
+ * Responses a handler returns with a FAILED status are the module answering, not failing, and count as
+ * successes.
+ */
+class CircuitBreaker(
+    val moduleName: String,
+    window: Int,
+    private val minCalls: Int,
+    private val failureRate: Double,
+    private val slowCallNanos: Long,
+    private val slowRate: Double,
+    private val openNanos: Long,
+    private val probes: Int,
+    // called outside the lock on every state change
+    private val onTransition: (Transition) -> Unit = {}
+) {
+    enum class State { CLOSED, OPEN, HALF_OPEN }
+
+    data class Transition(val from: State, val to: State, val at: Instant, val reason: String) {
+        override fun toString(): String = "$at $from -> $to ($reason)"
+    }
+
+    // guarded by this
+    private val outcomes = ByteArray(window.coerceAtLeast(1))
+    private var next = 0
+    private var calls = 0
+    private var failures = 0
+    private var slow = 0
+    private var openedAt = 0L
+    private var probesStarted = 0
+    private var probesPassed = 0
+    // bumped on every transition, so results of requests admitted in an earlier state are ignored
+    private var generation = 0L
+    private val history = ArrayDeque<Transition>()
+    // built once per trip and shared by every request refused until the next one
+    private var rejection: MapValue<MessageValue<*>>? = null
+
+    @Volatile var state: State = State.CLOSED
+        private set
+    var trips: Long = 0
+        private set
+    var shortCircuited: Long = 0
+        private set
+
+    /**
+     * Ask to run a request. Returns a permit to pass to [onResult] or [release], or -1 if the breaker is
+     * open and the request should be refused with [rejected].
+     */
+    fun tryAcquire(): Long {
+        var transition: Transition? = null
+        val permit = synchronized(this) {
+            if (state == State.OPEN) {
+                if (System.nanoTime() - openedAt < openNanos) {
+                    shortCircuited++
+                    return -1
+                }
+                transition = moveTo(State.HALF_OPEN, "open for ${TimeUnit.NANOSECONDS.toMillis(openNanos)}ms, probing")
+            }
+            if (state == State.HALF_OPEN) {
+                if (probesStarted >= probes) {
+                    shortCircuited++
+                    -1L
+                } else {
+                    probesStarted++
+                    generation
+                }
+            } else {
+                generation
+            }
+        }
+        transition?.let(onTransition)
+        return permit
+    }
+
+    /** Give back a permit whose request never reached the module, e.g. refused by the bulkhead. */
+    fun release(permit: Long) {
+        synchronized(this) {
+            if (permit == generation && state == State.HALF_OPEN) probesStarted--
+        }
+    }
+
+    /** Record how a request that got [permit] went. */
+    fun onResult(permit: Long, failed: Boolean, latencyNanos: Long) {
+        val isSlow = slowCallNanos > 0 && latencyNanos >= slowCallNanos
+        val transition = synchronized(this) {
+            if (permit != generation) return
+            when (state) {
+                State.HALF_OPEN -> when {
+                    failed -> moveTo(State.OPEN, "probe failed")
+                    isSlow -> moveTo(State.OPEN, "probe took ${TimeUnit.NANOSECONDS.toMillis(latencyNanos)}ms")
+                    ++probesPassed >= probes -> moveTo(State.CLOSED, "$probes probes succeeded")
+                    else -> null
+                }
+                State.CLOSED -> record(if (failed) FAILED else if (isSlow) SLOW else OK)
+                State.OPEN -> null
+            }
+        }
+        transition?.let(onTransition)
+    }
+
+    /** FAILED response for a request refused while open. */
+    fun rejected(envelope: RequestEnvelope): Response<*> {
+        val payload = synchronized(this) {
+            rejection ?: Response.error("Module $moduleName is unavailable (circuit open), retry later").payload
+                .also { rejection = it }
+        }
+        val response = Response<MapValue<MessageValue<*>>>(null, payload, Response.ResponseStatus.FAILED)
+        response.id = envelope.responseId()
+        return response
+    }
+
+    /** Close the breaker and forget past outcomes, e.g. when the module is restarted. */
+    fun reset() {
+        val transition = synchronized(this) {
+            clearWindow()
+            if (state == State.CLOSED) null else moveTo(State.CLOSED, "reset")
+        }
+        transition?.let(onTransition)
+    }
+
+    /** Most recent state changes, oldest first. */
+    fun transitions(): List<Transition> = synchronized(this) { history.toList() }
+
+    override fun toString(): String = synchronized(this) {
+        val window = if (calls == 0) "no calls" else "failed ${failures * 100 / calls}%, slow ${slow * 100 / calls}% of $calls"
+        "$state | $window | Trips: $trips | Short-circuited: $shortCircuited"
+    }
+
+    // called under the lock
+    private fun record(outcome: Byte): Transition? {
+        if (calls == outcomes.size) {
+            when (outcomes[next]) {
+                FAILED -> failures--
+                SLOW -> slow--
+            }
+        } else {
+            calls++
+        }
+        outcomes[next] = outcome
+        next = (next + 1) % outcomes.size
+        when (outcome) {
+            FAILED -> failures++
+            SLOW -> slow++
+        }
+        if (calls < minCalls) return null
+        return when {
+            failureRate > 0 && failures >= failureRate * calls -> moveTo(State.OPEN, "${failures * 100 / calls}% of the last $calls requests failed")
+            slowRate > 0 && slow >= slowRate * calls ->
+                moveTo(State.OPEN, "${slow * 100 / calls}% of the last $calls requests took over ${TimeUnit.NANOSECONDS.toMillis(slowCallNanos)}ms")
+            else -> null
+        }
+    }
+
+    // called under the lock
+    private fun moveTo(to: State, reason: String): Transition {
+        val transition = Transition(state, to, Instant.now(), reason)
+        state = to
+        generation++
+        probesStarted = 0
+        probesPassed = 0
+        when (to) {
+            State.OPEN -> {
+                openedAt = System.nanoTime()
+                trips++
+                rejection = null
+            }
+            State.CLOSED -> clearWindow()
+            State.HALF_OPEN -> {}
+        }
+        history.addLast(transition)
+        if (history.size > HISTORY) history.removeFirst()
+        return transition
+    }
+
+    private fun clearWindow() {
+        calls = 0
+        failures = 0
+        slow = 0
+        next = 0
+    }
+
+    private companion object {
+        const val OK: Byte = 0
+        const val FAILED: Byte = 1
+        const val SLOW: Byte = 2
+        const val HISTORY = 10
+    }
+}
@@ -0,0 +1,111 @@
+package com.vicky.modularxero
+
+import org.java_websocket.extensions.IExtension
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension
+import org.java_websocket.framing.DataFrame
+import org.java_websocket.framing.Framedata
+import java.lang.management.ManagementFactory
+import java.lang.management.ThreadMXBean
+import java.nio.ByteBuffer
+import java.util.zip.Deflater
+
+/**
+ * Running totals for permessage-deflate on one listener, shared by every connection's extension copy.
+ */
+class CompressionMetrics {
+    var framesCompressed: Long = 0
+        private set
+    /** Frames that went out uncompressed because they were under the threshold. */
+    var framesSkipped: Long = 0
+        private set
+    var bytesIn: Long = 0
+        private set
+    var bytesOut: Long = 0
+        private set
+    var cpuNanos: Long = 0
+        private set
+
+    /** Compressed / original size, 1.0 until something has been compressed. */
+    val ratio: Double
+        @Synchronized get() = if (bytesIn == 0L) 1.0 else bytesOut.toDouble() / bytesIn
+
+    @Synchronized
+    fun addCompressed(original: Int, compressed: Int, nanos: Long) {
+        framesCompressed++
+        bytesIn += original
+        bytesOut += compressed
+        cpuNanos += nanos
+    }
+
+    @Synchronized
+    fun addSkipped() {
+        framesSkipped++
+    }
+
+    override fun toString(): String =
+        "Compressed: $framesCompressed | Skipped: $framesSkipped | Ratio: ${"%.2f".format(ratio)} | " +
+            "Saved: ${(bytesIn - bytesOut) / 1024} KB | CPU: ${cpuNanos / 1_000_000} ms"
+}
+
+/**
+ * [PerMessageDeflateExtension] that reports to a [CompressionMetrics].
+ *
+ * Frames smaller than [threshold] are sent as-is, compressing them tends to cost more CPU than the bytes
+ * it saves. Draft_6455 copies the extension for each connection through [copyInstance], so every copy
+ * keeps the same level, threshold and metrics.
+ */
+class MeteredDeflateExtension(
+    private val level: Int,
+    threshold: Int,
+    private val metrics: CompressionMetrics
+) : PerMessageDeflateExtension() {
+
+    init {
+        setThreshold(threshold)
+        // 1.5.x has no level parameter, the deflater it builds uses the default level
+        setDeflater(Deflater(level, true))
+    }
+
+    override fun encodeFrame(inputFrame: Framedata) {
+        if (inputFrame !is DataFrame) {
+            super.encodeFrame(inputFrame)
+            return
+        }
+        val original = inputFrame.payloadData.remaining()
+        if (original < threshold) {
+            metrics.addSkipped()
+            return
+        }
+        exactPayload(inputFrame)
+        val start = cpuTime()
+        super.encodeFrame(inputFrame)
+        metrics.addCompressed(original, inputFrame.payloadData.remaining(), cpuTime() - start)
+    }
+
+    override fun copyInstance(): IExtension =
+        MeteredDeflateExtension(level, threshold, metrics).also {
+            it.isClientNoContextTakeover = isClientNoContextTakeover
+            it.isServerNoContextTakeover = isServerNoContextTakeover
+        }
+
+    // the base class deflates payloadData.array() as a whole, so pooled or sliced buffers need an exact copy
+    private fun exactPayload(frame: DataFrame) {
+        val payload = frame.payloadData
+        if (payload.hasArray() && payload.arrayOffset() == 0 && payload.position() == 0 && payload.limit() == payload.array().size) {
+            return
+        }
+        val exact = ByteArray(payload.remaining())
+        payload.duplicate().get(exact)
+        frame.setPayload(ByteBuffer.wrap(exact))
+    }
+
+    private companion object {
+        val THREADS: ThreadMXBean = ManagementFactory.getThreadMXBean()
+
+        // virtual threads report -1 for CPU time, fall back to wall time for those
+        fun cpuTime(): Long {
+            val cpu = if (THREADS.isCurrentThreadCpuTimeSupported) THREADS.currentThreadCpuTime else -1L
+            return if (cpu >= 0) cpu else System.nanoTime()
+        }
+    }
+}
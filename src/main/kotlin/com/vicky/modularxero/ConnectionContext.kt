@@ -0,0 +1,121 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.BinaryMessageCodec
+import org.java_websocket.WebSocket
+import org.java_websocket.handshake.ClientHandshake
+import java.net.URLDecoder
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.Base64
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * How responses are encoded for a connection, picked once during the handshake.
+ */
+enum class WireEncoding {
+    /** Jackson JSON in text frames, the default. */
+    JSON,
+    /** [BinaryMessageCodec] frames, negotiated via its subprotocol. */
+    BINARY;
+
+    companion object {
+        /**
+         * BINARY if the client offered [BinaryMessageCodec.PROTOCOL] in `Sec-WebSocket-Protocol`.
+         * The draft installed by [ModularXero] echoes the same protocol back in that case.
+         */
+        @JvmStatic
+        fun negotiate(handshake: ClientHandshake?): WireEncoding {
+            val offered = handshake?.getFieldValue("Sec-WebSocket-Protocol") ?: return JSON
+            return if (offered.split(',').any { it.trim() == BinaryMessageCodec.PROTOCOL }) BINARY else JSON
+        }
+    }
+}
+
+/**
+ * Per-connection state owned by the dispatcher and stored as the websocket's attachment.
+ */
+class ConnectionContext(
+    val lane: SerialLane,
+    val encoding: WireEncoding = WireEncoding.JSON,
+    /** Server-issued session, kept across reconnects if the client resumes it; scopes the idempotency cache. */
+    val session: String = issueSession(),
+    /** Node id if this is an inbound cluster link rather than a client. */
+    val peer: String? = null
+) {
+    /** Topics this connection is subscribed to, maintained by [TopicRegistry]. */
+    val topics: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    /** Outgoing queue for client connections opened by a listener, null for cluster links. */
+    var outbox: Outbox? = null
+        internal set
+
+    /** Requests refused on this connection for being too large. */
+    val oversizedRequests = AtomicInteger()
+
+    companion object {
+        /**
+         * The context attached to [conn], or null if the connection was never opened through the dispatcher.
+         */
+        @JvmStatic
+        fun of(conn: WebSocket): ConnectionContext? = conn.getAttachment<ConnectionContext>()
+
+        /** Handshake header the server issues a connection's session in, and clients resume one with. */
+        const val SESSION_HEADER = "X-Mox-Session"
+
+        private const val MAX_SESSION_LENGTH = 128
+        private const val SESSION_ID_BYTES = 16
+        private const val SESSION_MAC_BYTES = 16
+
+        private val RANDOM = SecureRandom()
+        // signs the sessions this process issues; they don't outlive it, and neither does the idempotency cache
+        private val SESSION_KEY = ByteArray(32).also { RANDOM.nextBytes(it) }
+        private val BASE64 = Base64.getUrlEncoder().withoutPadding()
+
+        /**
+         * A new session id: random, and signed so [sessionOf] can tell it came from this server.
+         */
+        @JvmStatic
+        fun issueSession(): String {
+            val id = ByteArray(SESSION_ID_BYTES).also { RANDOM.nextBytes(it) }
+            return BASE64.encodeToString(id) + "." + BASE64.encodeToString(sign(id))
+        }
+
+        /**
+         * Session id the client asked to resume, from a `session` query parameter on the handshake path or an
+         * [SESSION_HEADER] header. Null if it sent neither, or something this server didn't issue, since a
+         * session the client could pick would let it replay other clients' responses.
+         */
+        @JvmStatic
+        fun sessionOf(handshake: ClientHandshake?): String? {
+            handshake ?: return null
+            val query = handshake.resourceDescriptor?.substringAfter('?', "") ?: ""
+            val fromQuery = query.split('&')
+                .firstOrNull { it.startsWith("session=") }
+                ?.let { URLDecoder.decode(it.substringAfter('='), StandardCharsets.UTF_8) }
+            val session = fromQuery ?: handshake.getFieldValue(SESSION_HEADER)
+            return session?.trim()?.takeIf { it.length <= MAX_SESSION_LENGTH && isIssued(it) }
+        }
+
+        private fun isIssued(session: String): Boolean {
+            val parts = session.split('.')
+            if (parts.size != 2) return false
+            return try {
+                val decoder = Base64.getUrlDecoder()
+                val id = decoder.decode(parts[0])
+                id.size == SESSION_ID_BYTES && MessageDigest.isEqual(sign(id), decoder.decode(parts[1]))
+            } catch (_: IllegalArgumentException) {
+                false
+            }
+        }
+
+        private fun sign(id: ByteArray): ByteArray {
+            val mac = Mac.getInstance("HmacSHA256")
+            mac.init(SecretKeySpec(SESSION_KEY, "HmacSHA256"))
+            return mac.doFinal(id).copyOf(SESSION_MAC_BYTES)
+        }
+    }
+}
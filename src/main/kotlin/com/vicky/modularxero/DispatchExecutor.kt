@@ -0,0 +1,155 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.Logger.ContextLogger
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Where decoded frames are handled once they leave the websocket decoder thread.
+ */
+enum class DispatchMode {
+    /** One virtual thread per task, blocking module code (Hibernate, BCrypt) just parks. */
+    VIRTUAL,
+    /** A fixed pool of platform threads sized by [ServerConfig.dispatchThreads]. */
+    PLATFORM,
+    /** Run on the decoder thread itself, i.e. the old behaviour. Mostly useful for debugging. */
+    INLINE
+}
+
+/**
+ * Executor that module handlers run on. Work is never submitted to it directly by the server,
+ * frames go through a per-connection [SerialLane] so one client's requests keep their order
+ * while different clients are handled in parallel.
+ */
+class DispatchExecutor(val mode: DispatchMode, platformThreads: Int) : Executor {
+    private val logger = ContextLogger(ContextLogger.ContextType.SUB_SYSTEM, "Dispatch-Executor")
+    private val threads = platformThreads.coerceAtLeast(1)
+
+    private val delegate: ExecutorService? = when (mode) {
+        DispatchMode.VIRTUAL -> Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("mox-dispatch-v", 0).factory()
+        )
+        DispatchMode.PLATFORM -> {
+            val counter = AtomicInteger()
+            Executors.newFixedThreadPool(threads) { task ->
+                Thread(task, "mox-dispatch-${counter.incrementAndGet()}").apply { isDaemon = true }
+            }
+        }
+        DispatchMode.INLINE -> null
+    }
+
+    init {
+        logger.print("Dispatching in $mode mode" + if (mode == DispatchMode.PLATFORM) " ($threads threads)" else "")
+    }
+
+    override fun execute(command: Runnable) {
+        if (delegate == null) command.run() else delegate.execute(command)
+    }
+
+    /**
+     * Run [tasks] concurrently and wait for all of them, returning their results in order.
+     * The calling thread also runs every task no other thread has picked up yet, so a caller that is
+     * itself a dispatch thread never waits on work stuck behind it in a saturated pool.
+     */
+    fun <T> runAll(tasks: List<() -> T>): List<T> {
+        if (tasks.size <= 1 || delegate == null) return tasks.map { it() }
+        val forks = tasks.map { ForkedTask(it) }
+        for (i in 1 until forks.size) {
+            try {
+                delegate.execute(forks[i])
+            } catch (_: RejectedExecutionException) {
+                break // shutting down, the loop below runs the rest here
+            }
+        }
+        forks.forEach { it.run() }
+        return forks.map { it.result.join() }
+    }
+
+    /**
+     * Create a new ordered lane backed by this executor, one per connection.
+     */
+    fun newLane(): SerialLane = SerialLane(this)
+
+    /**
+     * Stop taking new work and wait up to [timeout] for running tasks to finish.
+     * Returns false if tasks were still running when the timeout elapsed.
+     */
+    fun shutdown(timeout: Duration): Boolean {
+        val executor = delegate ?: return true
+        executor.shutdown()
+        return try {
+            executor.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)
+        } catch (_: InterruptedException) {
+            Thread.currentThread().interrupt()
+            false
+        }
+    }
+}
+
+/**
+ * A task that runs at most once, on whichever thread claims it first.
+ */
+private class ForkedTask<T>(private val body: () -> T) : Runnable {
+    private val claimed = AtomicBoolean(false)
+    val result = CompletableFuture<T>()
+
+    override fun run() {
+        if (!claimed.compareAndSet(false, true)) return
+        try {
+            result.complete(body())
+        } catch (ex: Throwable) {
+            result.completeExceptionally(ex)
+        }
+    }
+}
+
+/**
+ * Runs submitted tasks one at a time, in submission order, on the backing executor.
+ * Only one drain task is scheduled at a time so a lane never holds more than one thread.
+ */
+class SerialLane internal constructor(private val executor: Executor) {
+    private val tasks = ConcurrentLinkedQueue<Runnable>()
+    private val scheduled = AtomicBoolean(false)
+
+    fun submit(task: Runnable) {
+        tasks.add(task)
+        schedule()
+    }
+
+    /**
+     * Number of tasks waiting on this lane (excluding the one currently running).
+     */
+    fun pending(): Int = tasks.size
+
+    private fun schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(::drain)
+            } catch (ex: Exception) {
+                scheduled.set(false)
+                throw ex
+            }
+        }
+    }
+
+    private fun drain() {
+        try {
+            while (true) {
+                val task = tasks.poll() ?: break
+                task.run()
+            }
+        } finally {
+            scheduled.set(false)
+            // a task may have been queued between the last poll and releasing the flag
+            if (tasks.isNotEmpty()) schedule()
+        }
+    }
+}
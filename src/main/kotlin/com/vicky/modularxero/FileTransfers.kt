@@ -0,0 +1,432 @@
+package com.vicky.modularxero
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.vicky.modularxero.common.BinaryMessageCodec
+import com.vicky.modularxero.common.Logger.ContextLogger
+import com.vicky.modularxero.common.RequestEnvelope
+import com.vicky.modularxero.common.Response
+import com.vicky.modularxero.common.values.IntegerValue
+import com.vicky.modularxero.common.values.MapValue
+import com.vicky.modularxero.common.values.MessageValue
+import com.vicky.modularxero.common.values.StringValue
+import com.vicky.modularxero.sandbox.ModuleSandbox
+import org.java_websocket.WebSocket
+import org.java_websocket.framing.BinaryFrame
+import org.java_websocket.framing.Framedata
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Chunked file uploads into and downloads out of module sandboxes, over the client's own websocket.
+ *
+ * A transfer starts with an `UPLOAD` or `DOWNLOAD` request without a `moduleAddress` (the module is named
+ * in the payload), answered with a PENDING response carrying the transfer id, the offset to continue from
+ * and the chunk size. File data then travels in [BinaryMessageCodec.KIND_CHUNK] frames and a final response
+ * on the same id reports how it ended, the way async handlers answer.
+ *
+ * Uploads are written to a part file with positional writes and moved into place once complete. An upload
+ * that names itself with an `upload` key (e.g. a hash of the content) gets `<path>.<upload>.part` and
+ * resumes from its length when the same `UPLOAD` is repeated after a disconnect; one without a key, or
+ * with `restart`, starts from scratch. Cancelling an upload deletes its part file. Downloads read one
+ * chunk at a time into a single buffer, paced to the client's [Outbox] backlog, and start at whatever
+ * `offset` the client asks for.
+ *
+ * Both directions are limited to a window of [windowChunks] chunks. For uploads the server acknowledges
+ * progress with a PENDING response holding the `offset` written so far, every half window, and the client
+ * may send up to a window past the last acknowledged offset; data beyond that is refused before it is
+ * queued (see [admit]), so a fast client on a busy lane can't park the file on the heap. At most
+ * [maxConcurrent] transfers run at once.
+ */
+class FileTransfers(
+    private val maxConcurrent: Int,
+    private val chunkBytes: Int,
+    private val windowChunks: Int,
+    private val maxBytes: Long,
+    // how long a download waits for a client that stopped reading
+    private val stallMs: Long,
+    private val runner: Executor,
+    private val modules: (String) -> AbstractModule?,
+    private val reply: (WebSocket, Response<*>) -> Unit,
+    private val send: (WebSocket, Framedata) -> Unit
+) {
+    private val logger = ContextLogger(ContextLogger.ContextType.SUB_SYSTEM, "Modular-X-Transfers")
+    private val transfers = ConcurrentHashMap<Long, Transfer>()
+    private val slots = Semaphore(maxConcurrent)
+    private val ids = AtomicLong()
+    private val windowBytes = chunkBytes.toLong() * windowChunks
+
+    private val uploadedBytes = AtomicLong()
+    private val downloadedBytes = AtomicLong()
+    private val completed = AtomicLong()
+    private val failed = AtomicLong()
+
+    private abstract inner class Transfer(
+        val id: Long,
+        val conn: WebSocket,
+        /** Id of the request that started it, the final response goes out on it. */
+        val requestId: String,
+        val channel: FileChannel
+    ) {
+        private val released = AtomicBoolean()
+
+        val finished: Boolean get() = released.get()
+
+        /** Close the file and give the slot back. False if that already happened. */
+        fun finish(): Boolean {
+            if (!released.compareAndSet(false, true)) return false
+            transfers.remove(id)
+            runCatching { channel.close() }
+            slots.release()
+            return true
+        }
+    }
+
+    private inner class Upload(
+        id: Long, conn: WebSocket, requestId: String, channel: FileChannel,
+        val module: AbstractModule,
+        val path: String,
+        val part: File,
+        val target: File,
+        val size: Long,
+        // only advanced on the connection's lane
+        @Volatile var received: Long
+    ) : Transfer(id, conn, requestId, channel) {
+        /** Chunk data admitted to the lane and not yet written. */
+        val queued = AtomicLong()
+        /** Offset last acknowledged to the client, lane only. */
+        var acked: Long = received
+    }
+
+    private inner class Download(
+        id: Long, conn: WebSocket, requestId: String, channel: FileChannel,
+        val size: Long,
+        val start: Long
+    ) : Transfer(id, conn, requestId, channel)
+
+    /** Transfers currently open. */
+    fun active(): Int = transfers.size
+
+    /**
+     * Handle an `UPLOAD`, `DOWNLOAD` or `TRANSFER_CANCEL` request, replying on [conn].
+     */
+    fun handle(conn: WebSocket, envelope: RequestEnvelope) {
+        when (envelope.type) {
+            UPLOAD -> upload(conn, envelope)
+            DOWNLOAD -> download(conn, envelope)
+            CANCEL -> cancel(conn, envelope)
+        }
+    }
+
+    private fun upload(conn: WebSocket, envelope: RequestEnvelope) {
+        val moduleName = field(envelope, "module")?.asText()
+        val path = field(envelope, "path")?.asText()
+        val size = field(envelope, "size")?.takeIf { it.canConvertToLong() }?.asLong()
+        val key = field(envelope, "upload")?.asText()
+        val restart = field(envelope, "restart")?.asBoolean() ?: false
+        if (moduleName == null || path.isNullOrBlank() || size == null) {
+            return fail(conn, envelope, "UPLOAD needs a module, path and size")
+        }
+        if (key != null && !UPLOAD_KEY.matches(key)) {
+            return fail(conn, envelope, "upload must be 1-64 letters, digits, '-' or '_'")
+        }
+        val module = modules(moduleName) ?: return fail(conn, envelope, "No module registered at `$moduleName`")
+        if (size !in 0..maxBytes) return fail(conn, envelope, "Upload of $size bytes exceeds the limit of $maxBytes bytes")
+        if (!module.acceptUpload(path, size)) return fail(conn, envelope, "Module ${module.name} doesn't accept uploads to $path")
+
+        val target = try {
+            ModuleSandbox.createFile(module.name, path)
+        } catch (ex: SecurityException) {
+            return fail(conn, envelope, ex.message ?: "Path escapes the module's sandbox")
+        }
+        // only a keyed upload can tell its own part file from another file's, so only those resume
+        val partPath = if (key != null) "$path.$key$PART_SUFFIX" else path + PART_SUFFIX
+        val part = ModuleSandbox.createFile(module.name, partPath)
+        // resuming while the old connection's upload is still open: that one gives way
+        transfers.values.firstOrNull { it is Upload && it.part == part }?.let {
+            abandon(it, "Resumed on another request")
+        }
+        if (!slots.tryAcquire()) return fail(conn, envelope, "Too many transfers in progress, retry later")
+
+        val upload = try {
+            val channel = ModuleSandbox.openChannel(module.name, partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+            var offset = channel.size()
+            if (key == null || restart || offset > size) {
+                channel.truncate(0)
+                offset = 0
+            }
+            Upload(ids.incrementAndGet(), conn, envelope.responseId(), channel, module, path, part, target, size, offset)
+        } catch (ex: Exception) {
+            slots.release()
+            return fail(conn, envelope, "Upload to $path failed: ${ex.message}")
+        }
+        transfers[upload.id] = upload
+        respond(conn, upload.requestId, Response.ResponseStatus.PENDING, started(upload.id, upload.received, size))
+        if (upload.received == size) complete(upload)
+    }
+
+    /**
+     * Vet a chunk frame on the decoder thread, before it is queued on the connection's lane for [receive].
+     * False if it was refused and answered here: no such upload on this connection, a chunk over the chunk
+     * size, or more than the window waiting to be written, which ends the upload.
+     */
+    fun admit(conn: WebSocket, frame: ByteBuffer): Boolean {
+        val data = frame.duplicate()
+        val header = try {
+            BinaryMessageCodec.readChunkHeader(data)
+        } catch (ex: IllegalArgumentException) {
+            reply(conn, Response.error("Bad chunk frame: ${ex.message}"))
+            return false
+        }
+        val upload = transfers[header.transfer] as? Upload
+        if (upload == null || upload.conn !== conn) {
+            reply(conn, Response.error("No upload ${header.transfer} open on this connection"))
+            return false
+        }
+        val length = data.remaining().toLong()
+        if (length > chunkBytes) {
+            abandon(upload, "Chunk of $length bytes is over the chunk size of $chunkBytes")
+            return false
+        }
+        if (upload.queued.addAndGet(length) > windowBytes) {
+            upload.queued.addAndGet(-length)
+            abandon(upload, "Sent more than $windowChunks chunks past the acknowledged offset")
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Write one chunk frame of an upload, after [admit] let it through. Runs on the connection's lane, so
+     * chunks are written in the order they arrived; one at an unexpected offset ends the upload, and the
+     * client resumes with a new `UPLOAD`.
+     */
+    fun receive(conn: WebSocket, frame: ByteBuffer) {
+        val header = try {
+            BinaryMessageCodec.readChunkHeader(frame)
+        } catch (ex: IllegalArgumentException) {
+            reply(conn, Response.error("Bad chunk frame: ${ex.message}"))
+            return
+        }
+        val upload = transfers[header.transfer] as? Upload
+        if (upload == null || upload.conn !== conn) {
+            reply(conn, Response.error("No upload ${header.transfer} open on this connection"))
+            return
+        }
+        val length = frame.remaining()
+        try {
+            when {
+                header.offset != upload.received ->
+                    return abandon(upload, "Chunk at offset ${header.offset}, expected ${upload.received}")
+                upload.received + length > upload.size ->
+                    return abandon(upload, "Chunk runs past the declared size of ${upload.size} bytes")
+            }
+            try {
+                var position = header.offset
+                while (frame.hasRemaining()) position += upload.channel.write(frame, position)
+            } catch (ex: Exception) {
+                return abandon(upload, "Writing ${upload.path} failed: ${ex.message}")
+            }
+        } finally {
+            upload.queued.addAndGet(-length.toLong())
+        }
+        upload.received += length
+        uploadedBytes.addAndGet(length.toLong())
+        when {
+            upload.received == upload.size -> complete(upload)
+            upload.received - upload.acked >= windowBytes / 2 -> {
+                // room for another half window
+                upload.acked = upload.received
+                respond(conn, upload.requestId, Response.ResponseStatus.PENDING, mapOf(
+                    "transfer" to IntegerValue(upload.id.toInt()),
+                    "offset" to IntegerValue(upload.received.toInt())
+                ))
+            }
+        }
+    }
+
+    private fun complete(upload: Upload) {
+        try {
+            upload.channel.force(false)
+        } catch (ex: Exception) {
+            return abandon(upload, "Writing ${upload.path} failed: ${ex.message}")
+        }
+        if (!upload.finish()) return
+        try {
+            try {
+                Files.move(upload.part.toPath(), upload.target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } catch (ex: AtomicMoveNotSupportedException) {
+                Files.move(upload.part.toPath(), upload.target.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            }
+            upload.module.uploadCompleted(upload.path, upload.target)
+        } catch (ex: Exception) {
+            failed.incrementAndGet()
+            logger.print("Upload ${upload.id} of ${upload.path} to ${upload.module.name} failed: ${ex.message}", true)
+            respond(upload.conn, upload.requestId, Response.ResponseStatus.FAILED,
+                mapOf("reason" to StringValue("Upload stored but not accepted: ${ex.message}")))
+            return
+        }
+        completed.incrementAndGet()
+        respond(upload.conn, upload.requestId, Response.ResponseStatus.OK, mapOf(
+            "transfer" to IntegerValue(upload.id.toInt()),
+            "path" to StringValue(upload.path),
+            "size" to IntegerValue(upload.size.toInt())
+        ))
+    }
+
+    private fun download(conn: WebSocket, envelope: RequestEnvelope) {
+        val moduleName = field(envelope, "module")?.asText()
+        val path = field(envelope, "path")?.asText()
+        val offset = field(envelope, "offset")?.takeIf { it.canConvertToLong() }?.asLong() ?: 0
+        if (moduleName == null || path.isNullOrBlank()) return fail(conn, envelope, "DOWNLOAD needs a module and path")
+        val module = modules(moduleName) ?: return fail(conn, envelope, "No module registered at `$moduleName`")
+        if (!module.allowDownload(path)) return fail(conn, envelope, "Module ${module.name} doesn't allow downloading $path")
+
+        val file = try {
+            ModuleSandbox.createFile(module.name, path)
+        } catch (ex: SecurityException) {
+            return fail(conn, envelope, ex.message ?: "Path escapes the module's sandbox")
+        }
+        if (!file.isFile) return fail(conn, envelope, "No file at $path in ${module.name}")
+        if (!slots.tryAcquire()) return fail(conn, envelope, "Too many transfers in progress, retry later")
+
+        val download = try {
+            val channel = ModuleSandbox.openChannel(module.name, path, StandardOpenOption.READ)
+            val size = channel.size()
+            if (size > maxBytes || offset !in 0..size) {
+                channel.close()
+                slots.release()
+                return fail(conn, envelope, if (size > maxBytes) "$path is larger than $maxBytes bytes" else "Offset $offset is outside $path")
+            }
+            Download(ids.incrementAndGet(), conn, envelope.responseId(), channel, size, offset)
+        } catch (ex: Exception) {
+            slots.release()
+            return fail(conn, envelope, "Download of $path failed: ${ex.message}")
+        }
+        transfers[download.id] = download
+        respond(conn, download.requestId, Response.ResponseStatus.PENDING, started(download.id, offset, download.size))
+        runner.execute { stream(download) }
+    }
+
+    private fun stream(download: Download) {
+        val conn = download.conn
+        // one buffer for the whole file, the frame is copied out of it while it is sent
+        val buffer = ByteBuffer.allocate(BinaryMessageCodec.CHUNK_HEADER_MAX + chunkBytes)
+        var position = download.start
+        try {
+            while (position < download.size) {
+                if (download.finished) return // cancelled or the connection closed
+                val outbox = ConnectionContext.of(conn)?.outbox
+                if (outbox != null && !outbox.awaitBacklog(windowBytes, stallMs)) {
+                    return abandon(download, "Client stopped reading for ${stallMs}ms")
+                }
+                if (!conn.isOpen) return abandon(download, "Connection closed")
+
+                buffer.clear()
+                BinaryMessageCodec.writeChunkHeader(buffer, download.id, position)
+                val dataStart = buffer.position()
+                buffer.limit(minOf(buffer.capacity().toLong(), dataStart + download.size - position).toInt())
+                while (buffer.hasRemaining()) {
+                    if (download.channel.read(buffer, position + buffer.position() - dataStart) < 0) break
+                }
+                val read = buffer.position() - dataStart
+                if (read == 0) return abandon(download, "File changed while it was being downloaded")
+                buffer.flip()
+
+                val frame = BinaryFrame()
+                frame.setPayload(buffer)
+                frame.isFin = true
+                send(conn, frame)
+                position += read
+                downloadedBytes.addAndGet(read.toLong())
+            }
+        } catch (ex: Exception) {
+            return abandon(download, "Download failed: ${ex.message}")
+        }
+        if (!download.finish()) return
+        completed.incrementAndGet()
+        respond(conn, download.requestId, Response.ResponseStatus.OK, mapOf(
+            "transfer" to IntegerValue(download.id.toInt()),
+            "size" to IntegerValue(download.size.toInt())
+        ))
+    }
+
+    private fun cancel(conn: WebSocket, envelope: RequestEnvelope) {
+        val id = field(envelope, "transfer")?.takeIf { it.canConvertToLong() }?.asLong()
+        val transfer = id?.let { transfers[it] }
+        if (transfer == null || transfer.conn !== conn) return fail(conn, envelope, "No transfer $id open on this connection")
+        abandon(transfer, "Cancelled")
+        // a cancelled upload isn't coming back, its part file would only be resumed by mistake
+        if (transfer is Upload) runCatching { Files.deleteIfExists(transfer.part.toPath()) }
+        respond(conn, envelope.responseId(), Response.ResponseStatus.OK, mapOf("transfer" to IntegerValue(transfer.id.toInt())))
+    }
+
+    /** Close the transfers of a closed connection. Part files stay, so the upload can be resumed. */
+    fun connectionClosed(conn: WebSocket) {
+        transfers.values.filter { it.conn === conn }.forEach { it.finish() }
+    }
+
+    // end a transfer early and tell the client why, on the request that started it
+    private fun abandon(transfer: Transfer, reason: String) {
+        if (!transfer.finish()) return
+        failed.incrementAndGet()
+        if (transfer.conn.isOpen) {
+            respond(transfer.conn, transfer.requestId, Response.ResponseStatus.FAILED, mapOf("reason" to StringValue(reason)))
+        }
+    }
+
+    private fun fail(conn: WebSocket, envelope: RequestEnvelope, reason: String) {
+        val refused = Response.error(reason)
+        refused.id = envelope.responseId()
+        reply(conn, refused)
+    }
+
+    private fun started(id: Long, offset: Long, size: Long): Map<String, MessageValue<*>> = mapOf(
+        "transfer" to IntegerValue(id.toInt()),
+        "offset" to IntegerValue(offset.toInt()),
+        "size" to IntegerValue(size.toInt()),
+        "chunk" to IntegerValue(chunkBytes),
+        "window" to IntegerValue(windowChunks)
+    )
+
+    private fun respond(conn: WebSocket, id: String, status: Response.ResponseStatus, entries: Map<String, MessageValue<*>>) {
+        val response = Response<MapValue<MessageValue<*>>>(null, MapValue(entries), status)
+        response.id = id
+        reply(conn, response)
+    }
+
+    override fun toString(): String =
+        "Active: ${transfers.size}/$maxConcurrent | Uploaded: ${uploadedBytes.get() / 1024} KB | " +
+            "Downloaded: ${downloadedBytes.get() / 1024} KB | Completed: ${completed.get()} | Failed: ${failed.get()}"
+
+    companion object {
+        const val UPLOAD = "UPLOAD"
+        const val DOWNLOAD = "DOWNLOAD"
+        const val CANCEL = "TRANSFER_CANCEL"
+
+        /** Request types (with no `moduleAddress`) handled here. */
+        @JvmField
+        val TYPES = setOf(UPLOAD, DOWNLOAD, CANCEL)
+
+        private const val PART_SUFFIX = ".part"
+        private val UPLOAD_KEY = Regex("[A-Za-z0-9_-]{1,64}")
+
+        // a payload field, from a plain JSON object or a MapValue of wrapped values
+        private fun field(envelope: RequestEnvelope, name: String): JsonNode? {
+            var payload = envelope.payload ?: return null
+            if (payload.has("valueType")) payload = payload.get("value") ?: return null
+            var value = payload.get(name) ?: return null
+            if (value.isObject && value.has("valueType")) value = value.get("value") ?: return null
+            return value.takeUnless { it.isNull }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.RequestEnvelope
+import org.java_websocket.WebSocket
+
+/**
+ * Implemented by the `WebSocketServer` of an [AbstractServerModule] that wants dispatched requests as the
+ * dispatcher's [RequestEnvelope] rather than as a text message.
+ *
+ * The envelope has already had its routing fields read; the payload is parsed only if the server asks for
+ * [RequestEnvelope.payload], and [RequestEnvelope.rawText] / [RequestEnvelope.rawBytes] give the original
+ * frame for servers that relay it elsewhere.
+ */
+fun interface ForwardingTarget {
+    /**
+     * Handle one request forwarded by the dispatcher. Runs on the dispatch thread of [conn]'s lane and
+     * inside the module's bulkhead; replies go to [conn] directly.
+     */
+    fun onForwarded(conn: WebSocket, envelope: RequestEnvelope)
+}
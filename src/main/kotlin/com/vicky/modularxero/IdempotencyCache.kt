@@ -0,0 +1,109 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.Response
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Bounded, time-expiring map of recent requests keyed by session, module and request id, so a client
+ * that retries gets the first execution's response instead of running the request again.
+ *
+ * Entries are claimed before the request runs: a retry that arrives while it's still in flight attaches
+ * to the same future, one that arrives after it completed replays the stored response for [ttlMillis]
+ * from completion, however long the request took. An entry moves to the tail when it completes, so
+ * completed entries are in completion order and expiry works from the head, stepping over the ones still
+ * in flight; eviction drops the eldest completed entry, and a request arriving while all [maxEntries] are
+ * in flight runs without being remembered.
+ *
+ * Keys must be scoped to something the client can't choose, see [ConnectionContext.sessionOf], or one
+ * client could replay another's responses.
+ */
+class IdempotencyCache(private val maxEntries: Int, private val ttlMillis: Long) {
+    private val entries = LinkedHashMap<String, Entry>()
+
+    class Entry internal constructor(val createdAt: Long) {
+        val result = CompletableFuture<Response<*>>()
+
+        /** When [result] was completed, 0 while the request is still running. */
+        @Volatile var completedAt: Long = 0
+            internal set
+
+        // serialized once per wire encoding, on the first replay that needs it
+        @Volatile private var json: ByteArray? = null
+        @Volatile private var binary: ByteArray? = null
+
+        fun frame(encoding: WireEncoding, encode: (Response<*>) -> ByteArray): ByteArray =
+            when (encoding) {
+                WireEncoding.JSON -> json ?: encode(result.join()).also { json = it }
+                WireEncoding.BINARY -> binary ?: encode(result.join()).also { binary = it }
+            }
+    }
+
+    /**
+     * The entry for [key] and whether the caller created it. The creator must run the request and complete
+     * [Entry.result]; everyone else waits on or replays it.
+     */
+    fun claim(key: String): Pair<Entry, Boolean> {
+        val now = System.currentTimeMillis()
+        synchronized(entries) {
+            expire(now)
+            val existing = entries[key]
+            if (existing != null) return existing to false
+
+            val entry = Entry(now)
+            // everything remembered is still running: run this one unremembered rather than forget a running one
+            if (entries.size >= maxEntries && !evictCompleted()) return entry to true
+            entries[key] = entry
+            entry.result.whenComplete { _, _ -> completed(key, entry) }
+            return entry to true
+        }
+    }
+
+    /**
+     * Forget [entry], e.g. because it failed and a retry should run it again.
+     */
+    fun remove(key: String, entry: Entry) {
+        synchronized(entries) {
+            entries.remove(key, entry)
+        }
+    }
+
+    fun size(): Int = synchronized(entries) { entries.size }
+
+    // start the entry's ttl and move it behind everything that completed before it
+    private fun completed(key: String, entry: Entry) {
+        synchronized(entries) {
+            entry.completedAt = System.currentTimeMillis()
+            // removed already (failed, or evicted): don't bring it back
+            if (entries[key] !== entry) return
+            entries.remove(key)
+            entries[key] = entry
+        }
+    }
+
+    // drop the eldest completed entry, in-flight ones have retries waiting on them
+    private fun evictCompleted(): Boolean {
+        val iterator = entries.values.iterator()
+        while (iterator.hasNext()) {
+            if (iterator.next().completedAt == 0L) continue
+            iterator.remove()
+            return true
+        }
+        return false
+    }
+
+    private fun expire(now: Long) {
+        val iterator = entries.values.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            // an in-flight entry is never dropped by age, its retries still need something to attach to
+            if (entry.completedAt == 0L) continue
+            if (now - entry.completedAt < ttlMillis) break
+            iterator.remove()
+        }
+    }
+
+    companion object {
+        @JvmStatic
+        fun key(session: String, moduleAddress: String, id: String): String = "$session\n$moduleAddress\n$id"
+    }
+}
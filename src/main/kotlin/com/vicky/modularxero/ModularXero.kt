@@ -1,43 +1,133 @@
 package com.vicky.modularxero
 
-import com.fasterxml.jackson.databind.ObjectMapper
+import com.vicky.modularxero.cluster.ClusterNode
+import com.vicky.modularxero.common.BinaryMessageCodec
 import com.vicky.modularxero.common.util.HibernateUtil
+import org.java_websocket.WebSocket
+import org.java_websocket.drafts.Draft
+import org.java_websocket.drafts.Draft_6455
+import org.java_websocket.extensions.IExtension
+import org.java_websocket.framing.CloseFrame
 import org.java_websocket.handshake.ClientHandshake
+import org.java_websocket.handshake.ServerHandshakeBuilder
+import org.java_websocket.protocols.IProtocol
+import org.java_websocket.protocols.Protocol
 import org.java_websocket.server.WebSocketServer
 import java.io.File
 import java.lang.management.ManagementFactory
 import java.net.InetSocketAddress
 import java.net.NetworkInterface
+import java.nio.ByteBuffer
 
-class ModularXero(
+class ModularXero @JvmOverloads constructor(
     private val dispatcher: ModularXeroDispatcher,
-    port: Int
-) : WebSocketServer(InetSocketAddress(port)) {
-    private val mapper = ObjectMapper()
+    port: Int,
+    /** Index of this acceptor when several share the port, see [ServerConfig.acceptors]. */
+    private val shard: Int = 0
+) : WebSocketServer(
+    InetSocketAddress(port),
+    dispatcher.config.decoders,
+    drafts(dispatcher.config, dispatcher.compressionMetrics)
+) {
+    private val reusePort = dispatcher.config.acceptors > 1 && ReusePort.supported
+
+    init {
+        val config = dispatcher.config
+        setTcpNoDelay(config.tcpNoDelay)
+        setReuseAddr(config.reuseAddress)
+        setConnectionLostTimeout(config.connectionLostTimeout)
+        setWebSocketFactory(TunedServerFactory(config))
+    }
+
+    companion object {
+        /**
+         * Drafts offered by the main listener: RFC 6455 accepting either the binary subprotocol
+         * or no subprotocol at all (plain JSON clients), with permessage-deflate if [config] enables it.
+         * Clients that don't offer the extension are served uncompressed. Messages over
+         * [ServerConfig.maxFrameBytes] are refused while they are still being read.
+         */
+        @JvmStatic
+        fun drafts(config: ServerConfig, metrics: CompressionMetrics): List<Draft> {
+            val extensions = if (config.compression) {
+                listOf<IExtension>(MeteredDeflateExtension(config.compressionLevel, config.compressionThreshold, metrics))
+            } else {
+                emptyList()
+            }
+            return listOf(
+                Draft_6455(
+                    extensions,
+                    listOf<IProtocol>(Protocol(BinaryMessageCodec.PROTOCOL), Protocol("")),
+                    // refuse to buffer a message (all fragments together) past this, closing with 1009 instead
+                    config.maxFrameBytes
+                )
+            )
+        }
+    }
+
+    override fun onWebsocketHandshakeReceivedAsServer(conn: WebSocket, draft: Draft, request: ClientHandshake): ServerHandshakeBuilder {
+        // a mounted module's server gets to vet its own handshakes, as it would on its own port
+        dispatcher.mounts.handshake(conn, draft, request)?.let { return it }
+        val response = super.onWebsocketHandshakeReceivedAsServer(conn, draft, request)
+        if (!request.resourceDescriptor.startsWith(ClusterNode.PATH)) {
+            // the session the client resumed, or a new one, for it to present when it reconnects; onOpen picks it up
+            val session = ConnectionContext.sessionOf(request) ?: ConnectionContext.issueSession()
+            response.put(ConnectionContext.SESSION_HEADER, session)
+            conn.setAttachment(session)
+        }
+        return response
+    }
 
     override fun onOpen(conn: org.java_websocket.WebSocket, handshake: ClientHandshake?) {
+        if (handshake != null && handshake.resourceDescriptor.startsWith(ClusterNode.PATH)) {
+            if (!dispatcher.clusterLinkOpened(conn, handshake)) {
+                conn.close(CloseFrame.POLICY_VALIDATION, "Not a valid cluster link")
+            }
+            return
+        }
+        if (dispatcher.mounts.open(conn, handshake)) return
+        val session = conn.getAttachment<Any?>() as? String
+        dispatcher.connectionOpened(conn, WireEncoding.negotiate(handshake), session, listener = this)
        ModularXeroConsole.GLOBAL_READER.printAbove("[MoX-S] Client connected: ${conn?.remoteSocketAddress}")
     }
 
     override fun onClose(conn: org.java_websocket.WebSocket, code: Int, reason: String?, remote: Boolean) {
+        if (dispatcher.mounts.closed(conn, code, reason, remote)) return
+        dispatcher.connectionClosed(conn)
        ModularXeroConsole.GLOBAL_READER.printAbove("[MoX-S] Client disconnected: ${conn?.remoteSocketAddress}")
     }
 
     override fun onMessage(conn: org.java_websocket.WebSocket, message: String?) {
+        // connections to mounted server modules are theirs to handle, on this decoder thread like their own server would
+        if (message != null && dispatcher.mounts.message(conn, message)) return
        ModularXeroConsole.GLOBAL_READER.printAbove("[MoX-S] Message: $message")
 
         if (message != null) {
-            val response = dispatcher.dispatch(conn, message)
-            conn.send(mapper.writeValueAsString(response))
+            // handled on the dispatch executor, the dispatcher replies on `conn` itself
+            dispatcher.submit(conn, message)
         }
     }
 
-    override fun onError(conn: org.java_websocket.WebSocket, ex: Exception?) {
+    override fun onMessage(conn: org.java_websocket.WebSocket, message: ByteBuffer?) {
+        if (message != null && dispatcher.mounts.message(conn, message)) return
+        if (message != null) {
+            // the decoder allocates a fresh buffer per message, so it can be handed off as-is
+            dispatcher.submit(conn, message)
+        }
+    }
+
+    override fun onError(conn: org.java_websocket.WebSocket?, ex: Exception?) {
+        if (dispatcher.mounts.error(conn, ex)) return
        ModularXeroConsole.GLOBAL_READER.printAbove("[MoX-S] Error: ${ex?.message}")
     }
 
     override fun onStart() {
-       println("[MoX-S] Server started!")
+       println(if (reusePort) "[MoX-S] Acceptor $shard started!" else "[MoX-S] Server started!")
+    }
+
+    // called by run() right before the server channel is bound, the last point SO_REUSEPORT can be set
+    override fun isReuseAddr(): Boolean {
+        if (reusePort) ReusePort.apply(this)
+        return super.isReuseAddr()
     }
 }
 
@@ -3,6 +3,8 @@ package com.vicky.modularxero
 import picocli.CommandLine
 import picocli.CommandLine.*
 import picocli.CommandLine.Model.CommandSpec
+import java.io.File
+import java.time.Duration
 import java.util.concurrent.Callable
 import java.util.logging.Logger
 
@@ -28,6 +30,7 @@ class ModularXeroCommandManager(
         root.addSubcommand("start", StartCommand())
         root.addSubcommand("stop", StopCommand())
         root.addSubcommand("pause", PauseCommand())
+        root.addSubcommand("reload", ReloadCommand())
         root.addSubcommand("metrics", MetricsCommand())
         root.addSubcommand("deafen", DeafenCommand())
 
@@ -73,8 +76,17 @@ class HelpCommand : Callable<Int> {
 class StatusCommand : Callable<Int> {
     override fun call(): Int {
        ModularXeroConsole.GLOBAL_READER.printAbove("Module Status:")
+        val mounts = ModularXeroCommandManager.dispatcherRef.mounts
         ModularXeroCommandManager.dispatcherRef.getModules().forEach { (name, _) ->
-           ModularXeroConsole.GLOBAL_READER.printAbove("- $name: running") // You could track actual state (started, stopped etc)
+            val mounted = if (mounts.isMounted(name)) " (mounted on ${ModuleMounts.PREFIX}$name)" else ""
+            val route = ModularXeroCommandManager.dispatcherRef.getRoute(name)
+            val state = route?.state?.name?.lowercase() ?: "unknown"
+            val breaker = route?.breaker
+            val circuit = breaker?.let { " | circuit ${it.state}" } ?: ""
+           ModularXeroConsole.GLOBAL_READER.printAbove("- $name: $state$mounted$circuit")
+            breaker?.transitions()?.lastOrNull()?.let {
+               ModularXeroConsole.GLOBAL_READER.printAbove("    Last transition: $it")
+            }
         }
         return 0
     }
@@ -88,7 +100,7 @@ class StartCommand : Callable<Int> {
     override fun call(): Int {
         val module = ModularXeroCommandManager.dispatcherRef.getModules()[moduleName]
         return if (module != null) {
-            module.start()
+            ModularXeroCommandManager.dispatcherRef.startModule(moduleName)
            ModularXeroConsole.GLOBAL_READER.printAbove("Started module: $moduleName")
             0
         } else {
@@ -98,17 +110,17 @@ class StartCommand : Callable<Int> {
     }
 }
 
-@Command(name = "stop", description = ["Stop a module"])
+@Command(name = "stop", description = ["Stop a module, letting its running requests finish first"])
 class StopCommand : Callable<Int> {
     @Parameters(index = "0", description = ["Module name"])
     lateinit var moduleName: String
+    @Option(names = ["-g", "--grace"], description = ["Seconds to wait for running requests (default: mox.drain.grace_ms)"])
+    var graceSeconds: Long? = null
 
     override fun call(): Int {
-        val module = ModularXeroCommandManager.dispatcherRef.getModules()[moduleName]
-        return if (module != null) {
-            try {
-                module.stop()
-            } catch(_: Exception) {}
+        val dispatcher = ModularXeroCommandManager.dispatcherRef
+        val grace = graceSeconds?.let { Duration.ofSeconds(it) } ?: Duration.ofMillis(dispatcher.config.drainGraceMs)
+        return if (dispatcher.stopModule(moduleName, grace)) {
            ModularXeroConsole.GLOBAL_READER.printAbove("Stopped module: $moduleName")
             0
         } else {
@@ -118,6 +130,29 @@ class StopCommand : Callable<Int> {
     }
 }
 
+@Command(name = "reload", description = ["Swap a module for a new version of its jar without restarting"])
+class ReloadCommand : Callable<Int> {
+    @Parameters(index = "0", description = ["Module name"])
+    lateinit var moduleName: String
+    @Option(names = ["-j", "--jar"], description = ["Jar to load (default: the one in the modules folder)"])
+    var jar: File? = null
+
+    override fun call(): Int {
+        val dispatcher = ModularXeroCommandManager.dispatcherRef
+        if (dispatcher.getModules()[moduleName] == null) {
+            ModularXeroConsole.GLOBAL_READER.printAbove("Module not found: $moduleName")
+            return 1
+        }
+        ModularXeroConsole.GLOBAL_READER.printAbove("Reloading module: $moduleName")
+        dispatcher.reloadModule(moduleName, jar).thenAccept { reloaded ->
+            ModularXeroConsole.GLOBAL_READER.printAbove(
+                if (reloaded) "Reloaded module: $moduleName" else "Reload of $moduleName failed, see the log"
+            )
+        }
+        return 0
+    }
+}
+
 @Command(name = "deafen", description = ["Deafen a or all modules"])
 class DeafenCommand : Callable<Int> {
     @Option(names = ["-m", "--module"], description = ["Output file (default: print to console)"])
@@ -180,12 +215,37 @@ class MetricsCommand : Callable<Int> {
 
        ModularXeroConsole.GLOBAL_READER.printAbove("\n=== Network Metrics ===")
         MetricsCollector.collectNetworkMetrics().forEach { (k, v) -> println("$k: $v") }
+       ModularXeroConsole.GLOBAL_READER.printAbove("Deflate: ${ModularXeroCommandManager.dispatcherRef.compressionMetrics}")
+       ModularXeroConsole.GLOBAL_READER.printAbove("Outbound: ${ModularXeroCommandManager.dispatcherRef.outboundMetrics}")
+       ModularXeroConsole.GLOBAL_READER.printAbove("Transfers: ${ModularXeroCommandManager.dispatcherRef.transfers}")
+        val outboxes = ModularXeroCommandManager.dispatcherRef.outboxes().map { it to it.backlogBytes() }
+       ModularXeroConsole.GLOBAL_READER.printAbove("Backlog: ${outboxes.sumOf { it.second } / 1024} KB across ${outboxes.size} clients")
+        outboxes.filter { it.second > 0 }.sortedByDescending { it.second }.take(5).forEach { (outbox, backlog) ->
+           ModularXeroConsole.GLOBAL_READER.printAbove("    ${outbox.remoteAddress} | Backlog: ${backlog / 1024} KB | Peak: ${outbox.peakBacklog / 1024} KB")
+        }
+
+        ModularXeroCommandManager.dispatcherRef.getCluster()?.let { cluster ->
+           ModularXeroConsole.GLOBAL_READER.printAbove("\n=== Cluster (${cluster.nodeId}) ===")
+            cluster.nodes().forEach { node ->
+               ModularXeroConsole.GLOBAL_READER.printAbove("Node: [${node.id}] ${node.endpoint} | Linked: ${cluster.isLinked(node.id)} | Modules: ${node.modules.joinToString()}")
+            }
+        }
 
        ModularXeroConsole.GLOBAL_READER.printAbove("\n=== Module Analytics ===")
         ModularXeroCommandManager.dispatcherRef.getModules().values.forEach { module ->
             val m = module.metrics
             module.metrics.memoryBytes = org.openjdk.jol.vm.VM.current().sizeOf(module)
            ModularXeroConsole.GLOBAL_READER.printAbove("Module: [${module.name}] | Mem: ${m.memoryBytes/1024} KB | Msgs: ${m.messagesHandled} | In: ${m.bytesReceived} bytes | Out: ${m.bytesSent} bytes")
+           ModularXeroConsole.GLOBAL_READER.printAbove("    In-flight: ${m.inFlight}/${m.concurrencyLimit} | Queued: ${m.queueDepth} | Rejected: ${m.rejectedRequests} | Service calls: ${m.serviceCalls} | Timed out: ${m.timedOutRequests} | Oversized: ${m.oversizedRequests}")
+            if (module is AbstractServerModule) {
+               ModularXeroConsole.GLOBAL_READER.printAbove("    Deflate: ${module.compressionMetrics}")
+            }
+            ModularXeroCommandManager.dispatcherRef.getRoute(module.name)?.breaker?.let { breaker ->
+               ModularXeroConsole.GLOBAL_READER.printAbove("    Circuit: $breaker")
+                breaker.transitions().takeLast(3).forEach {
+                   ModularXeroConsole.GLOBAL_READER.printAbove("        $it")
+                }
+            }
         }
         return 0
     }
@@ -1,35 +1,101 @@
 package com.vicky.modularxero
 
+import com.vicky.modularxero.cluster.ClusterNode
+import com.vicky.modularxero.common.BinaryMessageCodec
+import com.vicky.modularxero.common.Deadline
+import com.vicky.modularxero.common.MessageType
+import com.vicky.modularxero.common.RequestEnvelope
 import com.vicky.modularxero.common.Response
 import com.vicky.modularxero.common.values.MapValue
 import com.vicky.modularxero.common.values.MessageValue
 import com.vicky.modularxero.common.values.StringValue
+import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.vicky.modularxero.common.Logger.ContextLogger
 import com.vicky.modularxero.common.util.HibernateUtil
 import com.vicky.modularxero.db.ModuleDatabaseManager
 import com.vicky.modularxero.sandbox.ModuleSandbox
+import org.hibernate.SessionFactory
+import org.java_websocket.WebSocket
+import org.java_websocket.WebSocketListener
+import org.java_websocket.exceptions.WebsocketNotConnectedException
+import org.java_websocket.framing.BinaryFrame
+import org.java_websocket.framing.CloseFrame
+import org.java_websocket.framing.Framedata
+import org.java_websocket.framing.TextFrame
+import org.java_websocket.handshake.ClientHandshake
+import java.io.File
+import java.nio.ByteBuffer
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 /**
  * The main dispatcher that holds and manages modules.
  */
-class ModularXeroDispatcher {
-    private val modules: MutableMap<String, AbstractModule> = mutableMapOf()
-    private val MAPPER = ObjectMapper()
+class ModularXeroDispatcher @JvmOverloads constructor(
+    val config: ServerConfig = ServerConfig()
+) {
+    // copy-on-write: request threads read the current table without locking, writers swap it under routesLock
+    @Volatile private var routes: RouteTable = RouteTable.EMPTY
+    private val routesLock = Any()
+    private val MAPPER = ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+    private val buffers = ByteBufferPool(config.responseBufferSize, config.responseBufferPool)
+    private val topics = TopicRegistry(config.maxTopicsPerConnection)
+    private val services = ServiceRegistry()
+    @Volatile private var cluster: ClusterNode? = null
+    private val idempotency = if (config.idempotencyMaxEntries > 0) {
+        IdempotencyCache(config.idempotencyMaxEntries, config.idempotencyTtlMs)
+    } else {
+        null
+    }
     private val logger = ContextLogger(ContextLogger.ContextType.SUB_SYSTEM, "Modular-X-Dispatcher")
+    private val executor = DispatchExecutor(config.dispatchMode, config.dispatchThreads)
+    // delayed work that shouldn't occupy a dispatch thread while waiting, e.g. PENDING acks and deadlines
+    private val timers = Executors.newSingleThreadScheduledExecutor { task ->
+        Thread(task, "mox-dispatch-timer").apply { isDaemon = true }
+    }
+    /** permessage-deflate totals for the main listener. */
+    val compressionMetrics = CompressionMetrics()
+    /** Write and slow-client totals across every client [Outbox]. */
+    val outboundMetrics = OutboundMetrics()
+    private val outboxes = ConcurrentHashMap.newKeySet<Outbox>()
+    /** Server modules served on the main listener, see [AbstractServerModule.mountOnMainListener]. */
+    val mounts = ModuleMounts()
+    /** Chunked uploads and downloads between clients and module sandboxes. */
+    val transfers = FileTransfers(
+        config.transferMaxConcurrent,
+        config.transferChunkBytes,
+        config.transferWindowChunks,
+        config.transferMaxBytes.toLong(),
+        config.transferStallMs,
+        executor,
+        { name -> routes[name]?.module },
+        { conn, response -> reply(conn, response, null) },
+        { conn, frame -> send(conn, frame) }
+    )
 
     fun registerModule(module: AbstractModule) {
         logger.print("Registering module ${module.name}!", ContextLogger.LogType.PENDING)
-        modules[module.name] = module
+        val descriptor = (module.javaClass.classLoader as? ModuleClassLoader)?.descriptor
+            ?: ModuleDescriptor.forBuiltIn(module)
+        val handlers = HandlerBinder.bind(module)
+        val bulkhead = bulkheadFor(module, descriptor)
+        synchronized(routesLock) {
+            routes = routes.with(ModuleRoute(module, bulkhead, handlers, breakerFor(module), requestLimit(descriptor)))
+        }
+        if (handlers.isNotEmpty()) {
+            logger.print("Module ${module.name} handles: ${handlers.keys.sorted().joinToString()}", ContextLogger.LogType.BASIC)
+        }
+        cluster?.localModulesChanged()
 
         // init module with dispatcher reference
         module.init(this)
         ModuleSandbox.registerModule(module)
-
-        // register annotated classes with Hibernate
-        for (entity in module.getModuleAnnotatedClasses()) {
-            HibernateUtil.registerEntity(entity)
-        }
+        registerEntities(module)
 
         // if a module wants to auto-start (e.g. servers), start it now
         if (module.autoStart()) {
@@ -42,65 +108,1008 @@ class ModularXeroDispatcher {
         }
     }
 
-    fun startModule(name: String) {
-        modules[name]?.start() ?: logger.print("Module $name not found!", ContextLogger.LogType.WARNING)
+    // register annotated classes with Hibernate
+    private fun registerEntities(module: AbstractModule) {
+        for (entity in module.getModuleAnnotatedClasses()) {
+            HibernateUtil.registerEntity(entity)
+        }
+    }
+
+    private fun bulkheadFor(module: AbstractModule, descriptor: ModuleDescriptor): ModuleBulkhead {
+        val limiter = if (config.adaptiveLimit) {
+            val max = descriptor.maxConcurrency.coerceAtLeast(1)
+            AdaptiveLimit(config.minConcurrency.coerceAtMost(max), max)
+        } else {
+            null
+        }
+        // a queued request blocks the thread it arrived on, which only costs nothing for a virtual thread;
+        // a pool or decoder thread parked there is one another module can't use, so refuse instead
+        val maxQueue = if (executor.mode == DispatchMode.VIRTUAL) descriptor.maxQueue else 0
+        return ModuleBulkhead(module.name, descriptor.maxConcurrency, maxQueue, module.metrics, limiter)
     }
 
-    fun stopModule(name: String) {
-        if (modules[name] != null) {
-            modules[name]!!.stop()
-            ModuleSandbox.unregisterModule(modules[name]!!)
+    private fun requestLimit(descriptor: ModuleDescriptor): Int =
+        descriptor.maxRequestBytes.takeIf { it > 0 } ?: config.maxRequestBytes
+
+    private fun breakerFor(module: AbstractModule): CircuitBreaker? {
+        if (!config.circuitBreaker) return null
+        return CircuitBreaker(
+            module.name,
+            config.breakerWindow,
+            config.breakerMinCalls,
+            config.breakerFailurePercent / 100.0,
+            TimeUnit.MILLISECONDS.toNanos(config.breakerSlowCallMs),
+            config.breakerSlowPercent / 100.0,
+            TimeUnit.MILLISECONDS.toNanos(config.breakerOpenMs),
+            config.breakerProbes
+        ) { transition ->
+            val type = if (transition.to == CircuitBreaker.State.OPEN) ContextLogger.LogType.WARNING else ContextLogger.LogType.BASIC
+            logger.print("Circuit for ${module.name} ${transition.from} -> ${transition.to}: ${transition.reason}", type)
         }
-        else {
+    }
+
+    fun startModule(name: String) {
+        val route = routes[name]
+        if (route == null) {
+            logger.print("Module $name not found!", ContextLogger.LogType.WARNING)
+            return
+        }
+        val module = route.module
+        if (route.bulkhead.isClosed) {
+            // stopped through stopModule, which closed its database
+            module.setSessionFactory(ModuleDatabaseManager.getSessionFactory(module))
+            ModuleSandbox.registerModule(module)
+            route.breaker?.reset()
+            route.bulkhead.open()
+        }
+        module.start()
+    }
+
+    /**
+     * Stop [name] gracefully: new requests for it are refused straight away, the ones already running or
+     * queued get up to [grace] to finish, then the module is stopped and its SessionFactory and connection
+     * pool are closed. Returns false if there is no such module.
+     */
+    @JvmOverloads
+    fun stopModule(name: String, grace: Duration = Duration.ofMillis(config.drainGraceMs)): Boolean {
+        val route = routes[name]
+        if (route == null) {
             logger.print("Module $name not found!", ContextLogger.LogType.WARNING)
+            return false
+        }
+        drain(listOf(route), grace)
+        stopDrained(route)
+        return true
+    }
+
+    /**
+     * [stopModule] for every module at once, sharing one grace period. Used when the server shuts down,
+     * before the listeners close, so the drained requests can still be answered.
+     */
+    @JvmOverloads
+    fun stopAll(grace: Duration = Duration.ofMillis(config.drainGraceMs)) {
+        val all = routes.routes().toList()
+        drain(all, grace)
+        all.forEach { stopDrained(it) }
+    }
+
+    // close the bulkheads, then wait for what they already admitted, reporting progress every second
+    private fun drain(targets: List<ModuleRoute>, grace: Duration): Boolean {
+        targets.forEach { it.bulkhead.close() }
+        val deadline = Deadline.after(grace.toMillis())
+        while (true) {
+            val busy = targets.filter { it.bulkhead.inFlight() > 0 || it.bulkhead.queueDepth() > 0 }
+            if (busy.isEmpty()) return true
+            val state = busy.joinToString { "${it.name}: ${it.bulkhead.inFlight()} running, ${it.bulkhead.queueDepth()} queued" }
+            if (deadline.isExpired()) {
+                logger.print("Grace period over, abandoning $state", ContextLogger.LogType.WARNING)
+                return false
+            }
+            logger.print("Draining $state (${deadline.remainingMillis() / 1000}s left)", ContextLogger.LogType.PENDING)
+            busy.first().bulkhead.awaitDrained(deadline.remainingMillis().coerceAtMost(1_000))
         }
     }
 
+    private fun stopDrained(route: ModuleRoute) {
+        val module = route.module
+        try {
+            module.stop()
+        } catch (ex: Exception) {
+            logger.print("Module ${module.name} failed to stop cleanly: ${ex.message}", true)
+        }
+        services.withdraw(module)
+        ModuleSandbox.unregisterModule(module)
+        ModuleDatabaseManager.closeModule(module.name)
+        logger.print("Module ${module.name} stopped", ContextLogger.LogType.BASIC)
+    }
+
     fun pauseModule(name: String) {
-        modules[name]?.pause() ?: logger.print("Module $name not found!", ContextLogger.LogType.WARNING)
+        routes[name]?.module?.pause() ?: logger.print("Module $name not found!", ContextLogger.LogType.WARNING)
+    }
+
+    /**
+     * Replace module [name] with a fresh copy loaded from [jar] (by default the jar in the modules folder
+     * declaring it), without restarting the server.
+     *
+     * The jar is loaded into a new [ModuleClassLoader] and its SessionFactory built in the background while
+     * the old module keeps serving. Only then are requests for the module parked in a [ReloadBuffer]; the old
+     * module gets up to [ServerConfig.drainGraceMs] to finish what it is running, the new route is swapped in,
+     * the parked requests are replayed against it and the old loader and SessionFactory are closed. If loading
+     * fails the old module is left untouched; if the new one fails to come up after the swap, the old one is
+     * put back and restarted and gets the parked requests. Completes with true once the new module is live.
+     */
+    @JvmOverloads
+    fun reloadModule(name: String, jar: File? = null): CompletableFuture<Boolean> {
+        val result = CompletableFuture<Boolean>()
+        Thread({
+            result.complete(try {
+                reload(name, jar)
+            } catch (ex: Exception) {
+                logger.print("Reload of $name failed: ${ex.message}", true)
+                false
+            })
+        }, "mox-reload-$name").start()
+        return result
+    }
+
+    private fun reload(name: String, jar: File?): Boolean {
+        val old = routes[name]
+        if (old == null) {
+            logger.print("Module $name not found!", ContextLogger.LogType.WARNING)
+            return false
+        }
+        val scanner = ModularZeroScanner()
+        val source = jar ?: scanner.findModuleJar(name)
+        if (source == null) {
+            logger.print("No jar in the modules folder declares module $name", ContextLogger.LogType.WARNING)
+            return false
+        }
+
+        // the slow part, class loading and the SessionFactory, happens while the old module still serves
+        logger.print("Loading $name from ${source.name}", ContextLogger.LogType.PENDING)
+        val (_, loader, clazz) = scanner.prepareModule(source, reload = true) ?: return false
+        var factory: SessionFactory? = null
+        val route = try {
+            val module = (clazz.kotlin.objectInstance ?: clazz.getDeclaredConstructor().newInstance()) as AbstractModule
+            check(module.name == name) { "${source.name} holds module ${module.name}, not $name" }
+            registerEntities(module)
+            factory = ModuleDatabaseManager.buildSessionFactory(module)
+            val descriptor = loader.descriptor ?: ModuleDescriptor.forBuiltIn(module)
+            ModuleRoute(module, bulkheadFor(module, descriptor), HandlerBinder.bind(module), breakerFor(module), requestLimit(descriptor))
+        } catch (ex: Exception) {
+            factory?.close()
+            loader.unload()
+            throw ex
+        }
+        val module = route.module
+
+        // park new requests and let the old module finish the ones it has; the new route parks too until
+        // the release, so requests reaching it while it starts queue behind the parked ones
+        val buffer = ReloadBuffer(config.reloadBufferSize, executor)
+        route.reloading = buffer
+        old.reloading = buffer
+        val pausedAt = System.nanoTime()
+        var previousFactory: SessionFactory? = null
+        val exported = services.snapshot(old.module)
+        var oldStopped = false
+        try {
+            if (!old.bulkhead.awaitDrained(config.drainGraceMs)) {
+                logger.print("Grace period over, abandoning ${old.bulkhead.inFlight()} requests running in the old $name", ContextLogger.LogType.WARNING)
+            }
+            old.bulkhead.close()
+            oldStopped = true
+            try {
+                old.module.stop()
+            } catch (ex: Exception) {
+                logger.print("Old module $name failed to stop cleanly: ${ex.message}", true)
+            }
+            services.withdraw(old.module)
+            ModuleSandbox.unregisterModule(old.module)
+
+            synchronized(routesLock) {
+                routes = routes.with(route)
+            }
+            module.init(this)
+            ModuleSandbox.registerModule(module)
+            module.setSessionFactory(factory!!)
+            previousFactory = ModuleDatabaseManager.replaceSessionFactory(name, factory)
+            if (module.autoStart()) module.start()
+        } catch (ex: Exception) {
+            if (oldStopped) {
+                // the new factory may already have been published in place of the old one
+                previousFactory?.let { ModuleDatabaseManager.replaceSessionFactory(name, it) }
+                rollback(old, route, exported)
+            }
+            factory?.close()
+            loader.unload()
+            throw ex
+        } finally {
+            // replay against whatever is live now, the old route if the reload failed, each request on its
+            // connection's lane; requests that still see the buffer after this are queued behind them
+            val target = routes[name] ?: old
+            val parked = buffer.release(target)
+            target.reloading = null
+            logger.print(
+                "Requests for $name paused ${TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pausedAt)}ms, $parked replayed",
+                ContextLogger.LogType.BASIC
+            )
+        }
+
+        cluster?.localModulesChanged()
+        previousFactory?.let { runCatching { it.close() } }
+        (old.module.javaClass.classLoader as? ModuleClassLoader)?.unload()
+        logger.print("Reloaded module $name from ${source.name}", ContextLogger.LogType.SUCCESS)
+        return true
+    }
+
+    // put [old] back after its replacement [failed] didn't come up, so a bad jar costs a pause, not the module
+    private fun rollback(old: ModuleRoute, failed: ModuleRoute, exported: List<ServiceRegistry.Export>) {
+        synchronized(routesLock) {
+            if (routes[old.name] === failed) routes = routes.with(old)
+        }
+        failed.bulkhead.close()
+        try {
+            failed.module.stop()
+        } catch (_: Exception) {
+            // it may never have started
+        }
+        services.withdraw(failed.module)
+        ModuleSandbox.unregisterModule(failed.module)
+
+        ModuleSandbox.registerModule(old.module)
+        services.restore(exported)
+        old.bulkhead.open()
+        try {
+            old.module.start()
+            logger.print("Kept the old ${old.name} running", ContextLogger.LogType.WARNING)
+        } catch (ex: Exception) {
+            logger.print("Old module ${old.name} failed to restart after the reload failed: ${ex.message}", true)
+        }
+    }
+
+    /**
+     * Make [implementation] callable by other modules through [service]. Each interface can have one
+     * provider; [provider] may re-export to replace its own implementation.
+     */
+    fun <T : Any> exportService(provider: AbstractModule, service: Class<T>, implementation: T) {
+        services.export(provider, service, implementation)
+        logger.print("Module ${provider.name} exports ${service.name}", ContextLogger.LogType.BASIC)
+    }
+
+    /**
+     * In-process handle on another module's exported [service], or null if no module exports it.
+     * Calls run on the caller's thread with no serialization; they are counted in the provider's metrics.
+     */
+    fun <T : Any> getService(service: Class<T>): T? = services.lookup(service)
+
+    /** Interface names of the services [module] exports. */
+    fun servicesOf(module: AbstractModule): List<String> = services.exportedBy(module)
+
+    fun listModules(): List<String> = routes.modules.keys.toList()
+    fun getModules(): Map<String, AbstractModule> = routes.modules
+    fun getRoute(name: String): ModuleRoute? = routes[name]
+
+    /**
+     * Attach a fresh [ConnectionContext] to a newly opened connection. Client connections get an [Outbox]
+     * when the [listener] that owns the socket is passed, so their writes can be coalesced and bounded.
+     */
+    @JvmOverloads
+    fun connectionOpened(
+        conn: WebSocket,
+        encoding: WireEncoding = WireEncoding.JSON,
+        session: String? = null,
+        peer: String? = null,
+        listener: WebSocketListener? = null
+    ): ConnectionContext {
+        val context = ConnectionContext(executor.newLane(), encoding, session ?: ConnectionContext.issueSession(), peer)
+        if (listener != null && peer == null) {
+            val outbox = Outbox(
+                conn, listener, config.outboxMaxBytes, config.outboxCoalesceBytes, config.slowConsumerPolicy,
+                outboundMetrics
+            ) { flush -> timers.schedule(flush, COALESCE_DELAY_MICROS, TimeUnit.MICROSECONDS) }
+            context.outbox = outbox
+            outboxes.add(outbox)
+        }
+        conn.setAttachment(context)
+        return context
+    }
+
+    /** Outboxes of the client connections currently open. */
+    fun outboxes(): Collection<Outbox> = outboxes
+
+    /**
+     * Drop everything the dispatcher holds for a closed connection, currently its topic subscriptions.
+     */
+    fun connectionClosed(conn: WebSocket) {
+        val context = ConnectionContext.of(conn) ?: return
+        context.outbox?.let { outboxes.remove(it) }
+        if (context.peer != null) {
+            cluster?.linkClosed(conn)
+            return
+        }
+        topics.unsubscribeAll(conn, context)
+        transfers.connectionClosed(conn)
+    }
+
+    /**
+     * Turn on cluster mode, see [ClusterNode]. Call before the listener starts, then [ClusterNode.start].
+     */
+    fun enableCluster(): ClusterNode {
+        val node = ClusterNode(this, config)
+        cluster = node
+        return node
+    }
+
+    /**
+     * Handle a connection opened on [ClusterNode.PATH]. False if it isn't a valid cluster link
+     * (or cluster mode is off), in which case the caller should close it.
+     */
+    fun clusterLinkOpened(conn: WebSocket, handshake: ClientHandshake): Boolean =
+        cluster?.accept(conn, handshake) ?: false
+
+    /** The cluster node, or null when running standalone. */
+    fun getCluster(): ClusterNode? = cluster
+
+    /**
+     * Push [event] to every connection subscribed to [topic], as an `EVENT` response whose id is the topic.
+     * The event is serialized once per wire encoding and every subscriber's frame shares those bytes.
+     * Returns the number of connections it was sent to.
+     */
+    fun publish(topic: String, event: MessageValue<*>): Int {
+        val subscribers = topics.subscribers(topic)
+        if (subscribers.isEmpty()) return 0
+
+        val response = Response(MessageType.EVENT, event, Response.ResponseStatus.OK)
+        response.id = topic
+        var json: ByteArray? = null
+        var binary: ByteArray? = null
+        var sent = 0
+        for (conn in subscribers) {
+            if (!conn.isOpen) continue
+            try {
+                if (ConnectionContext.of(conn)?.encoding == WireEncoding.BINARY) {
+                    val bytes = binary ?: BinaryMessageCodec.encodeResponse(response).also { binary = it }
+                    sendEncoded(conn, ByteBuffer.wrap(bytes), WireEncoding.BINARY)
+                } else {
+                    val bytes = json ?: MAPPER.writeValueAsBytes(response).also { json = it }
+                    sendEncoded(conn, ByteBuffer.wrap(bytes), WireEncoding.JSON)
+                }
+                sent++
+            } catch (_: WebsocketNotConnectedException) {
+                // closed between the isOpen check and the send, onClose cleans up its subscriptions
+            }
+        }
+        return sent
+    }
+
+    /** Topics that currently have at least one subscriber. */
+    fun topicNames(): Set<String> = topics.topicNames()
+
+    /**
+     * Queue a decoded text frame on its connection's lane. Frames from the same connection are handled
+     * in arrival order, frames from different connections run concurrently on the dispatch executor,
+     * so a slow handler only holds up its own client and never the websocket decoder thread.
+     */
+    fun submit(conn: WebSocket, requestJson: String) {
+        if (ConnectionContext.of(conn)?.peer != null) return // cluster links only carry binary frames
+        // chars, a lower bound on the UTF-8 size; the envelope's exact size is checked against the module later
+        enqueue(conn, requestJson.length) { RequestEnvelope.parse(requestJson) }
+    }
+
+    /**
+     * Queue a decoded binary frame, see [submit].
+     */
+    fun submit(conn: WebSocket, frame: ByteBuffer) {
+        if (ConnectionContext.of(conn)?.peer != null) {
+            cluster?.receive(conn, frame)
+            return
+        }
+        if (BinaryMessageCodec.isChunkFrame(frame)) {
+            // file data, written on the lane so chunks land in the order they were sent; refused here,
+            // before it takes up memory in the lane's queue, if the client is past its window
+            if (!transfers.admit(conn, frame)) return
+            val context = ConnectionContext.of(conn) ?: connectionOpened(conn)
+            context.lane.submit { transfers.receive(conn, frame) }
+            return
+        }
+        enqueue(conn, frame.remaining()) { RequestEnvelope.parse(frame) }
+    }
+
+    private inline fun enqueue(conn: WebSocket, size: Int, crossinline parse: () -> RequestEnvelope) {
+        val context = ConnectionContext.of(conn) ?: connectionOpened(conn)
+        context.lane.submit {
+            val outbox = context.outbox
+            // PAUSE policy: leave its requests queued until the client reads what it already has
+            if (outbox != null && !outbox.awaitWritable(config.outboxPauseMs)) {
+                outbox.disconnect()
+                return@submit
+            }
+            // too large for any module: refuse without parsing it at all
+            val limit = maxOf(routes.maxRequestBytes, config.maxRequestBytes)
+            if (size > limit) {
+                reply(conn, Response.error("Request of $size bytes exceeds the limit of $limit bytes"), null)
+                oversized(conn)
+                return@submit
+            }
+            try {
+                dispatch(conn, parse())
+            } catch (ex: Exception) {
+                logger.print("Dispatch failed for ${conn.remoteSocketAddress}: ${ex.message}", true)
+                if (conn.isOpen) {
+                    reply(conn, Response.error("Dispatch failed: ${ex.message}"), null)
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the dispatch executor, waiting up to [timeout] for running handlers.
+     */
+    @JvmOverloads
+    fun shutdown(timeout: Duration = Duration.ofSeconds(5)) {
+        cluster?.stop()
+        timers.shutdownNow()
+        if (!executor.shutdown(timeout)) {
+            logger.print("Dispatch executor did not terminate within ${timeout.toMillis()}ms", ContextLogger.LogType.WARNING)
+        }
+    }
+
+    /**
+     * Dispatch incoming request to its target module, replying on `conn`.
+     */
+    fun dispatch(conn: WebSocket, requestJson: String) = dispatch(conn, RequestEnvelope.parse(requestJson))
+
+    /**
+     * Dispatch a parsed request to its target module.
+     * Only the envelope is read up front, the payload is left to the module to parse if it needs it.
+     */
+    fun dispatch(conn: WebSocket, envelope: RequestEnvelope) {
+        if (envelope.isBatch) {
+            respond(conn, envelope, dispatchBatch(envelope), null, false)
+            return
+        }
+        // frames without a module address that (un)subscribe are handled by the dispatcher itself
+        if (envelope.moduleAddress == null && (envelope.type == SUBSCRIBE || envelope.type == UNSUBSCRIBE)) {
+            reply(conn, subscription(conn, envelope), null)
+            return
+        }
+        if (envelope.moduleAddress == null && envelope.type in FileTransfers.TYPES) {
+            transfers.handle(conn, envelope)
+            return
+        }
+
+        val targetModule = envelope.moduleAddress ?: return
+        val route = routes[targetModule]
+
+        if (route == null) {
+            // not hosted here, another cluster node may have it
+            if (cluster?.forward(conn, envelope) != true) reply(conn, missingModule(envelope), null)
+            return
+        }
+
+        val module = route.module
+        sizeViolation(route, envelope)?.let { refusal ->
+            reply(conn, refusal, module)
+            oversized(conn)
+            return
+        }
+        // 🚀 If module is a server-type, forward to its internal handler
+        if (module is AbstractServerModule) {
+            dispatchToServer(conn, route, envelope)
+            return
+        }
+
+        val ackPending = envelope.type?.let { route.handlers[it] }?.ackPending ?: false
+        val context = ConnectionContext.of(conn)
+        val session = context?.session
+        val lane = context?.lane
+        if (idempotency == null || session == null || envelope.id == null) {
+            // Send reply back to the originating client connection
+            respond(conn, envelope, execute(route, envelope, lane = lane), module, ackPending)
+            return
+        }
+
+        val key = IdempotencyCache.key(session, targetModule, envelope.id)
+        val (entry, owner) = idempotency.claim(key)
+        if (!owner) {
+            // a retry: replay the stored response, or wait on the execution still in flight
+            if (entry.result.isDone) replay(conn, entry, module)
+            else respond(conn, envelope, entry.result, module, false)
+            return
+        }
+
+        execute(route, envelope, lane = lane).whenComplete { response, _ ->
+            // failures aren't kept, a retry of those should really run again
+            if (response.status == Response.ResponseStatus.FAILED) idempotency.remove(key, entry)
+            entry.result.complete(response)
+        }
+        respond(conn, envelope, entry.result, module, ackPending)
+    }
+
+    private fun dispatchToServer(conn: WebSocket, route: ModuleRoute, envelope: RequestEnvelope) {
+        val module = route.module as AbstractServerModule
+        route.reloading?.let { buffer ->
+            if (!buffer.hold(ConnectionContext.of(conn)?.lane) { next -> dispatchToServer(conn, next, envelope) }) reply(conn, reloading(route, envelope), module)
+            return
+        }
+        countReceived(module, envelope)
+        val breaker = route.breaker
+        val permit = breaker?.tryAcquire() ?: 0
+        if (permit < 0) {
+            reply(conn, breaker!!.rejected(envelope), module)
+            return
+        }
+        val deadline = deadlineOf(envelope)
+        val bulkhead = route.bulkhead
+        if (!bulkhead.tryEnter(deadline)) {
+            breaker?.release(permit)
+            reply(conn, refused(route, envelope, deadline), module)
+            return
+        }
+        val started = System.nanoTime()
+        var ran = false
+        var failed = true
+        try {
+            // a reload may have started between the check above and getting the slot
+            route.reloading?.let { buffer ->
+                if (!buffer.hold(ConnectionContext.of(conn)?.lane) { next -> dispatchToServer(conn, next, envelope) }) reply(conn, reloading(route, envelope), module)
+                return
+            }
+            ran = true
+            // server modules answer on the connection themselves, so the deadline is only made visible to them
+            Deadline.within(deadline) { module.handleDispatchedRequest(conn, envelope) }
+            failed = false
+        } finally {
+            val latency = System.nanoTime() - started
+            bulkhead.exit(if (ran) latency else -1)
+            if (ran) breaker?.onResult(permit, failed, latency) else breaker?.release(permit)
+        }
+    }
+
+    private fun replay(conn: WebSocket, entry: IdempotencyCache.Entry, module: AbstractModule) {
+        val encoding = ConnectionContext.of(conn)?.encoding ?: WireEncoding.JSON
+        val bytes = entry.frame(encoding) { encode(it, encoding) }
+        sendEncoded(conn, ByteBuffer.wrap(bytes), encoding)
+        module.metrics.addBytesSent(bytes.size.toLong())
+    }
+
+    /**
+     * Send an already serialized response. [payload] is only read, so callers can share one buffer's
+     * bytes between connections by passing a fresh wrap or duplicate each time.
+     */
+    internal fun sendEncoded(conn: WebSocket, payload: ByteBuffer, encoding: WireEncoding) {
+        val frame = if (encoding == WireEncoding.BINARY) BinaryFrame() else TextFrame()
+        frame.setPayload(payload)
+        frame.isFin = true
+        send(conn, frame)
+    }
+
+    /**
+     * Send through the connection's [Outbox] if it has one. Frames a slow client's outbox drops are
+     * counted in [outboundMetrics], not reported to the caller.
+     */
+    private fun send(conn: WebSocket, frame: Framedata) {
+        val outbox = ConnectionContext.of(conn)?.outbox
+        if (outbox != null) outbox.send(frame) else conn.sendFrame(frame)
     }
 
-    fun listModules(): List<String> = modules.keys.toList()
-    fun getModules(): Map<String, AbstractModule> = modules
+    /**
+     * Send the response once [result] completes. Synchronous handlers are already done and answered here;
+     * for the rest a `PENDING` response goes out on the same id, straight away if [ackNow] or once the
+     * work has taken longer than [ServerConfig.pendingAfterMs], and the final response follows it.
+     */
+    private fun respond(
+        conn: WebSocket,
+        envelope: RequestEnvelope,
+        result: CompletableFuture<Response<*>>,
+        module: AbstractModule?,
+        ackNow: Boolean
+    ) {
+        if (result.isDone) {
+            reply(conn, result.join(), module)
+            return
+        }
+
+        // guards the PENDING ack so it can never overtake the final response
+        val state = PendingState()
+        val ack = Runnable {
+            synchronized(state) {
+                if (!state.done && conn.isOpen) {
+                    reply(conn, pending(envelope), module)
+                }
+            }
+        }
+        val scheduled = when {
+            ackNow -> { ack.run(); null }
+            config.pendingAfterMs >= 0 -> timers.schedule(ack, config.pendingAfterMs, TimeUnit.MILLISECONDS)
+            else -> null
+        }
+
+        result.whenComplete { response, _ ->
+            scheduled?.cancel(false)
+            synchronized(state) {
+                state.done = true
+                if (conn.isOpen) reply(conn, response, module)
+            }
+        }
+    }
+
+    private class PendingState {
+        var done = false
+    }
 
     /**
-     * Dispatch incoming request to its target module.
+     * Run one request against a regular module. The future always completes normally, failures are turned
+     * into error responses carrying the request's id. The bulkhead slot is held until the handler finishes.
+     *
+     * If the request has a deadline (its own or [inherited] from a batch, whichever is earlier) it is
+     * [Deadline.current] while the handler runs. Once it passes the future completes with a timeout error,
+     * a synchronous handler still running is interrupted and an async handler's future is cancelled.
+     * Handlers throwing, timing out or running slow feed the route's [CircuitBreaker]; while it is open the
+     * request is refused without queueing.
      */
-    fun dispatch(conn: org.java_websocket.WebSocket, requestJson: String) {
-        val node = MAPPER.readTree(requestJson)
-        val nullableTargetModule = node.get("moduleAddress")
+    private fun execute(
+        route: ModuleRoute,
+        envelope: RequestEnvelope,
+        inherited: Deadline? = null,
+        lane: SerialLane? = null
+    ): CompletableFuture<Response<*>> {
+        route.reloading?.let { return held(it, route, envelope, inherited, lane) }
+        val module = route.module
+        countReceived(module, envelope)
 
-        if (nullableTargetModule != null) {
-            val targetModule = nullableTargetModule.asText()
-            val module = modules[targetModule]
+        // an open breaker answers before the request can queue for a module that is failing anyway
+        val breaker = route.breaker
+        val permit = breaker?.tryAcquire() ?: 0
+        if (permit < 0) return CompletableFuture.completedFuture(breaker!!.rejected(envelope))
 
-            if (module != null) {
-                module.metrics.messagesHandled++
-                module.metrics.bytesReceived += requestJson.toByteArray().size.toLong()
+        val deadline = deadlineOf(envelope)?.earliest(inherited) ?: inherited
+        val bulkhead = route.bulkhead
+        if (!bulkhead.tryEnter(deadline)) {
+            breaker?.release(permit)
+            return CompletableFuture.completedFuture(refused(route, envelope, deadline))
+        }
+        // a reload may have started between the check above and getting the slot, see reloadModule
+        route.reloading?.let {
+            bulkhead.exit()
+            breaker?.release(permit)
+            return held(it, route, envelope, inherited, lane)
+        }
+        if (deadline?.isExpired() == true) {
+            bulkhead.exit()
+            breaker?.release(permit)
+            module.metrics.addTimedOut(1)
+            return CompletableFuture.completedFuture(timedOut(envelope, module))
+        }
+
+        val started = System.nanoTime()
+        val result = CompletableFuture<Response<*>>()
+        val watchdog = deadline?.let { Watchdog(Thread.currentThread()) }
+        val timer = deadline?.let {
+            timers.schedule({
+                // answer first, so the handler failing from the interrupt or cancellation can't beat the timeout
+                if (result.complete(timedOut(envelope, module))) {
+                    module.metrics.addTimedOut(1)
+                    logger.print("Request ${envelope.responseId()} to ${module.name} passed its deadline", ContextLogger.LogType.WARNING)
+                }
+                watchdog!!.expire()
+            }, it.remainingNanos, TimeUnit.NANOSECONDS)
+        }
+
+        val handler = envelope.type?.let { route.handlers[it] }
+        val handled: CompletableFuture<Response<MapValue<MessageValue<*>>>?> = try {
+            Deadline.within(deadline) {
+                when {
+                    handler != null -> handler.invoke(envelope)
+                    else -> module.handleRequestAsync(envelope)
+                        ?: CompletableFuture.completedFuture(module.handleRequest(envelope))
+                }
+            }
+        } catch (ex: Throwable) {
+            // Errors too: the slot, breaker permit and deadline timer are only given back once handled completes
+            CompletableFuture.failedFuture(ex)
+        }
+        watchdog?.returned(handled)
+
+        handled.whenComplete { response, error ->
+            timer?.cancel(false)
+            // requests that ran out of time tell the adaptive limit the module is overloaded
+            val dropped = result.isDone || (error != null && deadline?.isExpired() == true)
+            val latency = System.nanoTime() - started
+            bulkhead.exit(latency, dropped)
+            breaker?.onResult(permit, dropped || error != null, latency)
+            if (result.isDone) return@whenComplete // already answered with a timeout
+            val built: Response<*> = when {
+                // e.g. a DAO noticing the deadline a moment before the timer did
+                error != null && deadline?.isExpired() == true -> {
+                    module.metrics.addTimedOut(1)
+                    timedOut(envelope, module)
+                }
+                error != null -> {
+                    val cause = (error as? CompletionException)?.cause ?: error
+                    logger.print("Request ${envelope.responseId()} to ${module.name} failed: ${cause.message}", true)
+                    Response.error("Dispatch failed: ${cause.message}")
+                }
+                response != null -> response
+                handler == null && route.handlers.isNotEmpty() ->
+                    Response.error("Module ${module.name} has no handler for type `${envelope.type}`")
+                else -> Response.error("Unexpected Module Error occurred: ${module.name}")
+            }
+            built.id = envelope.responseId()
+            result.complete(built)
+        }
+        return result
+    }
+
+    // park a request for a module being reloaded, it runs against whichever route the reload ends with,
+    // back on [lane] if it came from a connection
+    private fun held(
+        buffer: ReloadBuffer,
+        route: ModuleRoute,
+        envelope: RequestEnvelope,
+        inherited: Deadline?,
+        lane: SerialLane?
+    ): CompletableFuture<Response<*>> {
+        val result = CompletableFuture<Response<*>>()
+        val parked = buffer.hold(lane) { next ->
+            execute(next, envelope, inherited, lane).whenComplete { response, _ -> result.complete(response) }
+        }
+        if (!parked) result.complete(reloading(route, envelope))
+        return result
+    }
 
-                // 🚀 If module is a server-type, forward to its internal handler
-                when (module) {
-                    is AbstractServerModule -> {
-                        module.handleDispatchedRequest(conn, node)
-                    }
+    private fun deadlineOf(envelope: RequestEnvelope): Deadline? =
+        envelope.deadline(config.requestTimeoutMs, config.maxRequestTimeoutMs)
 
-                    else -> {
-                        val response = module.handleRequest(node)
-                        if (response != null) {
-                            response.id = node.get("id")?.asText() ?: "non-specified"
-                            val responseJson = MAPPER.writeValueAsString(response)
-                            module.metrics.bytesSent += responseJson.toByteArray().size.toLong()
+    /**
+     * Stops a handler whose deadline passed: interrupts the thread running it if it hasn't returned yet,
+     * and cancels the future it returned, which gives its bulkhead slot back.
+     */
+    private class Watchdog(private val thread: Thread) {
+        private var running = true
+        private var expired = false
+        private var interrupted = false
+        private var handled: CompletableFuture<*>? = null
 
-                            // Send reply back to the originating client connection
-                            conn.send(responseJson)
-                            return
-                        } else {
-                            conn.send(MAPPER.writeValueAsString(Response.error("Unexpected Module Error occurred: $targetModule")))
-                            return
-                        }
-                    }
+        fun expire() {
+            val future = synchronized(this) {
+                expired = true
+                if (running) {
+                    interrupted = true
+                    thread.interrupt()
                 }
+                handled
+            }
+            future?.cancel(true)
+        }
+
+        /** Called on the handler's thread as soon as the handler returns. */
+        fun returned(future: CompletableFuture<*>) {
+            val (cancel, clearInterrupt) = synchronized(this) {
+                running = false
+                handled = future
+                expired to interrupted
+            }
+            // don't let our interrupt leak into whatever this thread runs next
+            if (clearInterrupt) Thread.interrupted()
+            if (cancel) future.cancel(true)
+        }
+    }
+
+    /**
+     * Run every request of a `BATCH` envelope and fold the results into one response whose payload maps
+     * each request's id (or its index, if it has none) to `{status, type, payload}`.
+     * Requests run concurrently on the dispatch executor unless the batch asks to be `sequential`;
+     * each one still goes through its module's bulkhead.
+     */
+    private fun dispatchBatch(batch: RequestEnvelope): CompletableFuture<Response<*>> {
+        val deadline = deadlineOf(batch)
+        if (batch.batchSize > config.maxBatchSize) {
+            val tooLarge = Response.error("Batch of ${batch.batchSize} requests exceeds the limit of ${config.maxBatchSize}")
+            tooLarge.id = batch.responseId()
+            return CompletableFuture.completedFuture(tooLarge)
+        }
+
+        val requests = batch.requests
+        val keys = requests.mapIndexed { i, request -> request.id ?: i.toString() }
+        if (keys.toSet().size != keys.size) {
+            val duplicate = Response.error("Batch request ids must be unique")
+            duplicate.id = batch.responseId()
+            return CompletableFuture.completedFuture(duplicate)
+        }
+
+        val results = if (batch.sequential) {
+            // each request starts only once the previous one, async or not, has finished
+            var chain = CompletableFuture.completedFuture<List<Response<*>>>(emptyList())
+            for (request in requests) {
+                chain = chain.thenCompose { done -> executeBatched(request, deadline).thenApply { done + it } }
+            }
+            chain
+        } else {
+            val futures = executor.runAll(requests.map { request -> { executeBatched(request, deadline) } })
+            CompletableFuture.allOf(*futures.toTypedArray()).thenApply { futures.map { it.join() } }
+        }
+
+        return results.thenApply { responses ->
+            val entries = LinkedHashMap<String, MessageValue<*>>(keys.size * 2)
+            for (i in keys.indices) {
+                entries[keys[i]] = batchEntry(responses[i])
+            }
+            val aggregated: Response<*> = Response(MessageType.BATCH, MapValue(entries), Response.ResponseStatus.OK)
+            aggregated.id = batch.responseId()
+            aggregated
+        }
+    }
+
+    private fun executeBatched(request: RequestEnvelope, deadline: Deadline?): CompletableFuture<Response<*>> {
+        val route = request.moduleAddress?.let { routes[it] }
+            ?: return CompletableFuture.completedFuture(missingModule(request))
+        if (request.isBatch || route.module is AbstractServerModule) {
+            val refused = Response.error("Module ${route.name} can't be called from a batch")
+            refused.id = request.responseId()
+            return CompletableFuture.completedFuture(refused)
+        }
+        sizeViolation(route, request)?.let { return CompletableFuture.completedFuture(it) }
+        return execute(route, request, deadline)
+    }
+
+    private fun subscription(conn: WebSocket, envelope: RequestEnvelope): Response<*> {
+        val payload = envelope.payload
+        val topic = (if (payload != null && payload.isObject) payload.get("value") else payload)
+            ?.takeIf { it.isTextual }?.asText()
+        val context = ConnectionContext.of(conn)
+        val response: Response<*> = when {
+            topic.isNullOrBlank() -> Response.error("${envelope.type} needs a topic as its payload")
+            context == null -> Response.error("Connection was not opened through the dispatcher")
+            envelope.type == UNSUBSCRIBE -> {
+                topics.unsubscribe(conn, context, topic)
+                Response(null, StringValue(topic), Response.ResponseStatus.OK)
+            }
+            !topics.subscribe(conn, context, topic) ->
+                Response.error("Subscription limit of ${config.maxTopicsPerConnection} topics reached")
+            else -> Response(null, StringValue(topic), Response.ResponseStatus.OK)
+        }
+        response.id = envelope.responseId()
+        return response
+    }
+
+    /**
+     * Run a request forwarded by another cluster node on the dispatch executor. Server modules and batches
+     * aren't forwarded, they need the client's own connection.
+     */
+    internal fun executeForPeer(envelope: RequestEnvelope): CompletableFuture<Response<*>> {
+        val route = envelope.moduleAddress?.let { routes[it] }
+            ?: return CompletableFuture.completedFuture(missingModule(envelope))
+        if (envelope.isBatch || route.module is AbstractServerModule) {
+            val refused = Response.error("Module ${route.name} can't be reached through another node")
+            refused.id = envelope.responseId()
+            return CompletableFuture.completedFuture(refused)
+        }
+        sizeViolation(route, envelope)?.let { return CompletableFuture.completedFuture(it) }
+        return CompletableFuture.supplyAsync({ execute(route, envelope) }, executor).thenCompose { it }
+    }
+
+    /** [response] serialized for a connection using [encoding]. */
+    internal fun encode(response: Response<*>, encoding: WireEncoding): ByteArray =
+        if (encoding == WireEncoding.BINARY) BinaryMessageCodec.encodeResponse(response)
+        else MAPPER.writeValueAsBytes(response)
+
+    private fun pending(envelope: RequestEnvelope): Response<*> {
+        val pending = Response<MessageValue<*>>(null, null, Response.ResponseStatus.PENDING)
+        pending.id = envelope.responseId()
+        return pending
+    }
+
+    private fun batchEntry(response: Response<*>): MapValue<MessageValue<*>> {
+        val entry = LinkedHashMap<String, MessageValue<*>>(4)
+        entry["status"] = StringValue((response.status ?: Response.ResponseStatus.OK).name)
+        response.type?.let { entry["type"] = StringValue(it.name) }
+        response.payload?.let { entry["payload"] = it }
+        return MapValue(entry)
+    }
+
+    private fun missingModule(envelope: RequestEnvelope): Response<*> {
+        val missing = Response.error("No module registered at `${envelope.moduleAddress}`")
+        missing.id = envelope.responseId()
+        return missing
+    }
+
+    // why the bulkhead said no: the module is stopping, the deadline ran out while queued, or the queue was full
+    private fun refused(route: ModuleRoute, envelope: RequestEnvelope, deadline: Deadline?): Response<*> {
+        if (route.bulkhead.isClosed) {
+            val stopped = Response.error("Module ${route.name} is stopped")
+            stopped.id = envelope.responseId()
+            return stopped
+        }
+        if (deadline?.isExpired() != true) return overloaded(route, envelope)
+        route.module.metrics.addTimedOut(1)
+        return timedOut(envelope, route.module)
+    }
+
+    /**
+     * Why [envelope] is too large for [route], or null if it isn't. Only the envelope's header has been read
+     * at this point. Payloads over [ServerConfig.treeMaxBytes] are left to handlers marked `streaming`;
+     * server modules parse frames themselves and only have the overall limit.
+     */
+    private fun sizeViolation(route: ModuleRoute, envelope: RequestEnvelope): Response<*>? {
+        val reason = when {
+            envelope.size > route.maxRequestBytes ->
+                "Request of ${envelope.size} bytes exceeds the limit of ${route.maxRequestBytes} bytes for ${route.name}"
+            envelope.payloadSize > config.treeMaxBytes && route.module !is AbstractServerModule &&
+                envelope.type?.let { route.handlers[it] }?.streaming != true ->
+                "Payload is too large for `${envelope.type}` on ${route.name}, which doesn't stream its payload"
+            else -> return null
+        }
+        route.module.metrics.addOversized(1)
+        val tooLarge = Response.error(reason)
+        tooLarge.id = envelope.responseId()
+        return tooLarge
+    }
+
+    // count a refused oversized request against the connection, closing it once it has sent too many
+    private fun oversized(conn: WebSocket) {
+        val count = ConnectionContext.of(conn)?.oversizedRequests?.incrementAndGet() ?: return
+        if (config.maxOversizedPerConnection > 0 && count > config.maxOversizedPerConnection) {
+            logger.print("Closing ${conn.remoteSocketAddress} after $count oversized requests", ContextLogger.LogType.WARNING)
+            conn.close(CloseFrame.TOOBIG, "Too many oversized requests")
+        }
+    }
+
+    private fun timedOut(envelope: RequestEnvelope, module: AbstractModule): Response<*> {
+        val timedOut = Response.error("Request to ${module.name} timed out")
+        timedOut.id = envelope.responseId()
+        return timedOut
+    }
+
+    private fun reloading(route: ModuleRoute, envelope: RequestEnvelope): Response<*> {
+        val reloading = Response.error("Module ${route.name} is being reloaded, retry shortly")
+        reloading.id = envelope.responseId()
+        return reloading
+    }
+
+    private fun overloaded(route: ModuleRoute, envelope: RequestEnvelope): Response<*> {
+        val overloaded = Response.error(
+            "Module ${route.name} is overloaded (${route.bulkhead.queueLimit()} requests already queued), retry later"
+        )
+        overloaded.id = envelope.responseId()
+        return overloaded
+    }
+
+    private fun countReceived(module: AbstractModule, envelope: RequestEnvelope) {
+        module.metrics.addMessagesHandled(1)
+        module.metrics.addBytesReceived(envelope.size.toLong())
+    }
+
+    /**
+     * Encode [response] the way the connection negotiated and send it, counting the bytes against [module].
+     * The response is serialized straight into a pooled buffer; the websocket (or [Outbox]) copies it into
+     * the outgoing frame while sending, so the buffer goes back to the pool as soon as that returns.
+     */
+    private fun reply(conn: WebSocket, response: Response<*>, module: AbstractModule?) {
+        val out = buffers.openStream()
+        try {
+            val frame = if (ConnectionContext.of(conn)?.encoding == WireEncoding.BINARY) {
+                BinaryMessageCodec.writeResponse(response, out)
+                BinaryFrame()
+            } else {
+                MAPPER.writeValue(out, response)
+                TextFrame()
             }
+            frame.setPayload(out.frame())
+            frame.isFin = true
+            send(conn, frame)
+            module?.metrics?.addBytesSent(out.size.toLong())
+        } finally {
+            out.release()
         }
     }
+
+    companion object {
+        /** Request types (with no `moduleAddress`) that join or leave the topic given as payload. */
+        const val SUBSCRIBE = "SUBSCRIBE"
+        const val UNSUBSCRIBE = "UNSUBSCRIBE"
+
+        // how long a busy connection's outbox collects frames before writing them together
+        private const val COALESCE_DELAY_MICROS = 500L
+    }
 }
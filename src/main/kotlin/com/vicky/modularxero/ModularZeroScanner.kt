@@ -26,15 +26,35 @@ data class ModuleDescriptor(
     val mainClass: String,
     val moduleName: String,
     val embeddedLibs: List<String> = emptyList(),
-    val mavenDeps: List<String> = emptyList()
-)
+    val mavenDeps: List<String> = emptyList(),
+    // bulkhead: how many requests may run in the module at once, and how many may wait for a slot
+    val maxConcurrency: Int = DEFAULT_MAX_CONCURRENCY,
+    val maxQueue: Int = DEFAULT_MAX_QUEUE,
+    // largest request frame in bytes, 0 for the server's mox.request.max_bytes
+    val maxRequestBytes: Int = 0
+) {
+    companion object {
+        const val DEFAULT_MAX_CONCURRENCY = 64
+        const val DEFAULT_MAX_QUEUE = 256
+
+        /** Descriptor used for modules registered in code rather than loaded from a jar. */
+        @JvmStatic
+        fun forBuiltIn(module: AbstractModule): ModuleDescriptor =
+            ModuleDescriptor(module.javaClass.name, module.name)
+    }
+}
 
 private const val SANDBOX_INTERNAL = "com/vicky/modularxero/sandbox/ModuleSandbox"
 private const val STRING_INTERNAL = "java/lang/String"
 private const val CONTEXT_LOGGER_INTERNAL = "com/vicky/modularxero/common/Logger/ContextLogger"
 
 // simple ModuleClassLoader (per-module loader)
-class ModuleClassLoader(urls: Array<URL>, parent: ClassLoader, val moduleName: String) : URLClassLoader(urls, parent) {
+class ModuleClassLoader @JvmOverloads constructor(
+    urls: Array<URL>,
+    parent: ClassLoader,
+    val moduleName: String,
+    val descriptor: ModuleDescriptor? = null
+) : URLClassLoader(urls, parent) {
     val logger = ContextLogger(ContextLogger.ContextType.SYSTEM, "MODULE-CLASS-LOADER")
 
     init {
@@ -410,6 +430,9 @@ class ModularZeroScanner(
             var name: String? = null
             var embedded = mutableListOf<String>()
             var maven = mutableListOf<String>()
+            var maxConcurrency = ModuleDescriptor.DEFAULT_MAX_CONCURRENCY
+            var maxQueue = ModuleDescriptor.DEFAULT_MAX_QUEUE
+            var maxRequestBytes = 0
 
             // very small parser — supports single-line csv style or indented lists
             var currentlyOn = ""
@@ -419,6 +442,12 @@ class ModularZeroScanner(
                 when {
                     line.startsWith("main:") -> main = line.substringAfter("main:").trim()
                     line.startsWith("module_name:") -> name = line.substringAfter("module_name:").trim()
+                    line.startsWith("max_concurrency:") ->
+                        maxConcurrency = line.substringAfter("max_concurrency:").trim().toIntOrNull() ?: maxConcurrency
+                    line.startsWith("max_queue:") ->
+                        maxQueue = line.substringAfter("max_queue:").trim().toIntOrNull() ?: maxQueue
+                    line.startsWith("max_request_bytes:") ->
+                        maxRequestBytes = line.substringAfter("max_request_bytes:").trim().toIntOrNull() ?: maxRequestBytes
                     line.startsWith("embeddedLibs:") -> {
                         val rest = line.substringAfter("embeddedLibs:").trim()
                         currentlyOn = "e"
@@ -441,18 +470,21 @@ class ModularZeroScanner(
 
             if (main == null) return null
             if (name == null) name = "unknown"
-            return ModuleDescriptor(main, name, embedded, maven)
+            return ModuleDescriptor(main, name, embedded, maven, maxConcurrency, maxQueue, maxRequestBytes)
         }
     }
 
-    /** Extract embedded jars referenced inside the module jar to a destination folder. Returns list of extracted files. */
-    private fun extractEmbeddedJars(moduleJar: File, embeddedPaths: List<String>, destDir: File): List<File> {
+    /**
+     * Extract embedded jars referenced inside the module jar to a destination folder. Returns list of extracted files.
+     * A non-empty [tag] goes into the file names, so a reload doesn't overwrite jars the old loader still has open.
+     */
+    private fun extractEmbeddedJars(moduleJar: File, embeddedPaths: List<String>, destDir: File, tag: String = ""): List<File> {
         if (embeddedPaths.isEmpty()) return emptyList()
         val extracted = mutableListOf<File>()
         JarFile(moduleJar).use { jf ->
             for (path in embeddedPaths) {
                 val entry = jf.getJarEntry(path) ?: continue
-                val out = File(destDir, "${moduleJar.nameWithoutExtension}_${File(path).name}")
+                val out = File(destDir, "${moduleJar.nameWithoutExtension}${tag}_${File(path).name}")
                 jf.getInputStream(entry).use { inp ->
                     FileOutputStream(out).use { outS ->
                         inp.copyTo(outS)
@@ -514,44 +546,60 @@ class ModularZeroScanner(
         val jars = folder.listFiles { f ->
             logger.print("Found possible (jar-able) entry: ${f.name}")
             f.extension.equals("jar", ignoreCase = true) } ?: return results
-        val parent = ModularZeroScanner::class.java.classLoader // app classloader as parent
 
-        jars@for (jar in jars) {
-            try {
-                val desc = readModuleDescriptor(jar)
-                if (desc == null) {
-                    logger.print("No module.yml in ${jar.name}, skipping.", LogType.WARNING)
-                    continue@jars
-                }
+        for (jar in jars) {
+            prepareModule(jar)?.let { results += it }
+        }
+        return results
+    }
 
-                logger.print("Found module descriptor in ${jar.name}: main=${desc.mainClass}", LogType.SUCCESS)
+    /**
+     * The jar in the modules folder whose module.yml declares [moduleName], if any.
+     */
+    fun findModuleJar(moduleName: String): File? =
+        folder.listFiles { f -> f.extension.equals("jar", ignoreCase = true) }
+            ?.firstOrNull { jar -> runCatching { readModuleDescriptor(jar)?.moduleName == moduleName }.getOrDefault(false) }
 
-                // extract any embedded jars inside the module
-                val extracted = extractEmbeddedJars(jar, desc.embeddedLibs, libsDir)
+    /**
+     * Load one module jar into its own [ModuleClassLoader] and load its main class, or null (logged) if it
+     * isn't a valid module. With [reload] the embedded libs are extracted under fresh names, see [extractEmbeddedJars].
+     */
+    fun prepareModule(jar: File, reload: Boolean = false): Triple<File, ModuleClassLoader, Class<*>>? {
+        val parent = ModularZeroScanner::class.java.classLoader // app classloader as parent
+        try {
+            val desc = readModuleDescriptor(jar)
+            if (desc == null) {
+                logger.print("No module.yml in ${jar.name}, skipping.", LogType.WARNING)
+                return null
+            }
 
-                // download any maven deps (non-transitive)
-                val downloaded = desc.mavenDeps.mapNotNull { coord -> downloadFromMavenCentral(coord, libsDir) }
+            logger.print("Found module descriptor in ${jar.name}: main=${desc.mainClass}", LogType.SUCCESS)
 
-                // Prepare list of URLs: the module jar itself + extracted + downloaded
-                val urls = mutableListOf(jar.toURI().toURL())
-                urls += extracted.map { it.toURI().toURL() }
-                urls += downloaded.map { it.toURI().toURL() }
+            // extract any embedded jars inside the module
+            val extracted = extractEmbeddedJars(jar, desc.embeddedLibs, libsDir, if (reload) "-${System.currentTimeMillis()}" else "")
 
-                // Create per-module loader (isolated), parent = app classloader (so module sees API)
-                val loader = ModuleClassLoader(urls.toTypedArray(), parent, desc.moduleName)
+            // download any maven deps (non-transitive)
+            val downloaded = desc.mavenDeps.mapNotNull { coord -> downloadFromMavenCentral(coord, libsDir) }
 
-                // Load only the declared main class using module loader
-                val moduleClazz = loader.loadClass(desc.mainClass)
+            // Prepare list of URLs: the module jar itself + extracted + downloaded
+            val urls = mutableListOf(jar.toURI().toURL())
+            urls += extracted.map { it.toURI().toURL() }
+            urls += downloaded.map { it.toURI().toURL() }
 
-                // sanity check: ensure Module interface assignable from it (if you have Module interface)
-                // if (!Module::class.java.isAssignableFrom(moduleClazz)) { ... }
+            // Create per-module loader (isolated), parent = app classloader (so module sees API)
+            val loader = ModuleClassLoader(urls.toTypedArray(), parent, desc.moduleName, desc)
 
-                results += Triple(jar, loader, moduleClazz)
-            } catch (t: Throwable) {
-                logger.print("Failed to prepare module ${jar.name}: ${t.message}", true)
-            }
+            // Load only the declared main class using module loader
+            val moduleClazz = loader.loadClass(desc.mainClass)
+
+            // sanity check: ensure Module interface assignable from it (if you have Module interface)
+            // if (!Module::class.java.isAssignableFrom(moduleClazz)) { ... }
+
+            return Triple(jar, loader, moduleClazz)
+        } catch (t: Throwable) {
+            logger.print("Failed to prepare module ${jar.name}: ${t.message}", true)
+            return null
         }
-        return results
     }
 }
 
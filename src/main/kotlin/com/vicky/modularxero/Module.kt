@@ -3,12 +3,17 @@ package com.vicky.modularxero
 import com.fasterxml.jackson.databind.JsonNode
 import com.vicky.modularxero.DeafenCommand.Companion.isDeafened
 import com.vicky.modularxero.common.Logger.ContextLogger
+import com.vicky.modularxero.common.RequestEnvelope
 import com.vicky.modularxero.common.Response
 import com.vicky.modularxero.common.values.MapValue
 import com.vicky.modularxero.common.values.MessageValue
 import org.hibernate.SessionFactory
+import org.java_websocket.drafts.Draft
 import org.java_websocket.server.WebSocketServer
 import org.jetbrains.annotations.Nullable
+import java.io.File
+import java.lang.invoke.MethodHandles
+import java.util.concurrent.CompletableFuture
 
 const val DataFolderName: String = "modules-data"
 
@@ -46,7 +51,38 @@ internal interface Module {
     fun start()
     fun stop()
     fun pause()
-    @Nullable fun handleRequest(request: JsonNode): Response<MapValue<MessageValue<*>>>?
+    /**
+     * Fallback for request types that have no `@MessageHandler` method. Defaults to null, which the
+     * dispatcher reports back to the client as an unhandled type.
+     */
+    @Nullable fun handleRequest(request: JsonNode): Response<MapValue<MessageValue<*>>>? = null
+
+    /**
+     * Envelope-based fallback used by the dispatcher when no `@MessageHandler` matches. The envelope
+     * parses its payload lazily, so override this rather than walking the whole frame.
+     * Defaults to materializing the full tree and calling [handleRequest] with it.
+     */
+    @Nullable fun handleRequest(envelope: RequestEnvelope): Response<MapValue<MessageValue<*>>>? =
+        handleRequest(envelope.node)
+
+    /**
+     * Asynchronous fallback, tried before [handleRequest] when no `@MessageHandler` matches. Return a future
+     * to release the dispatch thread while the work runs; the client gets a `PENDING` response if it takes
+     * long and the final one, on the same id, when the future completes. Defaults to null (synchronous).
+     */
+    @Nullable fun handleRequestAsync(envelope: RequestEnvelope): CompletableFuture<Response<MapValue<MessageValue<*>>>?>? = null
+
+    /**
+     * Whether a client may upload [size] bytes to [path] (relative to this module's sandbox directory),
+     * see [FileTransfers]. Defaults to false, modules opt in.
+     */
+    fun acceptUpload(path: String, size: Long): Boolean = false
+
+    /** Called on a dispatch thread once an upload accepted by [acceptUpload] is complete at [file]. */
+    fun uploadCompleted(path: String, file: File) {}
+
+    /** Whether a client may download [path] from this module's sandbox directory. Defaults to false. */
+    fun allowDownload(path: String): Boolean = false
     fun getModuleAnnotatedClasses() : List<Class<*>>
 
     /**
@@ -61,6 +97,12 @@ internal interface Module {
     fun getCommands(): List<Any> = emptyList()
     fun setSessionFactory(factory: SessionFactory)
     fun getLogger(): ContextLogger
+
+    /**
+     * Lookup used to bind this module's `@MessageHandler` methods. Modules loaded from jars should
+     * return `MethodHandles.lookup()` so handlers are bound as direct lambdas inside their own class loader.
+     */
+    fun handlerLookup(): MethodHandles.Lookup? = null
 }
 
 /**
@@ -76,6 +118,10 @@ constructor(private val serverName: String,
 
     // server instance managed by this helper
     private var serverInstance: WebSocketServer? = null
+    private var mounted = false
+
+    /** permessage-deflate totals for this module's server, when it uses [serverDrafts]. */
+    val compressionMetrics = CompressionMetrics()
 
     override fun init(dispatcher: ModularXeroDispatcher) {
         this.dispatcher = dispatcher
@@ -87,35 +133,77 @@ constructor(private val serverName: String,
      */
     protected abstract fun createServer(dispatcher: ModularXeroDispatcher, portHint: Int): WebSocketServer?
 
+    /**
+     * Drafts for [createServer] with the same subprotocols and compression settings as the main listener,
+     * e.g. `object : WebSocketServer(InetSocketAddress(port), serverDrafts()) { ... }`.
+     */
+    protected fun serverDrafts(): List<Draft> = ModularXero.drafts(dispatcher.config, compressionMetrics)
+
     final override val name: String
         get() = serverName
 
+    /**
+     * Serve this module on the main listener at `/modules/<name>` rather than starting its server on a port
+     * of its own, see [ModuleMounts]. Follows `mox.modules.mount` unless overridden.
+     */
+    open fun mountOnMainListener(): Boolean = dispatcher.config.mountServerModules
+
     override fun start() {
         if (serverInstance != null && isRunning) return // already running
         serverInstance = createServer(dispatcher, serverPort)
-        if (serverInstance != null) {
-            serverInstance!!.start()
-            println("[${name}] server started on port ${serverInstance!!.port}")
-        }
-        else {
+        val server = serverInstance
+        if (server == null) {
             println("Unable to create server instance for $name")
+        } else if (mountOnMainListener() && ModuleMounts.unsupportedProtocols(server).isEmpty()) {
+            // the server only supplies callbacks (handshake included), the main listener owns the sockets
+            dispatcher.mounts.mount(name, server)
+            mounted = true
+            println("[${name}] server mounted on ${ModuleMounts.PREFIX}$name")
+        } else {
+            if (mountOnMainListener()) {
+                println("[${name}] not mounted, the main listener doesn't speak ${ModuleMounts.unsupportedProtocols(server).joinToString()}")
+            }
+            server.start()
+            println("[${name}] server started on port ${server.port}")
         }
     }
 
     override fun stop() {
         serverInstance?.let {
-            it.stop()
-            println("[${name}] server stopped")
+            if (mounted) {
+                dispatcher.mounts.unmount(name, it)
+                println("[${name}] server unmounted")
+            } else {
+                it.stop()
+                println("[${name}] server stopped")
+            }
         }
         serverInstance = null
+        mounted = false
         destroy()
     }
 
     abstract fun destroy()
     override fun pause() { }
 
+    /**
+     * Hand a request the dispatcher routed to this module over to its server, without serializing or
+     * parsing it again. Servers implementing [ForwardingTarget] get the envelope itself; any other server
+     * gets the frame as it arrived, through its regular `onMessage`.
+     */
+    open fun handleDispatchedRequest(conn: org.java_websocket.WebSocket, envelope: RequestEnvelope) {
+        val server = serverInstance ?: error("Server module $name is not running")
+        if (server is ForwardingTarget) {
+            server.onForwarded(conn, envelope)
+        } else {
+            // JSON frames go through exactly as received, binary-codec ones are rendered as JSON text
+            server.onMessage(conn, envelope.rawText())
+        }
+    }
+
+    @Deprecated("Rebuilds the frame from a tree", ReplaceWith("handleDispatchedRequest(conn, envelope)"))
     open fun handleDispatchedRequest(conn: org.java_websocket.WebSocket, node: JsonNode) {
-        serverInstance!!.onMessage(conn, node.toPrettyString())
+        serverInstance!!.onMessage(conn, node.toString())
     }
 
     final override fun handleRequest(request: JsonNode): Response<MapValue<MessageValue<*>>>? {
@@ -139,14 +227,60 @@ data class ModuleMetrics(
     var bytesSent: Long = 0,
     var bytesReceived: Long = 0
 ) {
+    // handlers now run concurrently on the dispatch executor, so counters are updated under the lock
+    @Synchronized
     fun addBytesSent(bytes: Long) {
         bytesSent += bytes
     }
+    @Synchronized
     fun addBytesReceived(bytes: Long) {
         bytesReceived += bytes
     }
+    @Synchronized
     fun addMessagesHandled(bytes: Long) {
         messagesHandled += bytes
     }
+
+    /** Requests currently running inside the module. */
+    @Volatile var inFlight: Int = 0
+    /** Requests waiting in the module's bulkhead queue for a free slot. */
+    @Volatile var queueDepth: Int = 0
+    /** Requests the module may run at once, adjusted to its latency when the limit is adaptive. */
+    @Volatile var concurrencyLimit: Int = 0
+    /** Requests refused with an overload response because the queue was full. */
+    var rejectedRequests: Long = 0
+        private set
+
+    @Synchronized
+    fun addRejected(count: Long) {
+        rejectedRequests += count
+    }
+
+    /** Calls other modules made into this module's exported services. */
+    var serviceCalls: Long = 0
+        private set
+
+    @Synchronized
+    fun addServiceCalls(count: Long) {
+        serviceCalls += count
+    }
+
+    /** Requests answered with a timeout because their deadline passed first. */
+    var timedOutRequests: Long = 0
+        private set
+
+    @Synchronized
+    fun addTimedOut(count: Long) {
+        timedOutRequests += count
+    }
+
+    /** Requests refused for being larger than the module accepts. */
+    var oversizedRequests: Long = 0
+        private set
+
+    @Synchronized
+    fun addOversized(count: Long) {
+        oversizedRequests += count
+    }
 }
 
@@ -0,0 +1,158 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.Deadline
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Caps how much work a single module can have in the dispatcher at once.
+ *
+ * Up to [maxConcurrency] requests run inside the module, up to [maxQueue] more wait (in arrival order)
+ * for a slot, and anything beyond that is refused straight away so a flood aimed at one module can't
+ * tie up the dispatch executor for everyone else. Queue depth, in-flight and rejection counts are
+ * mirrored into the module's [ModuleMetrics].
+ *
+ * A queued request blocks the thread that called [tryEnter]. The dispatcher only queues in
+ * [DispatchMode.VIRTUAL]; in the other modes it builds bulkheads with no queue, so a busy module refuses
+ * at once instead of parking pool threads the other modules need.
+ *
+ * With a [limiter] the number of running requests is capped by its latency-driven limit instead, with
+ * [maxConcurrency] as the ceiling, and the queue is kept to at most twice that limit so a module that
+ * slows down sheds load rather than piling it up.
+ *
+ * [close] turns new requests away while letting admitted ones finish, which is how modules are drained.
+ */
+class ModuleBulkhead(
+    val moduleName: String,
+    maxConcurrency: Int,
+    val maxQueue: Int,
+    private val metrics: ModuleMetrics,
+    private val limiter: AdaptiveLimit? = null
+) {
+    private val lock = ReentrantLock(true)
+    private val slotFreed = lock.newCondition()
+    private val drained = lock.newCondition()
+
+    val maxConcurrency: Int = maxConcurrency.coerceAtLeast(1)
+
+    // written under lock
+    @Volatile private var limit = limiter?.limit ?: this.maxConcurrency
+    // guarded by lock
+    private var inFlight = 0
+    private var waiting = 0
+    @Volatile private var closed = false
+
+    init {
+        publish()
+    }
+
+    /** True once [close] was called, until [open]. */
+    val isClosed: Boolean get() = closed
+
+    /**
+     * Claim a slot, waiting in the queue if the module is busy. Returns false without waiting
+     * when the queue is already full or the bulkhead is closed, or if the calling thread is interrupted
+     * while queued.
+     * With a [deadline] it also gives up once that passes, which isn't counted as a rejection.
+     * Every successful call must be paired with [exit].
+     */
+    @JvmOverloads
+    fun tryEnter(deadline: Deadline? = null): Boolean {
+        lock.withLock {
+            if (closed) return false
+            if (inFlight < limit && waiting == 0) {
+                inFlight++
+                publish()
+                return true
+            }
+            if (waiting >= queueLimit()) {
+                metrics.addRejected(1)
+                return false
+            }
+
+            waiting++
+            publish()
+            try {
+                while (inFlight >= limit) {
+                    if (deadline == null) {
+                        slotFreed.await()
+                    } else {
+                        if (deadline.isExpired()) return false
+                        slotFreed.awaitNanos(deadline.remainingNanos)
+                    }
+                }
+                inFlight++
+                return true
+            } catch (_: InterruptedException) {
+                Thread.currentThread().interrupt()
+                metrics.addRejected(1)
+                return false
+            } finally {
+                waiting--
+                publish()
+                if (waiting == 0 && inFlight == 0) drained.signalAll()
+            }
+        }
+    }
+
+    /**
+     * Release a slot claimed by [tryEnter] and wake the next queued request. [latencyNanos] is how long the
+     * request held the slot, fed to the [limiter] along with whether it was [dropped] (ran out of time);
+     * pass nothing for slots given back without running anything.
+     */
+    @JvmOverloads
+    fun exit(latencyNanos: Long = -1, dropped: Boolean = false) {
+        lock.withLock {
+            val previous = limit
+            if (limiter != null && latencyNanos >= 0) {
+                limit = limiter.onSample(latencyNanos, inFlight, dropped)
+            }
+            inFlight--
+            publish()
+            if (limit > previous) slotFreed.signalAll() else slotFreed.signal()
+            if (inFlight == 0 && waiting == 0) drained.signalAll()
+        }
+    }
+
+    /**
+     * Stop admitting requests. Those already running or queued carry on, see [awaitDrained].
+     */
+    fun close() {
+        closed = true
+    }
+
+    /** Admit requests again after [close]. */
+    fun open() {
+        closed = false
+    }
+
+    /**
+     * Wait up to [timeoutMs] for every running and queued request to finish, false if some are still
+     * left. Only meaningful after [close], otherwise new requests keep arriving.
+     */
+    fun awaitDrained(timeoutMs: Long): Boolean {
+        var remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+        lock.withLock {
+            while (inFlight > 0 || waiting > 0) {
+                if (remaining <= 0) return false
+                remaining = drained.awaitNanos(remaining)
+            }
+            return true
+        }
+    }
+
+    fun inFlight(): Int = lock.withLock { inFlight }
+    fun queueDepth(): Int = lock.withLock { waiting }
+    /** Requests allowed to run at once right now. */
+    fun concurrencyLimit(): Int = limit
+
+    /** Requests allowed to wait right now. */
+    fun queueLimit(): Int = if (limiter == null) maxQueue else minOf(maxQueue, limit * 2)
+
+    private fun publish() {
+        metrics.inFlight = inFlight
+        metrics.queueDepth = waiting
+        metrics.concurrencyLimit = limit
+    }
+}
@@ -0,0 +1,130 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.BinaryMessageCodec
+import org.java_websocket.WebSocket
+import org.java_websocket.drafts.Draft
+import org.java_websocket.drafts.Draft_6455
+import org.java_websocket.exceptions.InvalidDataException
+import org.java_websocket.framing.CloseFrame
+import org.java_websocket.handshake.ClientHandshake
+import org.java_websocket.handshake.ServerHandshakeBuilder
+import org.java_websocket.server.WebSocketServer
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Server modules mounted on the main listener instead of a port of their own.
+ *
+ * A mounted module's [WebSocketServer] is created as usual but never started; connections whose handshake
+ * path is [PREFIX]`<module>` are accepted by [ModularXero] and their callbacks handed to that server, so
+ * every module shares the main listener's selector and decoder threads. The handshake goes through the
+ * server's `onWebsocketHandshakeReceivedAsServer` first, so auth or origin checks there still apply. The
+ * draft is the main listener's, so a server asking for other subprotocols can't be mounted, see
+ * [unsupportedProtocols]. The server's own bookkeeping (`getConnections()`, `broadcast`, `onStart`)
+ * doesn't see these connections.
+ */
+class ModuleMounts {
+    private val servers = ConcurrentHashMap<String, WebSocketServer>()
+    // keyed by connection rather than stored as its attachment, which belongs to the module's server
+    private val owners = ConcurrentHashMap<WebSocket, WebSocketServer>()
+
+    fun mount(name: String, server: WebSocketServer) {
+        servers[name] = server
+    }
+
+    /**
+     * Take [server] off [name] and close the connections it was serving. Does nothing to a server that has
+     * already been replaced, e.g. by a reload.
+     */
+    fun unmount(name: String, server: WebSocketServer) {
+        servers.remove(name, server)
+        owners.filterValues { it === server }.keys.forEach { conn ->
+            owners.remove(conn)
+            conn.close(CloseFrame.GOING_AWAY, "Module $name stopped")
+        }
+    }
+
+    fun isMounted(name: String): Boolean = servers.containsKey(name)
+
+    /** Names of the mounted modules. */
+    fun mounted(): Set<String> = servers.keys
+
+    /** Connections open to mounted modules. */
+    fun connectionCount(): Int = owners.size
+
+    /**
+     * Let the module's server vet a handshake for a [PREFIX] path, as it would on its own port; it rejects
+     * one by throwing [InvalidDataException]. Null if the path isn't a module path, the main listener
+     * handles the handshake then.
+     */
+    fun handshake(conn: WebSocket, draft: Draft, request: ClientHandshake): ServerHandshakeBuilder? {
+        val name = moduleOf(request.resourceDescriptor) ?: return null
+        val server = servers[name] ?: throw InvalidDataException(CloseFrame.POLICY_VALIDATION, "No module mounted at $PREFIX$name")
+        return server.onWebsocketHandshakeReceivedAsServer(conn, draft, request)
+    }
+
+    /**
+     * Route a connection opened on a [PREFIX] path to its module. Returns false if the path isn't a module
+     * path at all; a module path nothing is mounted on is closed here.
+     */
+    fun open(conn: WebSocket, handshake: ClientHandshake?): Boolean {
+        val name = moduleOf(handshake?.resourceDescriptor) ?: return false
+        val server = servers[name]
+        if (server == null) {
+            conn.close(CloseFrame.POLICY_VALIDATION, "No module mounted at $PREFIX$name")
+            return true
+        }
+        owners[conn] = server
+        server.onOpen(conn, handshake)
+        return true
+    }
+
+    /** Hand a text frame to the connection's module, false if it isn't a mounted connection. */
+    fun message(conn: WebSocket, message: String): Boolean {
+        val server = owners[conn] ?: return false
+        server.onMessage(conn, message)
+        return true
+    }
+
+    fun message(conn: WebSocket, message: ByteBuffer): Boolean {
+        val server = owners[conn] ?: return false
+        server.onMessage(conn, message)
+        return true
+    }
+
+    fun closed(conn: WebSocket, code: Int, reason: String?, remote: Boolean): Boolean {
+        val server = owners.remove(conn) ?: return false
+        server.onClose(conn, code, reason, remote)
+        return true
+    }
+
+    fun error(conn: WebSocket?, ex: Exception?): Boolean {
+        val server = conn?.let { owners[it] } ?: return false
+        server.onError(conn, ex)
+        return true
+    }
+
+    companion object {
+        /** Handshake path prefix server modules are mounted under. */
+        const val PREFIX = "/modules/"
+
+        /**
+         * Subprotocols [server]'s drafts accept that the main listener's don't. Clients asking for those
+         * would be refused by the main listener, so such a server is started on its own port instead.
+         */
+        @JvmStatic
+        fun unsupportedProtocols(server: WebSocketServer): List<String> =
+            server.draft.filterIsInstance<Draft_6455>()
+                .flatMap { it.knownProtocols }
+                .map { it.providedProtocol }
+                .filter { it.isNotEmpty() && it != BinaryMessageCodec.PROTOCOL }
+                .distinct()
+
+        /** Module name from a `/modules/<name>[/...][?...]` resource descriptor, null for other paths. */
+        @JvmStatic
+        fun moduleOf(resource: String?): String? {
+            if (resource == null || !resource.startsWith(PREFIX)) return null
+            return resource.substring(PREFIX.length).substringBefore('?').substringBefore('/').takeIf { it.isNotEmpty() }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.vicky.modularxero
+
+import org.java_websocket.WebSocket
+import org.java_websocket.WebSocketImpl
+import org.java_websocket.WebSocketListener
+import org.java_websocket.drafts.Draft_6455
+import org.java_websocket.extensions.DefaultExtension
+import org.java_websocket.framing.CloseFrame
+import org.java_websocket.framing.Framedata
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * What to do with a client whose unsent data has grown past [ServerConfig.outboxMaxBytes].
+ */
+enum class SlowConsumerPolicy {
+    /** Discard further frames until it catches up. */
+    DROP,
+    /** Close the connection. */
+    DISCONNECT,
+    /** Stop running its requests until it catches up; closed if it falls twice as far behind anyway. */
+    PAUSE
+}
+
+/**
+ * Running totals for every client's [Outbox] on one dispatcher.
+ */
+class OutboundMetrics {
+    var framesSent: Long = 0
+        private set
+    /** Buffers handed to the socket, fewer than [framesSent] when frames were coalesced. */
+    var writes: Long = 0
+        private set
+    var framesDropped: Long = 0
+        private set
+    var slowDisconnects: Long = 0
+        private set
+    var pauses: Long = 0
+        private set
+
+    @Synchronized fun addSent(frames: Int) { framesSent += frames }
+    @Synchronized fun addWrites(count: Int) { writes += count }
+    @Synchronized fun addDropped() { framesDropped++ }
+    @Synchronized fun addDisconnect() { slowDisconnects++ }
+    @Synchronized fun addPause() { pauses++ }
+
+    override fun toString(): String =
+        "Frames: $framesSent in $writes writes | Dropped: $framesDropped | Slow disconnects: $slowDisconnects | Pauses: $pauses"
+}
+
+/**
+ * Outgoing side of one client connection: tracks how much it has buffered and coalesces small frames.
+ *
+ * Frames are encoded on the caller's thread. When the socket is keeping up they are handed to it straight
+ * away; when it still has earlier writes queued, new frames are held for a moment and then merged into
+ * buffers of up to [coalesceBytes], so a burst of small responses costs a few socket writes instead of one
+ * each. Connections that negotiated permessage-deflate keep the library's own write path, since the
+ * compressor's state is tied to it, but still get the backlog accounting and [policy].
+ */
+class Outbox(
+    private val conn: WebSocket,
+    private val listener: WebSocketListener,
+    private val maxBytes: Long,
+    private val coalesceBytes: Int,
+    val policy: SlowConsumerPolicy,
+    private val metrics: OutboundMetrics,
+    // runs the flush a little later, off the calling thread
+    private val flushLater: (Runnable) -> Unit
+) {
+    private val impl = conn as? WebSocketImpl
+    private val rawWrites = impl != null && (conn.draft as? Draft_6455)?.extension?.javaClass == DefaultExtension::class.java
+
+    // guarded by this
+    private val pending = ArrayDeque<ByteBuffer>()
+    private var pendingBytes = 0L
+    private var flushScheduled = false
+    // held while a batch is moved to the socket, keeps batches in order
+    private val flushLock = Any()
+
+    /** Highest backlog seen, in bytes. */
+    @Volatile var peakBacklog = 0L
+        private set
+
+    val remoteAddress: String get() = conn.remoteSocketAddress?.toString() ?: "?"
+
+    /** Bytes accepted for this connection that haven't reached the socket yet. */
+    fun backlogBytes(): Long {
+        val held = synchronized(this) { pendingBytes }
+        val queue = impl?.outQueue ?: return held
+        return if (queue.isEmpty()) held else held + queue.sumOf { it.remaining().toLong() }
+    }
+
+    /**
+     * Queue [frame] for sending, applying [policy] if the connection is too far behind. The frame's
+     * payload is copied before this returns, so pooled buffers can be released straight after.
+     * Returns false if the frame was dropped or the connection closed.
+     */
+    fun send(frame: Framedata): Boolean {
+        if (!conn.isOpen) return false
+        val backlog = backlogBytes()
+        if (backlog > peakBacklog) peakBacklog = backlog
+        if (backlog > maxBytes) {
+            when {
+                policy == SlowConsumerPolicy.DROP -> {
+                    metrics.addDropped()
+                    return false
+                }
+                policy == SlowConsumerPolicy.DISCONNECT || backlog > maxBytes * 2 -> {
+                    disconnect()
+                    return false
+                }
+                // PAUSE: the dispatcher stops taking its requests, see awaitWritable
+            }
+        }
+
+        metrics.addSent(1)
+        if (!rawWrites) {
+            conn.sendFrame(frame)
+            metrics.addWrites(1)
+            return true
+        }
+
+        val encoded = conn.draft.createBinaryFrame(frame)
+        synchronized(this) {
+            pending.addLast(encoded)
+            pendingBytes += encoded.remaining()
+            if (flushScheduled) return true
+            flushScheduled = true
+            // the socket is still busy with earlier writes, collect what comes next into the same write
+            if (impl!!.outQueue.isNotEmpty()) {
+                flushLater(Runnable { flush() })
+                return true
+            }
+        }
+        flush()
+        return true
+    }
+
+    /**
+     * For [SlowConsumerPolicy.PAUSE]: wait up to [timeoutMs] for the backlog to fall to half the limit.
+     * Returns false if it didn't, true straight away for the other policies.
+     */
+    fun awaitWritable(timeoutMs: Long): Boolean {
+        if (policy != SlowConsumerPolicy.PAUSE || backlogBytes() <= maxBytes / 2) return true
+        metrics.addPause()
+        return awaitBacklog(maxBytes / 2, timeoutMs)
+    }
+
+    /**
+     * Wait up to [timeoutMs] for the backlog to be at most [bytes], for senders pacing themselves to the
+     * client (file downloads). False if it didn't get there or the connection closed.
+     */
+    fun awaitBacklog(bytes: Long, timeoutMs: Long): Boolean {
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+        while (backlogBytes() > bytes) {
+            if (!conn.isOpen || System.nanoTime() - deadline >= 0) return false
+            LockSupport.parkNanos(PAUSE_POLL_NANOS)
+        }
+        return true
+    }
+
+    fun disconnect() {
+        metrics.addDisconnect()
+        conn.close(CloseFrame.TRY_AGAIN_LATER, "Too slow reading responses")
+    }
+
+    private fun flush() {
+        synchronized(flushLock) {
+            val batch = synchronized(this) {
+                flushScheduled = false
+                pendingBytes = 0
+                ArrayList(pending).also { pending.clear() }
+            }
+            if (batch.isEmpty() || !conn.isOpen) return
+
+            val queue = impl!!.outQueue
+            var writes = 0
+            var i = 0
+            while (i < batch.size) {
+                // group consecutive frames up to coalesceBytes, larger frames go out on their own
+                var end = i + 1
+                var size = batch[i].remaining()
+                while (end < batch.size && size + batch[end].remaining() <= coalesceBytes) {
+                    size += batch[end].remaining()
+                    end++
+                }
+                if (end - i == 1) {
+                    queue.put(batch[i])
+                } else {
+                    val merged = ByteBuffer.allocate(size)
+                    for (j in i until end) merged.put(batch[j])
+                    queue.put(merged.flip())
+                }
+                writes++
+                i = end
+            }
+            metrics.addWrites(writes)
+            listener.onWriteDemand(conn)
+        }
+    }
+
+    private companion object {
+        val PAUSE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(5)
+    }
+}
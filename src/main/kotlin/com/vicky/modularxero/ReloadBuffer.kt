@@ -0,0 +1,53 @@
+package com.vicky.modularxero
+
+import java.util.concurrent.Executor
+
+/**
+ * Requests parked while a module is reloaded. Each one is kept as a task taking the route it should run
+ * against, along with the [SerialLane] of the connection it came from. [release] hands them the route the
+ * reload ended with (the new module, or the old one if the swap failed) by resubmitting every task to its
+ * own lane, so different connections replay in parallel and each one's requests keep their order. Tasks
+ * held after the release are resubmitted the same way, behind the parked ones. Tasks without a lane
+ * (batched or peer requests) go to [executor].
+ */
+class ReloadBuffer(private val limit: Int, private val executor: Executor) {
+    private class Parked(val lane: SerialLane?, val task: (ModuleRoute) -> Unit)
+
+    private val held = ArrayList<Parked>()
+    private var target: ModuleRoute? = null
+
+    val size: Int get() = synchronized(this) { held.size }
+
+    /**
+     * Park [task] until [release], or resubmit it now if that already happened. False if the buffer is full.
+     */
+    fun hold(lane: SerialLane?, task: (ModuleRoute) -> Unit): Boolean {
+        val parked = Parked(lane, task)
+        val ready = synchronized(this) {
+            target ?: run {
+                if (held.size >= limit) return false
+                held.add(parked)
+                return true
+            }
+        }
+        resubmit(parked, ready)
+        return true
+    }
+
+    /**
+     * Point the buffer at [route] and resubmit the parked tasks in arrival order. Returns how many there were.
+     */
+    fun release(route: ModuleRoute): Int {
+        val parked = synchronized(this) {
+            target = route
+            held.toList().also { held.clear() }
+        }
+        parked.forEach { resubmit(it, route) }
+        return parked.size
+    }
+
+    private fun resubmit(parked: Parked, route: ModuleRoute) {
+        val run = Runnable { parked.task(route) }
+        if (parked.lane != null) parked.lane.submit(run) else executor.execute(run)
+    }
+}
@@ -0,0 +1,208 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.AsyncRequestHandler
+import com.vicky.modularxero.common.MessageHandler
+import com.vicky.modularxero.common.RequestEnvelope
+import com.vicky.modularxero.common.RequestHandler
+import com.vicky.modularxero.common.Response
+import com.vicky.modularxero.common.values.MapValue
+import com.vicky.modularxero.common.values.MessageValue
+import java.lang.invoke.LambdaMetafactory
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.lang.reflect.Method
+import java.lang.reflect.Modifier
+import java.util.Collections
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Everything the dispatcher needs to serve one module: the module itself, its bulkhead and breaker, and
+ * its `@MessageHandler` methods keyed by request type.
+ */
+class ModuleRoute(
+    val module: AbstractModule,
+    val bulkhead: ModuleBulkhead,
+    val handlers: Map<String, BoundHandler>,
+    /** Null when circuit breakers are turned off. */
+    val breaker: CircuitBreaker? = null,
+    /** Largest request frame the module accepts, in bytes. */
+    val maxRequestBytes: Int = Int.MAX_VALUE
+) {
+    val name: String get() = module.name
+
+    /** Set while the module is being swapped out, or in, by a reload; requests are parked here instead of run. */
+    @Volatile var reloading: ReloadBuffer? = null
+
+    /** Where the module is in its lifecycle, as far as requests are concerned. */
+    val state: State
+        get() = when {
+            reloading != null -> State.RELOADING
+            !bulkhead.isClosed -> State.RUNNING
+            bulkhead.inFlight() > 0 || bulkhead.queueDepth() > 0 -> State.DRAINING
+            else -> State.STOPPED
+        }
+
+    enum class State {
+        /** Taking requests. */
+        RUNNING,
+        /** Refusing new requests while the admitted ones finish, see [ModularXeroDispatcher.stopModule]. */
+        DRAINING,
+        /** Stopped, requests are refused until it is started again. */
+        STOPPED,
+        /** Being swapped for a new build, requests are parked. */
+        RELOADING
+    }
+}
+
+/**
+ * One `@MessageHandler` method, bound either as a plain [RequestHandler] or, for methods returning a
+ * [CompletableFuture], as an [AsyncRequestHandler].
+ */
+class BoundHandler private constructor(
+    private val sync: RequestHandler?,
+    private val async: AsyncRequestHandler?,
+    /** Send PENDING straight away rather than after the server's pending delay. */
+    val ackPending: Boolean,
+    /** Reads its payload with a streaming parser, so it may be given payloads too large for a tree. */
+    val streaming: Boolean
+) {
+    val isAsync: Boolean get() = async != null
+
+    /**
+     * Run the handler. Synchronous handlers complete before this returns; a null response or future
+     * comes back as a future completed with null.
+     */
+    fun invoke(envelope: RequestEnvelope): CompletableFuture<Response<MapValue<MessageValue<*>>>?> =
+        if (async != null) {
+            async.handle(envelope) ?: CompletableFuture.completedFuture(null)
+        } else {
+            CompletableFuture.completedFuture(sync!!.handle(envelope))
+        }
+
+    companion object {
+        fun of(handler: RequestHandler, streaming: Boolean = false) = BoundHandler(handler, null, false, streaming)
+        fun of(handler: AsyncRequestHandler, ackPending: Boolean, streaming: Boolean = false) =
+            BoundHandler(null, handler, ackPending, streaming)
+    }
+}
+
+/**
+ * Immutable module name -> [ModuleRoute] table. The dispatcher swaps whole tables on registration
+ * so request threads read it without locking.
+ */
+class RouteTable private constructor(private val routes: Map<String, ModuleRoute>) {
+    /** Read-only module view handed out by [ModularXeroDispatcher.getModules]. */
+    val modules: Map<String, AbstractModule> =
+        Collections.unmodifiableMap(routes.mapValuesTo(LinkedHashMap()) { it.value.module })
+
+    operator fun get(name: String): ModuleRoute? = routes[name]
+
+    /** Largest [ModuleRoute.maxRequestBytes] of any module, frames over it can't go anywhere. */
+    val maxRequestBytes: Int = routes.values.maxOfOrNull { it.maxRequestBytes } ?: 0
+
+    fun routes(): Collection<ModuleRoute> = routes.values
+
+    fun with(route: ModuleRoute): RouteTable =
+        RouteTable(LinkedHashMap(routes).apply { put(route.name, route) })
+
+    fun without(name: String): RouteTable =
+        RouteTable(LinkedHashMap(routes).apply { remove(name) })
+
+    companion object {
+        @JvmField
+        val EMPTY = RouteTable(emptyMap())
+    }
+}
+
+/**
+ * Binds a module's `@MessageHandler` methods to [RequestHandler] instances.
+ *
+ * Binding goes through [LambdaMetafactory] so each handler ends up as a plain interface call. That
+ * needs a lookup with full access to the module's class; modules from jars live in their own
+ * class loader, so they should return `MethodHandles.lookup()` from [Module.handlerLookup]. Without one
+ * the handler falls back to a bound [MethodHandle], which is still resolved once at registration.
+ */
+object HandlerBinder {
+    private val SAM_TYPE: MethodType = MethodType.methodType(Response::class.java, RequestEnvelope::class.java)
+    private val ASYNC_SAM_TYPE: MethodType =
+        MethodType.methodType(CompletableFuture::class.java, RequestEnvelope::class.java)
+
+    fun bind(module: AbstractModule): Map<String, BoundHandler> {
+        val handlers = HashMap<String, BoundHandler>()
+        var type: Class<*>? = module.javaClass
+        while (type != null && type != Any::class.java) {
+            for (method in type.declaredMethods) {
+                val annotation = method.getAnnotation(MessageHandler::class.java) ?: continue
+                if (method.isBridge || method.isSynthetic) continue
+                validate(module, method)
+
+                val handler = if (method.returnType == CompletableFuture::class.java) {
+                    BoundHandler.of(bindMethod(module, method, AsyncRequestHandler::class.java, ASYNC_SAM_TYPE), annotation.ackPending, annotation.streaming)
+                } else {
+                    BoundHandler.of(bindMethod(module, method, RequestHandler::class.java, SAM_TYPE), annotation.streaming)
+                }
+                for (messageType in annotation.value) {
+                    check(handlers.putIfAbsent(messageType, handler) == null) {
+                        "Module ${module.name} declares more than one handler for `$messageType`"
+                    }
+                }
+            }
+            type = type.superclass
+        }
+        return Collections.unmodifiableMap(handlers)
+    }
+
+    private fun validate(module: AbstractModule, method: Method) {
+        check(!Modifier.isStatic(method.modifiers)) {
+            "@MessageHandler ${module.name}.${method.name} must not be static"
+        }
+        check(method.parameterCount == 1 && method.parameterTypes[0] == RequestEnvelope::class.java) {
+            "@MessageHandler ${module.name}.${method.name} must take a single RequestEnvelope"
+        }
+        check(method.returnType == Response::class.java || method.returnType == CompletableFuture::class.java) {
+            "@MessageHandler ${module.name}.${method.name} must return Response or CompletableFuture<Response>"
+        }
+    }
+
+    private fun <T : Any> bindMethod(module: AbstractModule, method: Method, sam: Class<T>, samType: MethodType): T {
+        val lookup = lookupFor(module, method.declaringClass)
+        val target = lookup.unreflect(method)
+        return try {
+            val site = LambdaMetafactory.metafactory(
+                lookup,
+                "handle",
+                MethodType.methodType(sam, method.declaringClass),
+                samType,
+                target,
+                samType
+            )
+            sam.cast(site.target.invokeWithArguments(module))
+        } catch (_: Exception) {
+            // lookup without full privilege (e.g. a jar module that didn't hand us its own lookup)
+            val bound = target.bindTo(module).asType(samType)
+            sam.cast(
+                if (sam == AsyncRequestHandler::class.java) MethodHandleAsyncRequestHandler(bound)
+                else MethodHandleRequestHandler(bound)
+            )
+        }
+    }
+
+    private fun lookupFor(module: AbstractModule, declaringClass: Class<*>): MethodHandles.Lookup {
+        val base = module.handlerLookup() ?: MethodHandles.lookup()
+        return if (base.lookupClass() == declaringClass) base
+        else MethodHandles.privateLookupIn(declaringClass, base)
+    }
+
+    private class MethodHandleRequestHandler(private val target: MethodHandle) : RequestHandler {
+        @Suppress("UNCHECKED_CAST")
+        override fun handle(envelope: RequestEnvelope): Response<MapValue<MessageValue<*>>>? =
+            target.invoke(envelope) as Response<MapValue<MessageValue<*>>>?
+    }
+
+    private class MethodHandleAsyncRequestHandler(private val target: MethodHandle) : AsyncRequestHandler {
+        @Suppress("UNCHECKED_CAST")
+        override fun handle(envelope: RequestEnvelope): CompletableFuture<Response<MapValue<MessageValue<*>>>>? =
+            target.invoke(envelope) as CompletableFuture<Response<MapValue<MessageValue<*>>>>?
+    }
+}
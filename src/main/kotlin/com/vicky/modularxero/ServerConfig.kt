@@ -0,0 +1,189 @@
+package com.vicky.modularxero
+
+/**
+ * Runtime configuration for the main [ModularXero] listener and its dispatcher.
+ * Every value can be overridden from the launch command with a `-Dmox.*` system property.
+ */
+data class ServerConfig(
+    val port: Int = 8025,
+    val dispatchMode: DispatchMode = DispatchMode.VIRTUAL,
+    val dispatchThreads: Int = Runtime.getRuntime().availableProcessors() * 2,
+    /** Offer permessage-deflate to clients that ask for it. */
+    val compression: Boolean = true,
+    /** [java.util.zip.Deflater] level, 1 (fastest) to 9 (smallest), or -1 for the zlib default. */
+    val compressionLevel: Int = 6,
+    /** Frames smaller than this many bytes are sent uncompressed. */
+    val compressionThreshold: Int = 1024,
+    /** Most requests a single `BATCH` frame may carry. */
+    val maxBatchSize: Int = 64,
+    /** How long an async handler may run before the client is sent a `PENDING` response, -1 to never send one. */
+    val pendingAfterMs: Long = 250,
+    /** Size of the pooled buffers responses are serialized into; larger responses grow past it. */
+    val responseBufferSize: Int = 16 * 1024,
+    /** Most idle response buffers kept for reuse. */
+    val responseBufferPool: Int = 256,
+    /** Most topics a single connection may subscribe to. */
+    val maxTopicsPerConnection: Int = 64,
+    /** Requests remembered for duplicate suppression, 0 turns the idempotency cache off. */
+    val idempotencyMaxEntries: Int = 10_000,
+    /** How long a completed request's response is replayed to retries. */
+    val idempotencyTtlMs: Long = 60_000,
+    /** Websocket decoder threads per acceptor. */
+    val decoders: Int = Runtime.getRuntime().availableProcessors(),
+    val tcpNoDelay: Boolean = true,
+    /** SO_RCVBUF for accepted connections in bytes, 0 keeps the OS default. */
+    val receiveBufferSize: Int = 0,
+    /** SO_SNDBUF for accepted connections in bytes, 0 keeps the OS default. */
+    val sendBufferSize: Int = 0,
+    /** Seconds without a pong before a connection is dropped, 0 disables the check. */
+    val connectionLostTimeout: Int = 60,
+    val reuseAddress: Boolean = true,
+    /** Listener instances sharing the port through SO_REUSEPORT, 1 for a single listener. */
+    val acceptors: Int = 1,
+    /** Join other nodes in cluster mode, see [com.vicky.modularxero.cluster.ClusterNode]. */
+    val cluster: Boolean = false,
+    /** This node's id, unique within the cluster. */
+    val clusterNodeId: String = "node-$port",
+    /** Address other nodes reach this one on. */
+    val clusterAdvertise: String = "ws://localhost:$port",
+    /** Nodes to dial at startup, the rest are learned through gossip. */
+    val clusterPeers: List<String> = emptyList(),
+    /** Shared secret cluster links must present, required in cluster mode. */
+    val clusterSecret: String = "",
+    val clusterGossipMs: Long = 2_000,
+    /** How long a forwarded request may take before the client gets an error. */
+    val clusterTimeoutMs: Long = 30_000,
+    /** Deadline for requests that don't carry a `timeoutMs`, 0 leaves them unbounded. */
+    val requestTimeoutMs: Long = 0,
+    /** Upper bound on any request's deadline, including ones clients ask for; 0 for none. */
+    val maxRequestTimeoutMs: Long = 300_000,
+    /** How long stopping a module, or the server, waits for requests already running. */
+    val drainGraceMs: Long = 10_000,
+    /** Most requests held for a module while it is reloaded, further ones are refused. */
+    val reloadBufferSize: Int = 1024,
+    /** Adjust each module's concurrency limit to its latency, with its `max_concurrency` as the ceiling. */
+    val adaptiveLimit: Boolean = true,
+    /** Floor for adaptive limits. */
+    val minConcurrency: Int = 1,
+    /** Unsent bytes a client may have before [slowConsumerPolicy] applies. */
+    val outboxMaxBytes: Long = 4L * 1024 * 1024,
+    /** Largest write small frames are merged into when a client's socket falls behind. */
+    val outboxCoalesceBytes: Int = 64 * 1024,
+    val slowConsumerPolicy: SlowConsumerPolicy = SlowConsumerPolicy.DISCONNECT,
+    /** How long a paused client's requests wait for it to catch up before it is disconnected. */
+    val outboxPauseMs: Long = 10_000,
+    /** Serve server modules on the main listener under `/modules/<name>` instead of their own ports. */
+    val mountServerModules: Boolean = false,
+    /** Give every module a [CircuitBreaker]. */
+    val circuitBreaker: Boolean = true,
+    /** Recent requests per module the breaker judges error and slow rates over. */
+    val breakerWindow: Int = 50,
+    /** Requests in the window before the breaker may trip. */
+    val breakerMinCalls: Int = 20,
+    /** Percentage of failed requests that trips the breaker, 0 to ignore failures. */
+    val breakerFailurePercent: Int = 50,
+    /** Requests taking at least this long count as slow, 0 to ignore latency. */
+    val breakerSlowCallMs: Long = 5_000,
+    /** Percentage of slow requests that trips the breaker. */
+    val breakerSlowPercent: Int = 80,
+    /** How long a tripped breaker refuses requests before probing. */
+    val breakerOpenMs: Long = 10_000,
+    /** Trial requests that must succeed to close a half-open breaker. */
+    val breakerProbes: Int = 3,
+    /** Largest websocket message the decoder will buffer, larger ones close the connection with 1009. */
+    val maxFrameBytes: Int = 16 * 1024 * 1024,
+    /** Largest request a module accepts unless its `max_request_bytes` says otherwise. */
+    val maxRequestBytes: Int = 1024 * 1024,
+    /** Payloads over this size only go to `streaming` handlers, which don't build a tree of them. */
+    val treeMaxBytes: Int = 256 * 1024,
+    /** Oversized requests a connection may send before it is closed, 0 to never close it. */
+    val maxOversizedPerConnection: Int = 5,
+    /** File uploads and downloads that may be running at once, see [FileTransfers]. */
+    val transferMaxConcurrent: Int = 16,
+    /** Bytes of file data per chunk frame, in either direction. */
+    val transferChunkBytes: Int = 64 * 1024,
+    /** Chunks a transfer may have in flight before waiting for the other side, see [FileTransfers]. */
+    val transferWindowChunks: Int = 8,
+    /** Largest file that can be uploaded or downloaded. */
+    val transferMaxBytes: Int = 512 * 1024 * 1024,
+    /** How long a download waits for a client that stopped reading before giving up. */
+    val transferStallMs: Long = 30_000
+) {
+    companion object {
+        @JvmStatic
+        fun fromSystemProperties(): ServerConfig {
+            val port = intProperty("mox.port", 8025)
+            val defaults = ServerConfig(port = port)
+            val peers = System.getProperty("mox.cluster.peers")?.split(',')?.map { it.trim() }?.filter { it.isNotEmpty() }
+                ?: defaults.clusterPeers
+            return ServerConfig(
+                port = port,
+                dispatchMode = enumProperty("mox.dispatch.mode", defaults.dispatchMode),
+                dispatchThreads = intProperty("mox.dispatch.threads", defaults.dispatchThreads).coerceAtLeast(1),
+                compression = booleanProperty("mox.compression", defaults.compression),
+                compressionLevel = intProperty("mox.compression.level", defaults.compressionLevel).coerceIn(-1, 9),
+                compressionThreshold = intProperty("mox.compression.threshold", defaults.compressionThreshold).coerceAtLeast(0),
+                maxBatchSize = intProperty("mox.batch.max", defaults.maxBatchSize).coerceAtLeast(1),
+                pendingAfterMs = intProperty("mox.async.pending_after_ms", defaults.pendingAfterMs.toInt()).toLong(),
+                responseBufferSize = intProperty("mox.buffer.size", defaults.responseBufferSize).coerceAtLeast(256),
+                responseBufferPool = intProperty("mox.buffer.pool", defaults.responseBufferPool).coerceAtLeast(0),
+                maxTopicsPerConnection = intProperty("mox.topics.max", defaults.maxTopicsPerConnection).coerceAtLeast(0),
+                idempotencyMaxEntries = intProperty("mox.idempotency.max", defaults.idempotencyMaxEntries).coerceAtLeast(0),
+                idempotencyTtlMs = intProperty("mox.idempotency.ttl_ms", defaults.idempotencyTtlMs.toInt()).toLong(),
+                decoders = intProperty("mox.decoders", defaults.decoders).coerceAtLeast(1),
+                tcpNoDelay = booleanProperty("mox.tcp_nodelay", defaults.tcpNoDelay),
+                receiveBufferSize = intProperty("mox.socket.rcvbuf", defaults.receiveBufferSize).coerceAtLeast(0),
+                sendBufferSize = intProperty("mox.socket.sndbuf", defaults.sendBufferSize).coerceAtLeast(0),
+                connectionLostTimeout = intProperty("mox.connection_lost_timeout", defaults.connectionLostTimeout).coerceAtLeast(0),
+                reuseAddress = booleanProperty("mox.reuse_address", defaults.reuseAddress),
+                acceptors = intProperty("mox.acceptors", defaults.acceptors).coerceAtLeast(1),
+                cluster = booleanProperty("mox.cluster", peers.isNotEmpty()),
+                clusterNodeId = System.getProperty("mox.cluster.node")?.trim()?.ifEmpty { null } ?: defaults.clusterNodeId,
+                clusterAdvertise = System.getProperty("mox.cluster.advertise")?.trim()?.ifEmpty { null } ?: defaults.clusterAdvertise,
+                clusterPeers = peers,
+                clusterSecret = System.getProperty("mox.cluster.secret") ?: defaults.clusterSecret,
+                clusterGossipMs = intProperty("mox.cluster.gossip_ms", defaults.clusterGossipMs.toInt()).coerceAtLeast(100).toLong(),
+                clusterTimeoutMs = intProperty("mox.cluster.timeout_ms", defaults.clusterTimeoutMs.toInt()).coerceAtLeast(1).toLong(),
+                requestTimeoutMs = intProperty("mox.request.timeout_ms", defaults.requestTimeoutMs.toInt()).coerceAtLeast(0).toLong(),
+                maxRequestTimeoutMs = intProperty("mox.request.max_timeout_ms", defaults.maxRequestTimeoutMs.toInt()).coerceAtLeast(0).toLong(),
+                drainGraceMs = intProperty("mox.drain.grace_ms", defaults.drainGraceMs.toInt()).coerceAtLeast(0).toLong(),
+                reloadBufferSize = intProperty("mox.reload.buffer", defaults.reloadBufferSize).coerceAtLeast(0),
+                adaptiveLimit = booleanProperty("mox.limit.adaptive", defaults.adaptiveLimit),
+                minConcurrency = intProperty("mox.limit.min", defaults.minConcurrency).coerceAtLeast(1),
+                outboxMaxBytes = intProperty("mox.outbox.max_bytes", defaults.outboxMaxBytes.toInt()).coerceAtLeast(1024).toLong(),
+                outboxCoalesceBytes = intProperty("mox.outbox.coalesce_bytes", defaults.outboxCoalesceBytes).coerceAtLeast(0),
+                slowConsumerPolicy = enumProperty("mox.outbox.policy", defaults.slowConsumerPolicy),
+                outboxPauseMs = intProperty("mox.outbox.pause_ms", defaults.outboxPauseMs.toInt()).coerceAtLeast(0).toLong(),
+                mountServerModules = booleanProperty("mox.modules.mount", defaults.mountServerModules),
+                circuitBreaker = booleanProperty("mox.breaker.enabled", defaults.circuitBreaker),
+                breakerWindow = intProperty("mox.breaker.window", defaults.breakerWindow).coerceAtLeast(1),
+                breakerMinCalls = intProperty("mox.breaker.min_calls", defaults.breakerMinCalls).coerceAtLeast(1),
+                breakerFailurePercent = intProperty("mox.breaker.failure_percent", defaults.breakerFailurePercent).coerceIn(0, 100),
+                breakerSlowCallMs = intProperty("mox.breaker.slow_ms", defaults.breakerSlowCallMs.toInt()).coerceAtLeast(0).toLong(),
+                breakerSlowPercent = intProperty("mox.breaker.slow_percent", defaults.breakerSlowPercent).coerceIn(0, 100),
+                breakerOpenMs = intProperty("mox.breaker.open_ms", defaults.breakerOpenMs.toInt()).coerceAtLeast(0).toLong(),
+                breakerProbes = intProperty("mox.breaker.probes", defaults.breakerProbes).coerceAtLeast(1),
+                maxFrameBytes = intProperty("mox.frame.max_bytes", defaults.maxFrameBytes).coerceAtLeast(1024),
+                maxRequestBytes = intProperty("mox.request.max_bytes", defaults.maxRequestBytes).coerceAtLeast(1),
+                treeMaxBytes = intProperty("mox.request.tree_max_bytes", defaults.treeMaxBytes).coerceAtLeast(0),
+                maxOversizedPerConnection = intProperty("mox.request.max_oversized", defaults.maxOversizedPerConnection).coerceAtLeast(0),
+                transferMaxConcurrent = intProperty("mox.transfer.max_concurrent", defaults.transferMaxConcurrent).coerceAtLeast(1),
+                transferChunkBytes = intProperty("mox.transfer.chunk_bytes", defaults.transferChunkBytes).coerceIn(1024, 1024 * 1024),
+                transferWindowChunks = intProperty("mox.transfer.window_chunks", defaults.transferWindowChunks).coerceIn(2, 256),
+                transferMaxBytes = intProperty("mox.transfer.max_bytes", defaults.transferMaxBytes).coerceAtLeast(0),
+                transferStallMs = intProperty("mox.transfer.stall_ms", defaults.transferStallMs.toInt()).coerceAtLeast(0).toLong()
+            )
+        }
+
+        private fun intProperty(key: String, default: Int): Int =
+            System.getProperty(key)?.trim()?.toIntOrNull() ?: default
+
+        private fun booleanProperty(key: String, default: Boolean): Boolean =
+            System.getProperty(key)?.trim()?.toBooleanStrictOrNull() ?: default
+
+        private inline fun <reified E : Enum<E>> enumProperty(key: String, default: E): E {
+            val raw = System.getProperty(key)?.trim() ?: return default
+            return enumValues<E>().firstOrNull { it.name.equals(raw, ignoreCase = true) } ?: default
+        }
+    }
+}
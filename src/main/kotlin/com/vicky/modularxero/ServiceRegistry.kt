@@ -0,0 +1,105 @@
+package com.vicky.modularxero
+
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Typed services modules export to each other, called in-process with no serialization.
+ *
+ * Services are keyed by interface name rather than `Class`, because every jar module has its own
+ * [ModuleClassLoader]. If the caller sees the same interface class as the provider (e.g. it lives in a
+ * shared library jar) calls go straight through; if each module bundles its own copy, the proxy maps each
+ * method onto the provider's method with the same name and parameter types, resolved once per method.
+ * Arguments and return values are passed as-is either way, so they should be JDK or shared types.
+ */
+class ServiceRegistry {
+    internal class Export(val provider: AbstractModule, val type: Class<*>, val implementation: Any) {
+        // caller method -> provider method, only needed when the two sides loaded the interface separately
+        val targets = ConcurrentHashMap<Method, Method>()
+    }
+
+    private val exports = ConcurrentHashMap<String, Export>()
+
+    fun <T : Any> export(provider: AbstractModule, type: Class<T>, implementation: T) {
+        require(type.isInterface) { "Services are exported by interface, ${type.name} is a class" }
+        exports.compute(type.name) { _, previous ->
+            check(previous == null || previous.provider === provider) {
+                "${type.name} is already exported by module ${previous!!.provider.name}"
+            }
+            Export(provider, type, implementation)
+        }
+    }
+
+    /** Drop every service [provider] exported, returns their interface names. */
+    fun withdraw(provider: AbstractModule): List<String> {
+        val withdrawn = exports.filterValues { it.provider === provider }.keys.toList()
+        withdrawn.forEach { exports.remove(it) }
+        return withdrawn
+    }
+
+    /** What [provider] exports right now, to [restore] if it is withdrawn and then has to come back. */
+    internal fun snapshot(provider: AbstractModule): List<Export> =
+        exports.values.filter { it.provider === provider }
+
+    /** Re-export a [snapshot], leaving alone interfaces someone else has exported since. */
+    internal fun restore(snapshot: List<Export>) {
+        snapshot.forEach { exports.putIfAbsent(it.type.name, it) }
+    }
+
+    /**
+     * A proxy for [type] calling whichever module exports that interface at call time, so it keeps working
+     * when the provider is reloaded. Null if nothing exports it right now.
+     */
+    fun <T : Any> lookup(type: Class<T>): T? {
+        if (!exports.containsKey(type.name)) return null
+        return type.cast(Proxy.newProxyInstance(type.classLoader, arrayOf(type), ServiceCall(type)))
+    }
+
+    fun exportedBy(provider: AbstractModule): List<String> =
+        exports.filterValues { it.provider === provider }.keys.sorted()
+
+    /**
+     * Forwards calls to the provider's implementation, counting them against the provider and running them
+     * with the provider's class loader as the context loader (Hibernate and friends look things up there).
+     */
+    private inner class ServiceCall(private val callerType: Class<*>) : InvocationHandler {
+        override fun invoke(proxy: Any, method: Method, args: Array<out Any?>?): Any? {
+            if (method.declaringClass == Any::class.java) {
+                return when (method.name) {
+                    "equals" -> proxy === args?.get(0)
+                    "hashCode" -> System.identityHashCode(proxy)
+                    else -> "Service(${callerType.name})"
+                }
+            }
+
+            val export = exports[callerType.name]
+                ?: throw IllegalStateException("No module exports ${callerType.name} any more")
+            val target = if (callerType == export.type) method else export.targets.computeIfAbsent(method) { resolve(export, it) }
+            val provider = export.provider
+            provider.metrics.addServiceCalls(1)
+
+            val thread = Thread.currentThread()
+            val previous = thread.contextClassLoader
+            thread.contextClassLoader = provider.javaClass.classLoader
+            try {
+                return target.invoke(export.implementation, *(args ?: emptyArray()))
+            } catch (ex: InvocationTargetException) {
+                throw ex.targetException
+            } finally {
+                thread.contextClassLoader = previous
+            }
+        }
+
+        private fun resolve(export: Export, method: Method): Method {
+            val parameterNames = method.parameterTypes.map { it.name }
+            return export.type.methods.firstOrNull { candidate ->
+                candidate.name == method.name && candidate.parameterTypes.map { it.name } == parameterNames
+            } ?: throw UnsupportedOperationException(
+                "${export.provider.name}'s ${export.type.name} has no method ${method.name}$parameterNames"
+            )
+        }
+    }
+}
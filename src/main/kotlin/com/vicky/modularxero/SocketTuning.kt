@@ -0,0 +1,59 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.Logger.ContextLogger
+import org.java_websocket.server.DefaultWebSocketServerFactory
+import org.java_websocket.server.WebSocketServer
+import java.net.StandardSocketOptions
+import java.nio.channels.SelectionKey
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+
+/**
+ * Applies the per-connection socket buffer sizes from [ServerConfig] to every accepted channel.
+ * TCP_NODELAY is left to [WebSocketServer.setTcpNoDelay], which the server already applies on accept.
+ */
+class TunedServerFactory(private val config: ServerConfig) : DefaultWebSocketServerFactory() {
+    override fun wrapChannel(channel: SocketChannel, key: SelectionKey?): SocketChannel {
+        if (config.receiveBufferSize > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize)
+        if (config.sendBufferSize > 0) channel.setOption(StandardSocketOptions.SO_SNDBUF, config.sendBufferSize)
+        return super.wrapChannel(channel, key)
+    }
+}
+
+/**
+ * SO_REUSEPORT support for running several [ModularXero] acceptors on one port, each with its own
+ * selector and decoder threads; the kernel spreads incoming connections across them.
+ *
+ * Java-WebSocket opens and binds its server channel inside `run()` without a hook, so the option is set
+ * reflectively on that channel from [WebSocketServer.isReuseAddr], which it calls right before `bind`.
+ */
+object ReusePort {
+    private val logger = ContextLogger(ContextLogger.ContextType.SUB_SYSTEM, "Reuse-Port")
+
+    /** True if this platform's server sockets support SO_REUSEPORT (Linux, BSD, macOS). */
+    @JvmStatic
+    val supported: Boolean by lazy {
+        try {
+            ServerSocketChannel.open().use { StandardSocketOptions.SO_REUSEPORT in it.supportedOptions() }
+        } catch (_: Exception) {
+            false
+        }
+    }
+
+    /**
+     * Set SO_REUSEPORT on [server]'s channel. Returns false (and logs why) if it couldn't be done.
+     */
+    @JvmStatic
+    fun apply(server: WebSocketServer): Boolean {
+        return try {
+            val field = WebSocketServer::class.java.getDeclaredField("server")
+            field.isAccessible = true
+            val channel = field.get(server) as? ServerSocketChannel ?: return false
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true)
+            true
+        } catch (ex: Exception) {
+            logger.print("Could not enable SO_REUSEPORT: ${ex.message}", ContextLogger.LogType.WARNING)
+            false
+        }
+    }
+}
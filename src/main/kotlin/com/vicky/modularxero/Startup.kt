@@ -24,7 +24,9 @@ class Startup {
             val libsLoader = EmbeddedLibsLoader.extractAndCreateLoader("libs/", File("./modules-libs"))
             Thread.currentThread().contextClassLoader = libsLoader
 
-            dispatcher = ModularXeroDispatcher()
+            val config = ServerConfig.fromSystemProperties()
+            dispatcher = ModularXeroDispatcher(config)
+            val cluster = if (config.cluster) dispatcher!!.enableCluster() else null
             val scanner = ModularZeroScanner()
             val foundModules = scanner.findAndPrepareModules()
 
@@ -40,18 +42,27 @@ class Startup {
             }
             dispatcher!!.registerModule(BuEatsModule())
 
-            val server = ModularXero(dispatcher!!, 8025)
+            var acceptors = config.acceptors
+            if (acceptors > 1 && !ReusePort.supported) {
+                println("SO_REUSEPORT is not supported on this platform, starting a single acceptor")
+                acceptors = 1
+            }
+            val servers = List(acceptors) { ModularXero(dispatcher!!, config.port, it) }
             val console = ModularXeroConsole(dispatcher!!) {
                 ModularXeroConsole.GLOBAL_READER.printAbove("Stopping server...")
-                server.stop()
+                // let running requests finish and get their responses out before the listeners close
+                dispatcher!!.stopAll()
+                servers.forEach { it.stop() }
+                dispatcher!!.shutdown()
                 HibernateUtil.shutdown()
             }
 
             // HibernateUtil.getSessionFactory()
             console.start()
-            server.start()
+            servers.forEach { it.start() }
+            cluster?.start()
 
-            println("ModularXero server running at ws://localhost:8025")
+            println("ModularXero server running at ws://localhost:${config.port}")
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+package com.vicky.modularxero
+
+import org.java_websocket.WebSocket
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Topic name -> subscribed connections. Each connection also keeps its own topics in its
+ * [ConnectionContext], so closing it only touches the topics it actually joined.
+ */
+class TopicRegistry(private val maxPerConnection: Int) {
+    private val topics = ConcurrentHashMap<String, MutableSet<WebSocket>>()
+
+    /**
+     * Subscribe [conn] to [topic]. False if the connection is already at its subscription limit.
+     */
+    fun subscribe(conn: WebSocket, context: ConnectionContext, topic: String): Boolean {
+        if (topic in context.topics) return true
+        if (context.topics.size >= maxPerConnection) return false
+        context.topics.add(topic)
+        // compute, not computeIfAbsent + add, so a concurrent unsubscribe can't drop the set under us
+        topics.compute(topic) { _, subscribers -> (subscribers ?: ConcurrentHashMap.newKeySet()).apply { add(conn) } }
+        return true
+    }
+
+    fun unsubscribe(conn: WebSocket, context: ConnectionContext, topic: String) {
+        context.topics.remove(topic)
+        topics.computeIfPresent(topic) { _, subscribers ->
+            subscribers.remove(conn)
+            subscribers.ifEmpty { null }
+        }
+    }
+
+    fun unsubscribeAll(conn: WebSocket, context: ConnectionContext) {
+        for (topic in context.topics.toList()) unsubscribe(conn, context, topic)
+    }
+
+    /** Live view of the connections subscribed to [topic]. */
+    fun subscribers(topic: String): Collection<WebSocket> = topics[topic] ?: emptySet()
+
+    fun topicNames(): Set<String> = topics.keys
+}
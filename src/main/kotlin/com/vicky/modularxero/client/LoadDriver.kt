@@ -0,0 +1,158 @@
+package com.vicky.modularxero.client
+
+import com.google.gson.JsonParser
+import com.vicky.modularxero.common.Response
+import com.vicky.modularxero.common.values.MessageValue
+import picocli.CommandLine
+import picocli.CommandLine.Command
+import picocli.CommandLine.Option
+import java.net.URI
+import java.util.concurrent.Callable
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.system.exitProcess
+
+/**
+ * Closed-loop load generator built on [ModularXeroClient]: each connection keeps `--concurrency` copies of
+ * one request in flight for `--duration` seconds, printing throughput and latency once a second.
+ *
+ * `java -cp ModularXero.jar com.vicky.modularxero.client.LoadDriver --module orders --type LIST`
+ */
+@Command(
+    name = "mox-load",
+    description = ["Drive load against a ModularXero server"],
+    mixinStandardHelpOptions = true
+)
+class LoadDriver : Callable<Int> {
+    @Option(names = ["--url"], description = ["Server address"], defaultValue = "ws://localhost:8025")
+    lateinit var url: String
+
+    @Option(names = ["--module"], description = ["Module address to call"], required = true)
+    lateinit var module: String
+
+    @Option(names = ["--type"], description = ["Message type to send"], required = true)
+    lateinit var type: String
+
+    @Option(names = ["--payload"], description = ["Payload as JSON, e.g. {\"valueType\":\"StringValue\",\"value\":\"x\"}"])
+    var payload: String? = null
+
+    @Option(names = ["--connections"], description = ["Client connections"], defaultValue = "1")
+    var connections: Int = 1
+
+    @Option(names = ["--concurrency"], description = ["Requests in flight per connection"], defaultValue = "64")
+    var concurrency: Int = 64
+
+    @Option(names = ["--duration"], description = ["Seconds to run"], defaultValue = "30")
+    var duration: Long = 30
+
+    @Option(names = ["--timeout"], description = ["Per-request timeout in ms"], defaultValue = "10000")
+    var timeoutMs: Long = 10_000
+
+    private val ok = AtomicLong()
+    private val failed = AtomicLong()
+    private val errors = AtomicLong()
+    private val latencies = LatencyHistogram()
+    @Volatile private var running = true
+
+    override fun call(): Int {
+        val body = payload?.let { ModularXeroClient.decode(JsonParser.parseString(it)) }
+        val options = ClientOptions(maxInFlight = concurrency, requestTimeoutMs = timeoutMs)
+        val clients = List(connections) { ModularXeroClient(URI.create(url), options).connect() }
+
+        val started = System.nanoTime()
+        for (client in clients) repeat(concurrency) { loop(client, body) }
+
+        var last = 0L
+        for (second in 1..duration) {
+            Thread.sleep(1000)
+            val done = ok.get() + failed.get() + errors.get()
+            println("[${second}s] ${done - last} req/s | ok ${ok.get()} | failed ${failed.get()} | errors ${errors.get()} | $latencies")
+            last = done
+        }
+        running = false
+        val seconds = (System.nanoTime() - started) / 1e9
+        clients.forEach { it.close() }
+
+        val done = ok.get() + failed.get() + errors.get()
+        println("Done: $done requests in ${"%.1f".format(seconds)}s, ${"%.0f".format(done / seconds)} req/s")
+        println("ok ${ok.get()} | failed ${failed.get()} | errors ${errors.get()} | $latencies")
+        return if (errors.get() == 0L) 0 else 1
+    }
+
+    // one chain: send, record, send again until the run ends
+    private fun loop(client: ModularXeroClient, body: MessageValue<*>?) {
+        if (!running) return
+        val sent = System.nanoTime()
+        client.send(module, type, body).whenComplete { response, error ->
+            latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent))
+            when {
+                // client closed or swamped, this chain is done
+                error?.cause is ClientException || error is ClientException -> return@whenComplete
+                error != null -> errors.incrementAndGet()
+                response.status == Response.ResponseStatus.FAILED -> failed.incrementAndGet()
+                else -> ok.incrementAndGet()
+            }
+            loop(client, body)
+        }
+    }
+
+    companion object {
+        @JvmStatic
+        fun main(args: Array<String>) {
+            exitProcess(CommandLine(LoadDriver()).execute(*args))
+        }
+    }
+}
+
+/**
+ * Log-linear latency histogram in microseconds: 8 buckets per power of two, so percentiles are within
+ * about 12%. Recording is lock-free.
+ */
+class LatencyHistogram {
+    private val counts = AtomicLongArray(64 * SUB_BUCKETS)
+    private val total = AtomicLong()
+
+    fun record(micros: Long) {
+        counts.incrementAndGet(indexOf(micros.coerceAtLeast(1)))
+        total.incrementAndGet()
+    }
+
+    /** Upper bound of the bucket holding the [percentile]th value, in microseconds. */
+    fun percentile(percentile: Double): Long {
+        val count = total.get()
+        if (count == 0L) return 0
+        val rank = (count * percentile / 100).toLong().coerceAtLeast(1)
+        var seen = 0L
+        for (i in 0 until counts.length()) {
+            seen += counts.get(i)
+            if (seen >= rank) return upperBound(i)
+        }
+        return upperBound(counts.length() - 1)
+    }
+
+    override fun toString(): String =
+        "p50 ${format(percentile(50.0))} | p99 ${format(percentile(99.0))} | p99.9 ${format(percentile(99.9))}"
+
+    private fun indexOf(micros: Long): Int {
+        val power = 63 - micros.countLeadingZeroBits()
+        if (power < SUB_BITS) return micros.toInt()
+        val sub = (micros ushr (power - SUB_BITS)).toInt() and (SUB_BUCKETS - 1)
+        return (power - SUB_BITS + 1) * SUB_BUCKETS + sub
+    }
+
+    private fun upperBound(index: Int): Long {
+        if (index < SUB_BUCKETS) return index.toLong()
+        val power = index / SUB_BUCKETS + SUB_BITS - 1
+        val sub = (index % SUB_BUCKETS).toLong()
+        return ((SUB_BUCKETS + sub + 1) shl (power - SUB_BITS)) - 1
+    }
+
+    private fun format(micros: Long): String =
+        if (micros < 1000) "${micros}us" else "${"%.1f".format(micros / 1000.0)}ms"
+
+    private companion object {
+        const val SUB_BITS = 3
+        const val SUB_BUCKETS = 1 shl SUB_BITS
+    }
+}
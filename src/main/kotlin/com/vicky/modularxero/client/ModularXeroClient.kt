@@ -0,0 +1,495 @@
+package com.vicky.modularxero.client
+
+import com.google.gson.FormattingStyle
+import com.google.gson.JsonArray
+import com.google.gson.JsonElement
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import com.vicky.modularxero.common.MessageType
+import com.vicky.modularxero.common.Request
+import com.vicky.modularxero.common.Response
+import com.vicky.modularxero.common.gson
+import com.vicky.modularxero.common.values.ListValue
+import com.vicky.modularxero.common.values.MapValue
+import com.vicky.modularxero.common.values.MessageValue
+import com.vicky.modularxero.common.values.StringValue
+import org.java_websocket.client.WebSocketClient
+import org.java_websocket.exceptions.WebsocketNotConnectedException
+import org.java_websocket.handshake.ServerHandshake
+import java.net.URI
+import java.net.URLEncoder
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.Semaphore
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Consumer
+import java.util.logging.Logger
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+import kotlin.coroutines.suspendCoroutine
+
+/**
+ * Settings for a [ModularXeroClient].
+ */
+data class ClientOptions(
+    /** Requests sent and not yet answered; further ones wait in the client until a reply comes back. */
+    val maxInFlight: Int = 256,
+    /** Requests waiting to be sent (including while disconnected) before new ones are refused outright. */
+    val maxQueued: Int = 10_000,
+    /** How long a request may go unanswered before its future fails, 0 for no limit. */
+    val requestTimeoutMs: Long = 30_000,
+    val connectTimeoutMs: Long = 10_000,
+    val reconnect: Boolean = true,
+    val reconnectInitialMs: Long = 250,
+    val reconnectMaxMs: Long = 10_000,
+    /**
+     * Session to resume, as issued by the server to an earlier client (see [ModularXeroClient.session]);
+     * null to be issued a new one. Ids restart with each client, so don't hand the same session to two clients.
+     */
+    val session: String? = null,
+    /** Send requests that were in flight when the connection dropped again after reconnecting. */
+    val resendOnReconnect: Boolean = true
+)
+
+/**
+ * Thrown into a request's future when it can't be answered: the client closed, the queue was full, or the
+ * connection dropped and [ClientOptions.resendOnReconnect] is off.
+ */
+class ClientException(message: String) : RuntimeException(message)
+
+/**
+ * JSON client for a ModularXero server that keeps many requests in flight on one connection.
+ *
+ * Every request gets an id and its reply is matched back to it, so callers don't wait for one answer
+ * before sending the next; up to [ClientOptions.maxInFlight] are on the wire at once and the rest queue
+ * here. PENDING replies are skipped, the future completes with the final response. Topic events go to
+ * the listeners registered with [subscribe].
+ *
+ * If the connection drops it is reopened with backoff under the same session, unanswered requests are
+ * sent again and subscriptions renewed. Requests made while disconnected wait in the queue.
+ *
+ * Futures complete on the socket's thread; don't block in their callbacks.
+ */
+class ModularXeroClient @JvmOverloads constructor(
+    private val uri: URI,
+    val options: ClientOptions = ClientOptions()
+) : AutoCloseable {
+    private class Pending(
+        val id: String,
+        val frame: String,
+        val future: CompletableFuture<JsonObject>
+    ) {
+        // true while this request holds one of the in-flight permits
+        val sent = AtomicBoolean()
+        var timeout: ScheduledFuture<*>? = null
+    }
+
+    private val logger = Logger.getLogger("ModularXeroClient")
+    private val pending = ConcurrentHashMap<String, Pending>()
+    private val backlog = ConcurrentLinkedDeque<Pending>()
+    private val queued = AtomicInteger()
+    private val permits = Semaphore(options.maxInFlight.coerceAtLeast(1))
+    private val ids = AtomicLong()
+    private val listeners = ConcurrentHashMap<String, CopyOnWriteArrayList<Consumer<Response<MessageValue<*>>>>>()
+    private val timers = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "mox-client-timer").apply { isDaemon = true }
+    }
+
+    @Volatile private var socket: Socket? = null
+    /**
+     * Session the server issued on the first connect, sent back on every reconnect. The server keys its
+     * idempotency cache on it, so requests resent after a reconnect are answered from the cache instead of
+     * running twice.
+     */
+    @Volatile var session: String? = options.session
+        private set
+    @Volatile private var closed = false
+    @Volatile private var attempt = 0
+
+    /** Requests on the wire awaiting a reply. */
+    fun inFlight(): Int = options.maxInFlight.coerceAtLeast(1) - permits.availablePermits()
+
+    /** Requests waiting to be sent. */
+    fun queued(): Int = queued.get()
+
+    val isConnected: Boolean get() = socket?.isOpen == true
+
+    /**
+     * Open the connection, waiting up to [ClientOptions.connectTimeoutMs]. If that first attempt fails the
+     * client is closed and this throws; later drops are handled by reconnecting.
+     */
+    fun connect(): ModularXeroClient {
+        check(!closed) { "Client is closed" }
+        val socket = Socket(sessionUri())
+        this.socket = socket
+        if (!socket.connectBlocking(options.connectTimeoutMs, TimeUnit.MILLISECONDS)) {
+            close()
+            throw ClientException("Could not connect to $uri")
+        }
+        return this
+    }
+
+    /**
+     * Send a request to [module] and complete with its final response. [type] is the handler's message
+     * type, [timeoutMs] is passed to the server as the request's deadline.
+     */
+    @JvmOverloads
+    fun send(
+        module: String,
+        type: String,
+        payload: MessageValue<*>? = null,
+        timeoutMs: Long? = null
+    ): CompletableFuture<Response<MessageValue<*>>> {
+        val id = nextId()
+        return submit(id, frame(module, type, id, payload, timeoutMs)).thenApply(::toResponse)
+    }
+
+    /** Send a [Request] built elsewhere. Its id is replaced, the client needs them unique. */
+    fun send(request: Request<out MessageValue<*>>): CompletableFuture<Response<MessageValue<*>>> {
+        val module = request.moduleAddress ?: request.moduleName
+            ?: throw IllegalArgumentException("Request has no moduleAddress")
+        return send(module, (request.type ?: MessageType.NULL).name, request.payload, request.timeoutMs)
+    }
+
+    /** [send] for coroutines. */
+    suspend fun call(
+        module: String,
+        type: String,
+        payload: MessageValue<*>? = null,
+        timeoutMs: Long? = null
+    ): Response<MessageValue<*>> = send(module, type, payload, timeoutMs).await()
+
+    /** One request inside a [batch]. */
+    data class BatchItem @JvmOverloads constructor(
+        val module: String,
+        val type: String,
+        val payload: MessageValue<*>? = null
+    )
+
+    /**
+     * Send [items] as one BATCH frame and complete with their responses in the same order. With
+     * [sequential] the server runs them one after another on this connection, otherwise concurrently.
+     * A batch the server refuses as a whole completes exceptionally.
+     */
+    @JvmOverloads
+    fun batch(items: List<BatchItem>, sequential: Boolean = false): CompletableFuture<List<Response<MessageValue<*>>>> {
+        require(items.isNotEmpty()) { "Batch is empty" }
+        val id = nextId()
+        val requests = JsonArray(items.size)
+        items.forEachIndexed { i, item -> requests.add(frame(item.module, item.type, "$id.$i", item.payload, null)) }
+        val frame = JsonObject().apply {
+            addProperty("type", MessageType.BATCH.name)
+            addProperty("id", id)
+            addProperty("sequential", sequential)
+            add("requests", requests)
+        }
+        return submit(id, frame).thenApply { reply ->
+            val response = toResponse(reply)
+            val entries = (response.payload as? MapValue<*>)?.get()
+            if (response.status == Response.ResponseStatus.FAILED || entries == null) {
+                throw ClientException("Batch refused: ${reason(response)}")
+            }
+            List(items.size) { i -> entry(entries["$id.$i"]) }
+        }
+    }
+
+    /** [batch] for coroutines. */
+    suspend fun callBatch(items: List<BatchItem>, sequential: Boolean = false): List<Response<MessageValue<*>>> =
+        batch(items, sequential).await()
+
+    /**
+     * Have events published on [topic] passed to [listener], on the socket's thread. The subscription is
+     * renewed after a reconnect. Completes with the server's answer to the SUBSCRIBE.
+     */
+    fun subscribe(topic: String, listener: Consumer<Response<MessageValue<*>>>): CompletableFuture<Response<MessageValue<*>>> {
+        var first = false
+        listeners.compute(topic) { _, current ->
+            (current ?: CopyOnWriteArrayList<Consumer<Response<MessageValue<*>>>>().also { first = true })
+                .apply { add(listener) }
+        }
+        return if (first) topicRequest(SUBSCRIBE, topic)
+        else CompletableFuture.completedFuture(Response(null, StringValue(topic), Response.ResponseStatus.OK))
+    }
+
+    /** Drop every listener on [topic] and tell the server. */
+    fun unsubscribe(topic: String): CompletableFuture<Response<MessageValue<*>>> {
+        listeners.remove(topic)
+        return topicRequest(UNSUBSCRIBE, topic)
+    }
+
+    /** Close the connection and fail everything still waiting. */
+    override fun close() {
+        if (closed) return
+        closed = true
+        socket?.close()
+        val error = ClientException("Client closed")
+        pending.values.forEach { it.future.completeExceptionally(error) }
+        timers.shutdownNow()
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // sending
+
+    private fun nextId(): String = "c${ids.incrementAndGet()}"
+
+    private fun frame(module: String?, type: String, id: String, payload: MessageValue<*>?, timeoutMs: Long?): JsonObject =
+        JsonObject().apply {
+            module?.let { addProperty("moduleAddress", it) }
+            addProperty("type", type)
+            addProperty("id", id)
+            timeoutMs?.let { addProperty("timeoutMs", it) }
+            payload?.let { add("payload", gson.toJsonTree(it, MessageValue::class.java)) }
+        }
+
+    private fun topicRequest(type: String, topic: String): CompletableFuture<Response<MessageValue<*>>> {
+        val id = nextId()
+        return submit(id, frame(null, type, id, StringValue(topic), null)).thenApply(::toResponse)
+    }
+
+    private fun submit(id: String, frame: JsonObject): CompletableFuture<JsonObject> {
+        val future = CompletableFuture<JsonObject>()
+        if (closed) return future.apply { completeExceptionally(ClientException("Client closed")) }
+        if (queued.incrementAndGet() > options.maxQueued) {
+            queued.decrementAndGet()
+            return future.apply { completeExceptionally(ClientException("${options.maxQueued} requests already queued")) }
+        }
+
+        val request = Pending(id, COMPACT.toJson(frame), future)
+        pending[id] = request
+        if (options.requestTimeoutMs > 0) {
+            request.timeout = timers.schedule(
+                { future.completeExceptionally(TimeoutException("No response to $id within ${options.requestTimeoutMs}ms")) },
+                options.requestTimeoutMs, TimeUnit.MILLISECONDS
+            )
+        }
+        // however it ends, free its slot and let the next one out
+        future.whenComplete { _, _ -> finished(request) }
+        backlog.addLast(request)
+        pump()
+        return future
+    }
+
+    private fun finished(request: Pending) {
+        pending.remove(request.id, request)
+        request.timeout?.cancel(false)
+        if (request.sent.compareAndSet(true, false)) permits.release()
+        else if (backlog.remove(request)) queued.decrementAndGet()
+        pump()
+    }
+
+    // move queued requests onto the wire while there are permits and a connection
+    private fun pump() {
+        while (true) {
+            val socket = socket?.takeIf { it.isOpen } ?: return
+            if (!permits.tryAcquire()) return
+            val next = backlog.pollFirst()
+            if (next == null) {
+                permits.release()
+                // something may have been queued between the poll and the release
+                if (backlog.isEmpty()) return
+                continue
+            }
+            queued.decrementAndGet()
+            if (next.future.isDone) {
+                permits.release()
+                continue
+            }
+            next.sent.set(true)
+            try {
+                socket.send(next.frame)
+            } catch (_: WebsocketNotConnectedException) {
+                // handled below
+            }
+            // the socket closed around the send and dropped() may already have collected the in-flight
+            // requests without this one; if it's still ours, put it back ourselves
+            if (!socket.isOpen && next.sent.compareAndSet(true, false)) {
+                permits.release()
+                requeue(next, "connection closed while sending")
+                continue
+            }
+            // completed while we were sending: finished() saw sent=false, the permit is ours to return
+            if (next.future.isDone && next.sent.compareAndSet(true, false)) permits.release()
+        }
+    }
+
+    // a request whose send was lost with the connection: resend it first thing after reconnecting
+    private fun requeue(request: Pending, reason: String) {
+        if (options.resendOnReconnect && !closed) {
+            queued.incrementAndGet()
+            backlog.addFirst(request)
+        } else {
+            request.future.completeExceptionally(ClientException("Connection lost: $reason"))
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // receiving
+
+    private fun receive(text: String) {
+        val reply = try {
+            JsonParser.parseString(text).asJsonObject
+        } catch (ex: Exception) {
+            logger.warning("Unreadable frame from $uri: ${ex.message}")
+            return
+        }
+        val id = reply.string("id") ?: return
+        val status = reply.string("status")
+        if (reply.string("type") == MessageType.EVENT.name) {
+            val topicListeners = listeners[id]
+            if (topicListeners != null) {
+                val event = toResponse(reply)
+                topicListeners.forEach {
+                    try {
+                        it.accept(event)
+                    } catch (ex: Exception) {
+                        logger.warning("Listener on $id failed: ${ex.message}")
+                    }
+                }
+                return
+            }
+        }
+        if (status == Response.ResponseStatus.PENDING.name) return
+        pending[id]?.future?.complete(reply)
+    }
+
+    private fun opened() {
+        attempt = 0
+        // renew subscriptions first, they were dropped with the old connection
+        for (topic in listeners.keys) topicRequest(SUBSCRIBE, topic)
+        pump()
+    }
+
+    private fun dropped(socket: Socket, reason: String) {
+        if (this.socket !== socket) return
+        val inFlight = pending.values
+            .filter { it.sent.compareAndSet(true, false) }
+            .sortedBy { it.id.drop(1).toLongOrNull() }
+        for (request in inFlight.asReversed()) {
+            permits.release()
+            requeue(request, reason)
+        }
+        if (closed || !options.reconnect) return
+        val delay = (options.reconnectInitialMs shl attempt.coerceAtMost(16)).coerceAtMost(options.reconnectMaxMs)
+        attempt++
+        logger.info("Connection to $uri lost ($reason), reconnecting in ${delay}ms")
+        try {
+            timers.schedule(::reconnect, delay + ThreadLocalRandom.current().nextLong(delay / 4 + 1), TimeUnit.MILLISECONDS)
+        } catch (_: Exception) {
+            // closed in the meantime
+        }
+    }
+
+    private fun reconnect() {
+        if (closed) return
+        val next = Socket(sessionUri())
+        socket = next
+        next.connect()
+    }
+
+    private fun sessionUri(): URI {
+        val session = "session=" + URLEncoder.encode(this.session ?: return uri, StandardCharsets.UTF_8)
+        val text = uri.toString()
+        return URI.create(if ('?' in text) "$text&$session" else "$text?$session")
+    }
+
+    private inner class Socket(uri: URI) : WebSocketClient(uri) {
+        override fun onOpen(handshakedata: ServerHandshake?) {
+            // the server hands out a new session if it didn't issue the one we sent
+            handshakedata?.getFieldValue(SESSION_HEADER)?.takeIf { it.isNotEmpty() }?.let { session = it }
+            opened()
+        }
+
+        override fun onMessage(message: String) = receive(message)
+
+        override fun onClose(code: Int, reason: String?, remote: Boolean) = dropped(this, reason?.takeIf { it.isNotEmpty() } ?: "code $code")
+
+        override fun onError(ex: Exception?) {
+            logger.warning("Connection to ${this@ModularXeroClient.uri} failed: ${ex?.message}")
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // decoding
+
+    private fun toResponse(reply: JsonObject): Response<MessageValue<*>> {
+        val response = Response<MessageValue<*>>(
+            messageType(reply.string("type")),
+            decode(reply["payload"]),
+            reply.string("status")?.let { status -> Response.ResponseStatus.entries.firstOrNull { it.name == status } }
+                ?: Response.ResponseStatus.OK
+        )
+        response.id = reply.string("id")
+        return response
+    }
+
+    // a batch entry is {status, type?, payload?} as built by the dispatcher
+    private fun entry(value: Any?): Response<MessageValue<*>> {
+        val fields = (value as? MapValue<*>)?.get()
+            ?: return Response(null, null, Response.ResponseStatus.FAILED)
+        val status = (fields["status"] as? MessageValue<*>)?.get()
+        return Response(
+            messageType((fields["type"] as? MessageValue<*>)?.get() as? String),
+            fields["payload"] as? MessageValue<*>,
+            Response.ResponseStatus.entries.firstOrNull { it.name == status } ?: Response.ResponseStatus.OK
+        )
+    }
+
+    private fun reason(response: Response<MessageValue<*>>): String =
+        ((response.payload as? MapValue<*>)?.get()?.get("reason") as? MessageValue<*>)?.get() as? String
+            ?: "no reason given"
+
+    companion object {
+        private const val SUBSCRIBE = "SUBSCRIBE"
+        private const val UNSUBSCRIBE = "UNSUBSCRIBE"
+        private const val SESSION_HEADER = "X-Mox-Session"
+
+        private val COMPACT = gson.newBuilder().setFormattingStyle(FormattingStyle.COMPACT).create()
+
+        private fun JsonObject.string(key: String): String? = get(key)?.takeIf { it.isJsonPrimitive }?.asString
+
+        private fun messageType(name: String?): MessageType? = MessageType.entries.firstOrNull { it.name == name }
+
+        /**
+         * A `{"valueType": .., "value": ..}` tree as a [MessageValue], null if it isn't one. Maps and lists
+         * are walked here since gson's reflective adapters lose their element types.
+         */
+        @JvmStatic
+        fun decode(element: JsonElement?): MessageValue<*>? {
+            if (element == null || !element.isJsonObject) return null
+            val node = element.asJsonObject
+            val value = node["value"]
+            return when (node.string("valueType")) {
+                "MapValue" -> MapValue(value?.takeIf { it.isJsonObject }?.asJsonObject?.entrySet()
+                    ?.associate { (key, item) -> key to (decode(item) ?: StringValue(item.toString())) }
+                    ?: emptyMap<String, MessageValue<*>>())
+                "ListValue" -> ListValue(value?.takeIf { it.isJsonArray }?.asJsonArray
+                    ?.map { item -> decode(item) ?: StringValue(item.toString()) }
+                    ?: emptyList<MessageValue<*>>())
+                null -> null
+                else -> try {
+                    gson.fromJson(node, MessageValue::class.java)
+                } catch (_: Exception) {
+                    StringValue(value?.toString() ?: "null")
+                }
+            }
+        }
+
+        private suspend fun <T> CompletableFuture<T>.await(): T = suspendCoroutine { continuation ->
+            whenComplete { value, error ->
+                if (error == null) continuation.resume(value)
+                else continuation.resumeWithException((error as? CompletionException)?.cause ?: error)
+            }
+        }
+    }
+}
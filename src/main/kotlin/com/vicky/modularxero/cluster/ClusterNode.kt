@@ -0,0 +1,360 @@
+package com.vicky.modularxero.cluster
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.vicky.modularxero.ConnectionContext
+import com.vicky.modularxero.ModularXeroDispatcher
+import com.vicky.modularxero.ServerConfig
+import com.vicky.modularxero.WireEncoding
+import com.vicky.modularxero.common.Logger.ContextLogger
+import com.vicky.modularxero.common.RequestEnvelope
+import com.vicky.modularxero.common.Response
+import org.java_websocket.WebSocket
+import org.java_websocket.client.WebSocketClient
+import org.java_websocket.exceptions.WebsocketNotConnectedException
+import org.java_websocket.framing.CloseFrame
+import org.java_websocket.handshake.ClientHandshake
+import org.java_websocket.handshake.ServerHandshake
+import java.net.URI
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * What this node knows about another node: where to reach it and which modules it hosts.
+ * [version] only grows, so gossip about a node always converges on its latest announcement.
+ */
+class NodeInfo(val id: String, val endpoint: String, val modules: Set<String>, val version: Long) {
+    @Volatile var heardAt: Long = System.currentTimeMillis()
+}
+
+/**
+ * Cluster mode: ModularXero instances that share which modules they host and forward requests for
+ * modules they don't have to the node that does.
+ *
+ * Nodes talk over persistent websocket links to each other's main listener on [PATH]. Every link carries
+ * binary frames of the form `op(1) correlationId(8) encoding(1) body`:
+ * - `HELLO`: JSON gossip, this node's view of every node it knows (itself included), sent on connect and
+ *   every `mox.cluster.gossip_ms`. Nodes learned this way are dialled too.
+ * - `FORWARD`: the client's request frame exactly as it arrived, run on the owning node.
+ * - `RELAY`: the response, already serialized in the client's wire encoding, so the origin node only has
+ *   to write it to the client's connection.
+ *
+ * Many requests share one link at a time, matched up by correlation id.
+ */
+class ClusterNode(private val dispatcher: ModularXeroDispatcher, private val config: ServerConfig) {
+    val nodeId: String = config.clusterNodeId
+
+    init {
+        // links carry other clients' requests, passwords included, so anyone able to open one must be a node
+        check(config.clusterSecret.isNotEmpty()) { "Cluster mode needs a shared secret, set mox.cluster.secret on every node" }
+    }
+
+    private val secret = config.clusterSecret.toByteArray(StandardCharsets.UTF_8)
+
+    private val logger = ContextLogger(ContextLogger.ContextType.SUB_SYSTEM, "Cluster-$nodeId")
+    private val mapper = ObjectMapper()
+    private val nodes = ConcurrentHashMap<String, NodeInfo>()
+    // node id -> an open link to it, inbound or outbound
+    private val links = ConcurrentHashMap<String, WebSocket>()
+    // endpoint -> outbound link being opened or open
+    private val dialled = ConcurrentHashMap<String, ClusterLink>()
+    private val pending = ConcurrentHashMap<Long, PendingForward>()
+    private val correlation = AtomicLong()
+    // wall clock at startup, so a restarted node's announcements still win over its old ones
+    private val version = AtomicLong(System.currentTimeMillis())
+    private val timer = Executors.newSingleThreadScheduledExecutor { task ->
+        Thread(task, "mox-cluster").apply { isDaemon = true }
+    }
+
+    private class PendingForward(
+        val conn: WebSocket,
+        val id: String,
+        val encoding: WireEncoding,
+        val link: WebSocket,
+        val timeout: ScheduledFuture<*>
+    )
+
+    fun start() {
+        logger.print("Node $nodeId advertising ${config.clusterAdvertise}, peers: ${config.clusterPeers.ifEmpty { listOf("none") }.joinToString()}")
+        timer.scheduleWithFixedDelay(::gossip, 0, config.clusterGossipMs, TimeUnit.MILLISECONDS)
+    }
+
+    fun stop() {
+        timer.shutdownNow()
+        dialled.values.forEach { it.close(CloseFrame.GOING_AWAY) }
+        for (id in pending.keys.toList()) fail(id, "Node $nodeId is shutting down")
+    }
+
+    /**
+     * Announce a change in the modules this node hosts on the next gossip round, which is started now.
+     */
+    fun localModulesChanged() {
+        version.incrementAndGet()
+        if (!timer.isShutdown) timer.execute(::gossip)
+    }
+
+    /** Known nodes other than this one, for the console. */
+    fun nodes(): Collection<NodeInfo> = nodes.values
+
+    fun isLinked(nodeId: String): Boolean = links[nodeId]?.isOpen == true
+
+    // ---------------------------------------------------------------------------------------------
+    // links
+
+    /**
+     * Accept an inbound link opened on [PATH]. False if the peer didn't identify itself or didn't present
+     * the cluster secret, the caller closes the connection then.
+     */
+    fun accept(conn: WebSocket, handshake: ClientHandshake): Boolean {
+        val peer = handshake.getFieldValue(NODE_HEADER)?.trim()
+        if (peer.isNullOrEmpty() || peer == nodeId) return false
+        val presented = handshake.getFieldValue(SECRET_HEADER)?.toByteArray(StandardCharsets.UTF_8) ?: ByteArray(0)
+        if (!MessageDigest.isEqual(presented, secret)) {
+            logger.print("Rejected cluster link from ${conn.remoteSocketAddress}: bad secret", ContextLogger.LogType.WARNING)
+            return false
+        }
+        dispatcher.connectionOpened(conn, WireEncoding.BINARY, null, peer)
+        links[peer] = conn
+        logger.print("Link from node $peer opened", ContextLogger.LogType.SUCCESS)
+        send(conn, HELLO, 0, WireEncoding.JSON, ByteBuffer.wrap(helloBody()))
+        return true
+    }
+
+    fun linkClosed(conn: WebSocket) {
+        links.entries.removeIf { (peer, link) ->
+            (link === conn).also { if (it) logger.print("Link to node $peer closed", ContextLogger.LogType.WARNING) }
+        }
+        for ((id, forward) in pending) {
+            if (forward.link === conn) fail(id, "Lost the link to the node serving this request")
+        }
+    }
+
+    private fun dial(endpoint: String) {
+        val link = ClusterLink(endpoint)
+        if (dialled.putIfAbsent(endpoint, link) != null) return
+        try {
+            link.connect()
+        } catch (ex: Exception) {
+            dialled.remove(endpoint, link)
+        }
+    }
+
+    private inner class ClusterLink(val endpoint: String) : WebSocketClient(
+        URI.create(endpoint.trimEnd('/') + PATH),
+        buildMap {
+            put(NODE_HEADER, nodeId)
+            put(SECRET_HEADER, config.clusterSecret)
+        }
+    ) {
+        override fun onOpen(handshakedata: ServerHandshake?) {
+            send(this, HELLO, 0, WireEncoding.JSON, ByteBuffer.wrap(helloBody()))
+        }
+
+        override fun onMessage(message: String?) {}
+
+        override fun onMessage(bytes: ByteBuffer) {
+            receive(this, bytes)
+        }
+
+        override fun onClose(code: Int, reason: String?, remote: Boolean) {
+            dialled.remove(endpoint, this)
+            linkClosed(this)
+        }
+
+        override fun onError(ex: Exception?) {
+            logger.print("Link to $endpoint failed: ${ex?.message}", ContextLogger.LogType.WARNING)
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // forwarding
+
+    /**
+     * Send [envelope] to the node hosting its module. Returns false if no linked node hosts it, in which
+     * case the caller answers the client itself. The client gets the response (or a timeout) later.
+     */
+    fun forward(conn: WebSocket, envelope: RequestEnvelope): Boolean {
+        val address = envelope.moduleAddress ?: return false
+        val owner = ownerOf(address) ?: return false
+        val link = links[owner] ?: return false
+
+        val encoding = ConnectionContext.of(conn)?.encoding ?: WireEncoding.JSON
+        val id = correlation.incrementAndGet()
+        val timeout = timer.schedule(
+            { fail(id, "Node $owner did not answer within ${config.clusterTimeoutMs}ms") },
+            config.clusterTimeoutMs, TimeUnit.MILLISECONDS
+        )
+        pending[id] = PendingForward(conn, envelope.responseId(), encoding, link, timeout)
+
+        val body = envelope.rawBytes() ?: ByteBuffer.wrap(envelope.rawText().toByteArray(StandardCharsets.UTF_8))
+        return try {
+            send(link, FORWARD, id, encoding, body)
+            true
+        } catch (_: WebsocketNotConnectedException) {
+            pending.remove(id)
+            timeout.cancel(false)
+            false
+        }
+    }
+
+    /** Node hosting [moduleAddress] that we have an open link to, picked the same way on every node. */
+    fun ownerOf(moduleAddress: String): String? =
+        nodes.values
+            .filter { moduleAddress in it.modules && isLinked(it.id) }
+            .minByOrNull { it.id }
+            ?.id
+
+    /**
+     * Handle a frame from any link, called on the link's websocket thread.
+     */
+    fun receive(conn: WebSocket, frame: ByteBuffer) {
+        if (frame.remaining() < HEADER_SIZE) return
+        val op = frame.get()
+        val id = frame.getLong()
+        val encoding = WireEncoding.entries.getOrElse(frame.get().toInt()) { WireEncoding.JSON }
+        val body = frame.slice()
+        when (op) {
+            HELLO -> onHello(conn, body)
+            FORWARD -> onForward(conn, id, encoding, body)
+            RELAY -> onRelay(id, body)
+        }
+    }
+
+    private fun onForward(link: WebSocket, id: Long, encoding: WireEncoding, body: ByteBuffer) {
+        val envelope = try {
+            RequestEnvelope.parse(body)
+        } catch (ex: Exception) {
+            relay(link, id, encoding, Response.error("Malformed forwarded request: ${ex.message}"))
+            return
+        }
+        dispatcher.executeForPeer(envelope).thenAccept { response -> relay(link, id, encoding, response) }
+    }
+
+    private fun relay(link: WebSocket, id: Long, encoding: WireEncoding, response: Response<*>) {
+        try {
+            send(link, RELAY, id, encoding, ByteBuffer.wrap(dispatcher.encode(response, encoding)))
+        } catch (_: WebsocketNotConnectedException) {
+            // the origin times the request out, nothing else to do
+        }
+    }
+
+    private fun onRelay(id: Long, body: ByteBuffer) {
+        val forward = pending.remove(id) ?: return
+        forward.timeout.cancel(false)
+        if (forward.conn.isOpen) dispatcher.sendEncoded(forward.conn, body, forward.encoding)
+    }
+
+    private fun fail(id: Long, reason: String) {
+        val forward = pending.remove(id) ?: return
+        forward.timeout.cancel(false)
+        if (!forward.conn.isOpen) return
+        val error = Response.error(reason)
+        error.id = forward.id
+        dispatcher.sendEncoded(forward.conn, ByteBuffer.wrap(dispatcher.encode(error, forward.encoding)), forward.encoding)
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // gossip
+
+    private fun gossip() {
+        try {
+            val now = System.currentTimeMillis()
+            // forget nodes nobody has heard from for a while and we have no link to
+            nodes.values.removeIf { !isLinked(it.id) && now - it.heardAt > config.clusterGossipMs * 3 }
+
+            val linkedEndpoints = nodes.values.filter { isLinked(it.id) }.map { it.endpoint }.toSet()
+            val endpoints = (config.clusterPeers + nodes.values.map { it.endpoint }).toSet()
+            for (endpoint in endpoints) {
+                if (endpoint == config.clusterAdvertise || endpoint in linkedEndpoints || dialled.containsKey(endpoint)) continue
+                dial(endpoint)
+            }
+
+            val hello = helloBody()
+            for (link in links.values) {
+                try {
+                    send(link, HELLO, 0, WireEncoding.JSON, ByteBuffer.wrap(hello))
+                } catch (_: WebsocketNotConnectedException) {
+                }
+            }
+        } catch (ex: Exception) {
+            logger.print("Gossip round failed: ${ex.message}", true)
+        }
+    }
+
+    private fun helloBody(): ByteArray {
+        val root = mapper.createObjectNode()
+        root.put("node", nodeId)
+        val list = root.putArray("nodes")
+        list.addObject().apply {
+            put("id", nodeId)
+            put("endpoint", config.clusterAdvertise)
+            put("version", version.get())
+            putArray("modules").apply { dispatcher.listModules().forEach { add(it) } }
+        }
+        for (node in nodes.values) {
+            list.addObject().apply {
+                put("id", node.id)
+                put("endpoint", node.endpoint)
+                put("version", node.version)
+                putArray("modules").apply { node.modules.forEach { add(it) } }
+            }
+        }
+        return mapper.writeValueAsBytes(root)
+    }
+
+    private fun onHello(conn: WebSocket, body: ByteBuffer) {
+        val bytes = ByteArray(body.remaining())
+        body.get(bytes)
+        val root = try {
+            mapper.readTree(bytes)
+        } catch (ex: Exception) {
+            logger.print("Ignoring malformed gossip: ${ex.message}", ContextLogger.LogType.WARNING)
+            return
+        }
+        val sender = root.path("node").asText("")
+        if (sender.isEmpty() || sender == nodeId) return
+        if (links.putIfAbsent(sender, conn) == null) {
+            logger.print("Link to node $sender opened", ContextLogger.LogType.SUCCESS)
+        }
+
+        val now = System.currentTimeMillis()
+        for (entry in root.path("nodes")) {
+            val id = entry.path("id").asText("")
+            if (id.isEmpty() || id == nodeId) continue
+            val entryVersion = entry.path("version").asLong()
+            val known = nodes[id]
+            if (known == null || entryVersion > known.version) {
+                val modules = entry.path("modules").mapTo(LinkedHashSet()) { it.asText() }
+                nodes[id] = NodeInfo(id, entry.path("endpoint").asText(""), modules, entryVersion)
+                if (known == null || known.modules != modules) {
+                    logger.print("Node $id hosts: ${modules.joinToString().ifEmpty { "nothing" }}", ContextLogger.LogType.BASIC)
+                }
+            } else if (id == sender) {
+                known.heardAt = now
+            }
+        }
+    }
+
+    private fun send(link: WebSocket, op: Byte, id: Long, encoding: WireEncoding, body: ByteBuffer) {
+        val frame = ByteBuffer.allocate(HEADER_SIZE + body.remaining())
+        frame.put(op).putLong(id).put(encoding.ordinal.toByte()).put(body.duplicate()).flip()
+        link.send(frame)
+    }
+
+    companion object {
+        /** Path on the main listener that cluster links connect to. */
+        const val PATH = "/mox-cluster"
+        const val NODE_HEADER = "X-Mox-Node"
+        const val SECRET_HEADER = "X-Mox-Cluster-Secret"
+
+        private const val HELLO: Byte = 1
+        private const val FORWARD: Byte = 2
+        private const val RELAY: Byte = 3
+        private const val HEADER_SIZE = 1 + 8 + 1
+    }
+}
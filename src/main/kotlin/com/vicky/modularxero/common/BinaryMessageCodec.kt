@@ -0,0 +1,444 @@
+package com.vicky.modularxero.common
+
+import com.fasterxml.jackson.core.StreamReadConstraints
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.ArrayNode
+import com.fasterxml.jackson.databind.node.JsonNodeFactory
+import com.fasterxml.jackson.databind.node.ObjectNode
+import com.vicky.modularxero.common.values.*
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.math.BigDecimal
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+
+/**
+ * Compact tag-byte encoding of requests, responses and the [MessageValue] hierarchy, used on
+ * connections that negotiated the [PROTOCOL] subprotocol.
+ *
+ * Frame layout:
+ * ```
+ * request : MAGIC VERSION KIND_REQUEST  str(moduleAddress) str(type) str(id) value(payload)
+ * timed   : MAGIC VERSION KIND_TIMED_REQUEST str(moduleAddress) str(type) str(id) varint(timeoutMs) value(payload)
+ * response: MAGIC VERSION KIND_RESPONSE str(type) str(id) u8(status) value(payload)
+ * batch   : MAGIC VERSION KIND_BATCH    str(id) u8(sequential) varint(count) (varint(length) request)*
+ * chunk   : MAGIC VERSION KIND_CHUNK    varint(transfer) varint(offset) bytes*
+ * ```
+ * Chunk frames carry file data for uploads and downloads, the bytes running to the end of the frame. They
+ * are accepted on every connection, whichever encoding it negotiated.
+ * `str` is a varint of (UTF-8 length + 1) followed by the bytes, 0 meaning null. A `value` is one tag
+ * byte followed by its body; wrapped values (`StringValue`, `MapValue`, ...) and the raw elements that
+ * can sit inside lists and maps have separate tags, so no type names go over the wire.
+ *
+ * Decoded payloads are handed to modules as the same [JsonNode] shape the JSON wire format produces,
+ * so handlers don't need to care which encoding a client picked.
+ */
+object BinaryMessageCodec {
+    const val PROTOCOL = "mox.binary.v1"
+
+    const val MAGIC: Byte = 0x4D // 'M'
+    const val VERSION: Byte = 1
+    const val KIND_REQUEST: Byte = 1
+    const val KIND_RESPONSE: Byte = 2
+    const val KIND_BATCH: Byte = 3
+    /** A request carrying a timeout, so frames without one stay as small as before. */
+    const val KIND_TIMED_REQUEST: Byte = 4
+    const val KIND_CHUNK: Byte = 5
+
+    /** Room a chunk frame's header can take: magic, version, kind and two varints. */
+    const val CHUNK_HEADER_MAX = 3 + 10 + 10
+
+    // raw null / absent payload
+    private const val TAG_NULL = 0x00
+    // MessageValue wrappers
+    private const val TAG_STRING = 0x01
+    private const val TAG_BOOLEAN = 0x02
+    private const val TAG_INTEGER = 0x03
+    private const val TAG_FLOAT = 0x04
+    private const val TAG_DOUBLE = 0x05
+    private const val TAG_TIMESTAMP = 0x06
+    private const val TAG_CURRENCY = 0x07
+    private const val TAG_ENUM = 0x08
+    private const val TAG_LIST = 0x09
+    private const val TAG_MAP = 0x0A
+    // raw values nested inside lists and maps
+    private const val TAG_RAW_STRING = 0x11
+    private const val TAG_RAW_BOOLEAN = 0x12
+    private const val TAG_RAW_LONG = 0x13
+    private const val TAG_RAW_DOUBLE = 0x15
+    private const val TAG_RAW_LIST = 0x19
+    private const val TAG_RAW_MAP = 0x1A
+
+    private val NODES = JsonNodeFactory.instance
+    /** Deepest nesting of lists and maps a frame may carry, the same cap Jackson puts on JSON. */
+    private const val MAX_DEPTH = StreamReadConstraints.DEFAULT_MAX_DEPTH
+
+    /**
+     * True if [buffer] starts with a binary frame header (does not move the buffer's position).
+     */
+    @JvmStatic
+    fun isBinaryFrame(buffer: ByteBuffer): Boolean =
+        buffer.remaining() >= 3 && buffer.get(buffer.position()) == MAGIC && buffer.get(buffer.position() + 1) == VERSION
+
+    /**
+     * True if [buffer] starts with a batch frame header (does not move the buffer's position).
+     */
+    @JvmStatic
+    fun isBatchFrame(buffer: ByteBuffer): Boolean =
+        isBinaryFrame(buffer) && buffer.get(buffer.position() + 2) == KIND_BATCH
+
+    /**
+     * True if [buffer] starts with a file chunk header (does not move the buffer's position).
+     */
+    @JvmStatic
+    fun isChunkFrame(buffer: ByteBuffer): Boolean =
+        isBinaryFrame(buffer) && buffer.get(buffer.position() + 2) == KIND_CHUNK
+
+    // ---------------------------------------------------------------------------------------------
+    // encoding
+
+    @JvmStatic
+    fun encodeResponse(response: Response<*>): ByteArray {
+        val out = ByteArrayOutputStream(256)
+        writeResponse(response, out)
+        return out.toByteArray()
+    }
+
+    @JvmStatic
+    fun writeResponse(response: Response<*>, out: OutputStream) {
+        out.write(MAGIC.toInt())
+        out.write(VERSION.toInt())
+        out.write(KIND_RESPONSE.toInt())
+        writeString(out, response.type?.name)
+        writeString(out, response.id)
+        out.write(response.status?.ordinal ?: 0xFF)
+        writeValue(out, response.payload)
+    }
+
+    @JvmStatic
+    @JvmOverloads
+    fun encodeRequest(
+        moduleAddress: String?,
+        type: String?,
+        id: String?,
+        payload: MessageValue<*>?,
+        timeoutMs: Long? = null
+    ): ByteArray {
+        val out = ByteArrayOutputStream(128)
+        out.write(MAGIC.toInt())
+        out.write(VERSION.toInt())
+        out.write((if (timeoutMs != null) KIND_TIMED_REQUEST else KIND_REQUEST).toInt())
+        writeString(out, moduleAddress)
+        writeString(out, type)
+        writeString(out, id)
+        if (timeoutMs != null) writeVarLong(out, timeoutMs.coerceAtLeast(0))
+        writeValue(out, payload)
+        return out.toByteArray()
+    }
+
+    /**
+     * Wrap already encoded request frames (see [encodeRequest]) into one batch frame.
+     */
+    @JvmStatic
+    fun encodeBatch(id: String?, sequential: Boolean, requests: List<ByteArray>): ByteArray {
+        val out = ByteArrayOutputStream(16 + requests.sumOf { it.size + 2 })
+        out.write(MAGIC.toInt())
+        out.write(VERSION.toInt())
+        out.write(KIND_BATCH.toInt())
+        writeString(out, id)
+        out.write(if (sequential) 1 else 0)
+        writeVarLong(out, requests.size.toLong())
+        for (request in requests) {
+            writeVarLong(out, request.size.toLong())
+            out.write(request)
+        }
+        return out.toByteArray()
+    }
+
+    @JvmStatic
+    fun writeValue(out: OutputStream, value: Any?) {
+        when (value) {
+            null -> out.write(TAG_NULL)
+            is StringValue -> { out.write(TAG_STRING); writeString(out, value.get()) }
+            is BooleanValue -> { out.write(TAG_BOOLEAN); out.write(if (value.get()) 1 else 0) }
+            is IntegerValue -> { out.write(TAG_INTEGER); writeVarLong(out, zigZag(value.get().toLong())) }
+            is FloatValue -> { out.write(TAG_FLOAT); writeFixed(out, java.lang.Float.floatToIntBits(value.get()).toLong(), 4) }
+            is DoubleValue -> { out.write(TAG_DOUBLE); writeFixed(out, java.lang.Double.doubleToLongBits(value.get()), 8) }
+            is TimestampValue -> { out.write(TAG_TIMESTAMP); writeVarLong(out, zigZag(value.get())) }
+            is CurrencyValue -> {
+                out.write(TAG_CURRENCY)
+                writeString(out, value.symbol)
+                writeString(out, value.get().toPlainString())
+            }
+            is EnumValue<*> -> {
+                out.write(TAG_ENUM)
+                writeString(out, value.enumClassName)
+                writeString(out, value.get().name)
+            }
+            is ListValue<*> -> { out.write(TAG_LIST); writeElements(out, value.get()) }
+            is MapValue<*> -> { out.write(TAG_MAP); writeEntries(out, value.get()) }
+            is MessageValue<*> -> { out.write(TAG_STRING); writeString(out, value.toString()) }
+            // raw values, as found inside ListValue / MapValue
+            is String -> { out.write(TAG_RAW_STRING); writeString(out, value) }
+            is Boolean -> { out.write(TAG_RAW_BOOLEAN); out.write(if (value) 1 else 0) }
+            is Int, is Long, is Short, is Byte -> { out.write(TAG_RAW_LONG); writeVarLong(out, zigZag((value as Number).toLong())) }
+            is Float, is Double -> { out.write(TAG_RAW_DOUBLE); writeFixed(out, java.lang.Double.doubleToLongBits((value as Number).toDouble()), 8) }
+            is Collection<*> -> { out.write(TAG_RAW_LIST); writeElements(out, value) }
+            is Map<*, *> -> { out.write(TAG_RAW_MAP); writeEntries(out, value) }
+            else -> { out.write(TAG_RAW_STRING); writeString(out, value.toString()) }
+        }
+    }
+
+    private fun writeElements(out: OutputStream, elements: Collection<*>) {
+        writeVarLong(out, elements.size.toLong())
+        for (element in elements) writeValue(out, element)
+    }
+
+    private fun writeEntries(out: OutputStream, entries: Map<*, *>) {
+        writeVarLong(out, entries.size.toLong())
+        for ((key, element) in entries) {
+            writeString(out, key.toString())
+            writeValue(out, element)
+        }
+    }
+
+    private fun writeString(out: OutputStream, value: String?) {
+        if (value == null) {
+            out.write(0)
+            return
+        }
+        val bytes = value.toByteArray(StandardCharsets.UTF_8)
+        writeVarLong(out, bytes.size + 1L)
+        out.write(bytes)
+    }
+
+    private fun writeVarLong(out: OutputStream, value: Long) {
+        var v = value
+        while (v and 0x7FL.inv() != 0L) {
+            out.write(((v and 0x7F) or 0x80).toInt())
+            v = v ushr 7
+        }
+        out.write(v.toInt())
+    }
+
+    /**
+     * Put a chunk header for [transfer] at [offset] into [buffer], leaving it positioned for the data.
+     */
+    @JvmStatic
+    fun writeChunkHeader(buffer: ByteBuffer, transfer: Long, offset: Long) {
+        buffer.put(MAGIC).put(VERSION).put(KIND_CHUNK)
+        putVarLong(buffer, transfer)
+        putVarLong(buffer, offset)
+    }
+
+    private fun putVarLong(buffer: ByteBuffer, value: Long) {
+        var v = value
+        while (v and 0x7FL.inv() != 0L) {
+            buffer.put(((v and 0x7F) or 0x80).toByte())
+            v = v ushr 7
+        }
+        buffer.put(v.toByte())
+    }
+
+    private fun writeFixed(out: OutputStream, bits: Long, bytes: Int) {
+        for (i in bytes - 1 downTo 0) out.write((bits ushr (i * 8)).toInt() and 0xFF)
+    }
+
+    private fun zigZag(v: Long): Long = (v shl 1) xor (v shr 63)
+    private fun unZigZag(v: Long): Long = (v ushr 1) xor -(v and 1)
+
+    // ---------------------------------------------------------------------------------------------
+    // decoding
+
+    /**
+     * Header of a binary request frame. [buffer] is left positioned at the start of the payload value.
+     */
+    class RequestHeader(val moduleAddress: String?, val type: String?, val id: String?, val timeoutMs: Long? = null)
+
+    /**
+     * A decoded batch frame, [requests] are slices of the original buffer, one request frame each.
+     */
+    class Batch(val id: String?, val sequential: Boolean, val requests: List<ByteBuffer>)
+
+    @JvmStatic
+    fun readBatch(buffer: ByteBuffer): Batch {
+        readFrameStart(buffer, KIND_BATCH)
+        try {
+            val id = readString(buffer)
+            val sequential = buffer.get().toInt() != 0
+            val count = readCount(buffer)
+            val requests = ArrayList<ByteBuffer>(count)
+            repeat(count) {
+                val length = readVarLong(buffer)
+                require(length in 0..buffer.remaining()) { "Batch entry length $length exceeds frame" }
+                val entry = buffer.slice().limit(length.toInt())
+                requests.add(entry)
+                buffer.position(buffer.position() + length.toInt())
+            }
+            return Batch(id, sequential, requests)
+        } catch (ex: BufferUnderflowException) {
+            throw IllegalArgumentException("Truncated binary frame", ex)
+        }
+    }
+
+    /**
+     * Header of a file chunk frame. The buffer it was read from is left positioned at the data.
+     */
+    class ChunkHeader(val transfer: Long, val offset: Long)
+
+    @JvmStatic
+    fun readChunkHeader(buffer: ByteBuffer): ChunkHeader {
+        readFrameStart(buffer, KIND_CHUNK)
+        try {
+            return ChunkHeader(readVarLong(buffer), readVarLong(buffer))
+        } catch (ex: BufferUnderflowException) {
+            throw IllegalArgumentException("Truncated binary frame", ex)
+        }
+    }
+
+    @JvmStatic
+    fun readRequestHeader(buffer: ByteBuffer): RequestHeader {
+        val timed = buffer.remaining() >= 3 && buffer.get(buffer.position() + 2) == KIND_TIMED_REQUEST
+        readFrameStart(buffer, if (timed) KIND_TIMED_REQUEST else KIND_REQUEST)
+        try {
+            return RequestHeader(
+                readString(buffer), readString(buffer), readString(buffer),
+                if (timed) readVarLong(buffer) else null
+            )
+        } catch (ex: BufferUnderflowException) {
+            throw IllegalArgumentException("Truncated binary frame", ex)
+        }
+    }
+
+    /**
+     * Decode a binary response frame into the same tree shape the JSON encoding would produce.
+     */
+    @JvmStatic
+    fun readResponseAsNode(buffer: ByteBuffer): ObjectNode {
+        readFrameStart(buffer, KIND_RESPONSE)
+        try {
+            val node = NODES.objectNode()
+            node.put("type", readString(buffer))
+            node.put("id", readString(buffer))
+            val status = buffer.get().toInt() and 0xFF
+            val statuses = Response.ResponseStatus.values()
+            node.put("status", if (status < statuses.size) statuses[status].name else null)
+            node.set<JsonNode>("payload", readValueAsNode(buffer))
+            return node
+        } catch (ex: BufferUnderflowException) {
+            throw IllegalArgumentException("Truncated binary frame", ex)
+        }
+    }
+
+    /**
+     * Read one tagged value as a [JsonNode], wrapped values become `{"valueType": .., "value": ..}`.
+     */
+    @JvmStatic
+    fun readValueAsNode(buffer: ByteBuffer): JsonNode = readValue(buffer, 0)
+
+    private fun readValue(buffer: ByteBuffer, depth: Int): JsonNode {
+        // lists and maps cost two bytes a level, so a small frame could otherwise nest deep enough to overflow the stack
+        require(depth <= MAX_DEPTH) { "Binary frame nests values deeper than $MAX_DEPTH" }
+        try {
+            return when (val tag = buffer.get().toInt() and 0xFF) {
+                TAG_NULL -> NODES.nullNode()
+                TAG_STRING -> wrapped("StringValue", NODES.textNode(readString(buffer)))
+                TAG_BOOLEAN -> wrapped("BooleanValue", NODES.booleanNode(buffer.get().toInt() != 0))
+                TAG_INTEGER -> wrapped("IntegerValue", NODES.numberNode(unZigZag(readVarLong(buffer)).toInt()))
+                TAG_FLOAT -> wrapped("FloatValue", NODES.numberNode(java.lang.Float.intBitsToFloat(buffer.getInt())))
+                TAG_DOUBLE -> wrapped("DoubleValue", NODES.numberNode(java.lang.Double.longBitsToDouble(buffer.getLong())))
+                TAG_TIMESTAMP -> wrapped("TimestampValue", NODES.numberNode(unZigZag(readVarLong(buffer))))
+                TAG_CURRENCY -> {
+                    val symbol = readString(buffer)
+                    val amount = readString(buffer) ?: throw IllegalArgumentException("Null currency amount in binary frame")
+                    wrapped("CurrencyValue", NODES.numberNode(BigDecimal(amount))).put("symbol", symbol)
+                }
+                TAG_ENUM -> {
+                    val enumClass = readString(buffer)
+                    wrapped("EnumValue", NODES.textNode(readString(buffer))).put("enumClassName", enumClass)
+                }
+                TAG_LIST -> wrapped("ListValue", readElements(buffer, depth))
+                TAG_MAP -> wrapped("MapValue", readEntries(buffer, depth))
+                TAG_RAW_STRING -> NODES.textNode(readString(buffer))
+                TAG_RAW_BOOLEAN -> NODES.booleanNode(buffer.get().toInt() != 0)
+                TAG_RAW_LONG -> NODES.numberNode(unZigZag(readVarLong(buffer)))
+                TAG_RAW_DOUBLE -> NODES.numberNode(java.lang.Double.longBitsToDouble(buffer.getLong()))
+                TAG_RAW_LIST -> readElements(buffer, depth)
+                TAG_RAW_MAP -> readEntries(buffer, depth)
+                else -> throw IllegalArgumentException("Unknown value tag 0x${tag.toString(16)}")
+            }
+        } catch (ex: BufferUnderflowException) {
+            throw IllegalArgumentException("Truncated binary frame", ex)
+        }
+    }
+
+    private fun readFrameStart(buffer: ByteBuffer, kind: Byte) {
+        require(buffer.remaining() >= 3) { "Binary frame too short" }
+        require(buffer.get() == MAGIC) { "Not a ModularXero binary frame" }
+        val version = buffer.get()
+        require(version == VERSION) { "Unsupported binary frame version $version" }
+        val actual = buffer.get()
+        require(actual == kind) { "Expected frame kind $kind but got $actual" }
+    }
+
+    private fun wrapped(valueType: String, value: JsonNode): ObjectNode {
+        val node = NODES.objectNode()
+        node.put("valueType", valueType)
+        node.set<JsonNode>("value", value)
+        return node
+    }
+
+    private fun readElements(buffer: ByteBuffer, depth: Int): ArrayNode {
+        val count = readCount(buffer)
+        val array = NODES.arrayNode(count)
+        repeat(count) { array.add(readValue(buffer, depth + 1)) }
+        return array
+    }
+
+    private fun readEntries(buffer: ByteBuffer, depth: Int): ObjectNode {
+        val count = readCount(buffer)
+        val node = NODES.objectNode()
+        repeat(count) {
+            val key = readString(buffer) ?: throw IllegalArgumentException("Null map key in binary frame")
+            node.set<JsonNode>(key, readValue(buffer, depth + 1))
+        }
+        return node
+    }
+
+    private fun readCount(buffer: ByteBuffer): Int {
+        val count = readVarLong(buffer)
+        // every element takes at least one byte, anything bigger is a corrupt or hostile frame
+        require(count >= 0 && count <= buffer.remaining()) { "Invalid element count $count" }
+        return count.toInt()
+    }
+
+    private fun readString(buffer: ByteBuffer): String? {
+        val lengthPlusOne = readVarLong(buffer)
+        if (lengthPlusOne == 0L) return null
+        val length = lengthPlusOne - 1
+        require(length <= buffer.remaining()) { "String length $length exceeds frame" }
+        val len = length.toInt()
+        val value = if (buffer.hasArray()) {
+            String(buffer.array(), buffer.arrayOffset() + buffer.position(), len, StandardCharsets.UTF_8)
+        } else {
+            val bytes = ByteArray(len)
+            buffer.duplicate().get(bytes)
+            String(bytes, StandardCharsets.UTF_8)
+        }
+        buffer.position(buffer.position() + len)
+        return value
+    }
+
+    private fun readVarLong(buffer: ByteBuffer): Long {
+        var result = 0L
+        var shift = 0
+        while (shift < 64) {
+            val b = buffer.get().toInt()
+            result = result or ((b and 0x7F).toLong() shl shift)
+            if (b and 0x80 == 0) return result
+            shift += 7
+        }
+        throw IllegalArgumentException("Malformed varint in binary frame")
+    }
+}
@@ -0,0 +1,67 @@
+package com.vicky.modularxero.common
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Point in time by which a request has to be answered, taken from the envelope's `timeoutMs`.
+ *
+ * The dispatcher makes the deadline of the request being handled [current] on the handler's thread, so
+ * code further down (DAOs in particular, see [GenericDao.applyDeadline]) can size its own timeouts from
+ * what is left. Async handlers that hop threads should capture [current] while they are invoked.
+ */
+class Deadline private constructor(private val expiresAtNanos: Long) {
+
+    /** Nanoseconds left, negative once expired. */
+    val remainingNanos: Long get() = expiresAtNanos - System.nanoTime()
+
+    /** Milliseconds left rounded up, 0 once expired. */
+    fun remainingMillis(): Long = TimeUnit.NANOSECONDS.toMillis(remainingNanos + 999_999).coerceAtLeast(0)
+
+    fun isExpired(): Boolean = remainingNanos <= 0
+
+    /** Whichever of the two expires first. */
+    fun earliest(other: Deadline?): Deadline =
+        if (other == null || expiresAtNanos - other.expiresAtNanos <= 0) this else other
+
+    /**
+     * Throws [DeadlineExceededException] if the deadline has passed, for loops that can stop early.
+     */
+    fun check() {
+        if (isExpired()) throw DeadlineExceededException("Request deadline exceeded")
+    }
+
+    override fun toString(): String = "Deadline(${remainingMillis()}ms left)"
+
+    companion object {
+        private val CURRENT = ThreadLocal<Deadline?>()
+
+        /** A deadline [timeoutMs] after [startNanos] (a [System.nanoTime] reading). */
+        @JvmStatic
+        @JvmOverloads
+        fun after(timeoutMs: Long, startNanos: Long = System.nanoTime()): Deadline =
+            Deadline(startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMs))
+
+        /** Deadline of the request being handled on this thread, if it has one. */
+        @JvmStatic
+        fun current(): Deadline? = CURRENT.get()
+
+        /**
+         * Run [block] with [deadline] as the thread's [current] one, restoring the previous value after.
+         */
+        @JvmStatic
+        fun <T> within(deadline: Deadline?, block: () -> T): T {
+            val previous = CURRENT.get()
+            CURRENT.set(deadline)
+            try {
+                return block()
+            } finally {
+                if (previous == null) CURRENT.remove() else CURRENT.set(previous)
+            }
+        }
+    }
+}
+
+/**
+ * Thrown by [Deadline.check] and DAOs when the current request has run out of time.
+ */
+class DeadlineExceededException(message: String) : RuntimeException(message)
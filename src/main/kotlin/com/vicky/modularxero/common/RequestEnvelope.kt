@@ -0,0 +1,309 @@
+package com.vicky.modularxero.common
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonLocation
+import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import java.io.Reader
+import java.nio.ByteBuffer
+
+/**
+ * Routing view of one incoming request frame.
+ *
+ * Only the envelope fields (`moduleAddress`, `type`, `id`, `timeoutMs`) are pulled out eagerly, with a streaming
+ * [JsonParser] that skips over everything else without building it. The payload is remembered as a
+ * range of the original frame and only turned into a tree the first time a handler asks for it, so
+ * frames aimed at missing or overloaded modules never get fully parsed.
+ *
+ * Frames in the [BinaryMessageCodec] format work the same way, their payload is decoded into the
+ * same tree shape on first access.
+ *
+ * A `BATCH` envelope carries other requests in a `requests` array instead of a payload:
+ * ```
+ * {"type": "BATCH", "id": "b1", "sequential": false, "requests": [{"moduleAddress": .., "type": .., "id": .., "payload": ..}, ..]}
+ * ```
+ * The entries are only located while parsing, each one is parsed when [requests] is first read.
+ */
+class RequestEnvelope private constructor(
+    private val text: String?,
+    private val bytes: ByteArray?,
+    private val binaryPayload: ByteBuffer?,
+    val moduleAddress: String?,
+    val type: String?,
+    val id: String?,
+    private val payloadStart: Int,
+    private val payloadEnd: Int,
+    /** Size of the frame as received, in bytes. */
+    val size: Int,
+    // [start, end) pairs of each entry of a JSON batch's `requests` array
+    private val batchRanges: IntArray? = null,
+    private val binaryBatch: List<ByteBuffer>? = null,
+    /** For batches: run the entries one after another instead of concurrently. */
+    val sequential: Boolean = false,
+    // the whole binary-codec frame, kept for forwarding
+    private val original: ByteBuffer? = null,
+    /** How long the client will wait for the response, in milliseconds, if it said. */
+    val timeoutMs: Long? = null
+) {
+    /** [System.nanoTime] when the frame was parsed, [timeoutMs] counts from here. */
+    val receivedAtNanos: Long = System.nanoTime()
+
+    /**
+     * The deadline [timeoutMs] sets, clamped to [maxTimeoutMs] (ignored if not positive), or one
+     * [defaultTimeoutMs] long if the client didn't ask for any. Null if neither applies.
+     */
+    fun deadline(defaultTimeoutMs: Long = 0, maxTimeoutMs: Long = 0): Deadline? {
+        var timeout = timeoutMs ?: defaultTimeoutMs.takeIf { it > 0 } ?: return null
+        if (maxTimeoutMs > 0) timeout = timeout.coerceAtMost(maxTimeoutMs)
+        return Deadline.after(timeout.coerceAtLeast(0), receivedAtNanos)
+    }
+
+    /**
+     * The request payload, parsed on first access. Null if the frame had no payload field.
+     */
+    val payload: JsonNode? by lazy {
+        when {
+            !hasPayload() -> null
+            binaryPayload != null -> BinaryMessageCodec.readValueAsNode(binaryPayload.duplicate())
+            text != null -> MAPPER.readTree(RangeReader(text, payloadStart, payloadEnd))
+            else -> MAPPER.readTree(bytes!!, payloadStart, payloadEnd - payloadStart)
+        }
+    }
+
+    /** Length of the payload as it sits in the frame: chars for text frames, bytes otherwise. */
+    val payloadSize: Int
+        get() = binaryPayload?.remaining() ?: if (payloadStart >= 0) payloadEnd - payloadStart else 0
+
+    /**
+     * The whole frame as a tree, for handlers still written against [JsonNode].
+     * Prefer [payload], this parses the frame a second time.
+     */
+    val node: JsonNode by lazy {
+        when {
+            binary -> MAPPER.createObjectNode().apply {
+                put("moduleAddress", moduleAddress)
+                put("type", type)
+                put("id", id)
+                timeoutMs?.let { put("timeoutMs", it) }
+                set<JsonNode>("payload", payload)
+            }
+            text != null -> MAPPER.readTree(text)
+            else -> MAPPER.readTree(bytes!!)
+        }
+    }
+
+    /** True if the frame arrived in the [BinaryMessageCodec] format. */
+    val binary: Boolean get() = text == null && bytes == null
+
+    fun hasPayload(): Boolean = payloadStart >= 0 || binaryPayload != null
+
+    /** True if this frame is a `BATCH` envelope carrying other requests. */
+    val isBatch: Boolean get() = type == BATCH_TYPE && (batchRanges != null || binaryBatch != null)
+
+    /** Number of requests in a batch, without parsing them. */
+    val batchSize: Int get() = batchRanges?.let { it.size / 2 } ?: binaryBatch?.size ?: 0
+
+    /**
+     * The requests carried by a batch, each parsed on first access like any other frame.
+     * Empty for non-batch frames.
+     */
+    val requests: List<RequestEnvelope> by lazy {
+        when {
+            binaryBatch != null -> binaryBatch.map { parse(it.duplicate()) }
+            batchRanges != null -> List(batchRanges.size / 2) { i ->
+                val start = batchRanges[i * 2]
+                val end = batchRanges[i * 2 + 1]
+                if (text != null) parse(text.substring(start, end)) else parse(bytes!!.copyOfRange(start, end))
+            }
+            else -> emptyList()
+        }
+    }
+
+    /** Correlation id to echo back on the response. */
+    fun responseId(): String = id ?: "non-specified"
+
+    /**
+     * Streaming parser positioned before the payload's first token, for handlers that want to walk
+     * large payloads without materializing them. JSON payloads are read from the frame in place, a few
+     * KB at a time; binary-codec payloads are decoded to a tree first. Callers must close it.
+     */
+    fun payloadParser(): JsonParser {
+        check(hasPayload()) { "Request has no payload" }
+        return if (binary) {
+            MAPPER.treeAsTokens(payload!!)
+        } else if (text != null) {
+            JSON_FACTORY.createParser(RangeReader(text, payloadStart, payloadEnd))
+        } else {
+            JSON_FACTORY.createParser(bytes!!, payloadStart, payloadEnd - payloadStart)
+        }
+    }
+
+    /** The original frame as text (binary frames are rendered as their JSON equivalent). */
+    fun rawText(): String = text ?: bytes?.let { String(it, Charsets.UTF_8) } ?: node.toString()
+
+    /**
+     * The original frame bytes, read-only and unparsed, or null if it arrived as a text frame (see [rawText]).
+     * For binary frames this is the [BinaryMessageCodec] encoding, for byte-based JSON the UTF-8 text.
+     */
+    fun rawBytes(): ByteBuffer? =
+        bytes?.let { ByteBuffer.wrap(it).asReadOnlyBuffer() } ?: original?.asReadOnlyBuffer()
+
+    // reads text[start, end) without copying the range out first
+    private class RangeReader(private val text: String, private var position: Int, private val end: Int) : Reader() {
+        override fun read(cbuf: CharArray, off: Int, len: Int): Int {
+            if (position >= end) return -1
+            val count = minOf(len, end - position)
+            text.toCharArray(cbuf, off, position, position + count)
+            position += count
+            return count
+        }
+
+        override fun close() {}
+    }
+
+    companion object {
+        /** `type` of an envelope whose `requests` field holds other requests. */
+        const val BATCH_TYPE = "BATCH"
+
+        private val MAPPER = ObjectMapper()
+        private val JSON_FACTORY: JsonFactory = MAPPER.factory
+
+        @JvmStatic
+        fun parse(json: String): RequestEnvelope =
+            JSON_FACTORY.createParser(json).use { read(it, json, null, utf8Length(json)) }
+
+        @JvmStatic
+        fun parse(json: ByteArray): RequestEnvelope =
+            JSON_FACTORY.createParser(json).use { read(it, null, json, json.size) }
+
+        /**
+         * Parse a binary websocket frame, either a [BinaryMessageCodec] request or UTF-8 JSON.
+         * Only the header is decoded here, the payload stays in [frame] until it's asked for.
+         */
+        @JvmStatic
+        fun parse(frame: ByteBuffer): RequestEnvelope {
+            if (!BinaryMessageCodec.isBinaryFrame(frame)) {
+                val json = ByteArray(frame.remaining())
+                frame.duplicate().get(json)
+                return parse(json)
+            }
+            val buffer = frame.slice()
+            val size = buffer.remaining()
+            if (BinaryMessageCodec.isBatchFrame(buffer)) {
+                val batch = BinaryMessageCodec.readBatch(buffer)
+                return RequestEnvelope(
+                    null, null, null, null, BATCH_TYPE, batch.id, -1, -1, size,
+                    binaryBatch = batch.requests, sequential = batch.sequential
+                )
+            }
+            val original = buffer.duplicate()
+            val header = BinaryMessageCodec.readRequestHeader(buffer)
+            // a lone null tag means "no payload"
+            val payload = if (buffer.hasRemaining() && buffer.get(buffer.position()) != 0.toByte()) buffer.slice() else null
+            return RequestEnvelope(
+                null, null, payload, header.moduleAddress, header.type, header.id, -1, -1, size,
+                original = original, timeoutMs = header.timeoutMs
+            )
+        }
+
+        private fun read(parser: JsonParser, text: String?, bytes: ByteArray?, size: Int): RequestEnvelope {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw JsonParseException(parser, "Request frame must be a JSON object")
+            }
+
+            var moduleAddress: String? = null
+            var type: String? = null
+            var id: String? = null
+            var payloadStart = -1
+            var payloadEnd = -1
+            var batchRanges: IntArray? = null
+            var sequential = false
+            var timeoutMs: Long? = null
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                val field = parser.currentName()
+                val token = parser.nextToken()
+                when (field) {
+                    "moduleAddress" -> moduleAddress = scalar(parser, token)
+                    "type" -> type = scalar(parser, token)
+                    "id" -> id = scalar(parser, token)
+                    "payload" -> {
+                        payloadStart = offsetOf(parser.currentTokenLocation(), text != null)
+                        if (token.isStructStart) parser.skipChildren() else parser.finishToken()
+                        payloadEnd = offsetOf(parser.currentLocation(), text != null)
+                    }
+                    "requests" -> batchRanges = if (token == JsonToken.START_ARRAY) readRanges(parser, text != null) else {
+                        parser.skipChildren()
+                        null
+                    }
+                    "sequential" -> sequential = token == JsonToken.VALUE_TRUE
+                    "timeoutMs" -> timeoutMs = if (token == JsonToken.VALUE_NUMBER_INT) parser.longValue else {
+                        parser.skipChildren()
+                        null
+                    }
+                    else -> parser.skipChildren()
+                }
+            }
+
+            return RequestEnvelope(
+                text, bytes, null, moduleAddress, type, id, payloadStart, payloadEnd, size,
+                batchRanges = batchRanges, sequential = sequential, timeoutMs = timeoutMs
+            )
+        }
+
+        // offsets of each object in the array the parser is positioned on, skipping them unparsed
+        private fun readRanges(parser: JsonParser, charBased: Boolean): IntArray {
+            val ranges = ArrayList<Int>()
+            while (true) {
+                val token = parser.nextToken()
+                if (token == null || token == JsonToken.END_ARRAY) break
+                if (token != JsonToken.START_OBJECT) {
+                    throw JsonParseException(parser, "Batch entries must be JSON objects")
+                }
+                ranges.add(offsetOf(parser.currentTokenLocation(), charBased))
+                parser.skipChildren()
+                ranges.add(offsetOf(parser.currentLocation(), charBased))
+            }
+            return ranges.toIntArray()
+        }
+
+        private fun scalar(parser: JsonParser, token: JsonToken?): String? = when {
+            token == null || token == JsonToken.VALUE_NULL -> null
+            token.isScalarValue -> parser.text
+            else -> {
+                parser.skipChildren()
+                null
+            }
+        }
+
+        private fun offsetOf(location: JsonLocation, charBased: Boolean): Int =
+            (if (charBased) location.charOffset else location.byteOffset).toInt()
+
+        /**
+         * UTF-8 encoded length of [s], without encoding it.
+         */
+        @JvmStatic
+        fun utf8Length(s: CharSequence): Int {
+            var count = 0
+            var i = 0
+            val len = s.length
+            while (i < len) {
+                val c = s[i]
+                when {
+                    c.code < 0x80 -> count += 1
+                    c.code < 0x800 -> count += 2
+                    Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s[i + 1]) -> {
+                        count += 4
+                        i++
+                    }
+                    else -> count += 3
+                }
+                i++
+            }
+            return count
+        }
+    }
+}
@@ -150,6 +150,20 @@ object ModuleDatabaseManager {
         }
     }
 
+    /**
+     * Build a SessionFactory for [module] on its existing connection pool without publishing it, so a
+     * reloaded module can be prepared while the old one keeps serving. See [replaceSessionFactory].
+     */
+    fun buildSessionFactory(module: AbstractModule): SessionFactory =
+        buildSessionFactoryForModule(module, getOrCreateDataSource(module.name))
+
+    /**
+     * Publish [factory] as [moduleName]'s SessionFactory and return the one it replaces, which the caller
+     * closes once nothing uses it any more. The connection pool is shared and stays open.
+     */
+    fun replaceSessionFactory(moduleName: String, factory: SessionFactory): SessionFactory? =
+        sessionFactoryCache.put(sanitizeModuleName(moduleName), factory)
+
     // Close and remove resources for a single module
     fun closeModule(moduleName: String) {
         val key = sanitizeModuleName(moduleName)
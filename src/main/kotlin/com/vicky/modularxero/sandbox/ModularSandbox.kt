@@ -7,6 +7,8 @@ import com.vicky.modularxero.Startup.Companion.dispatcher
 import com.vicky.modularxero.common.Logger.ContextLogger
 import java.io.File
 import java.lang.reflect.Field
+import java.nio.channels.FileChannel
+import java.nio.file.OpenOption
 import java.time.ZonedDateTime
 import java.time.format.DateTimeFormatter
 import java.util.concurrent.ConcurrentHashMap
@@ -128,6 +130,14 @@ object ModuleSandbox {
         return SandboxFile(moduleName, safeFile.path)
     }
 
+    /**
+     * Open a [FileChannel] on [possiblePath] inside the module's sandbox, with the same safety checks as
+     * [createFile].
+     */
+    @JvmStatic
+    fun openChannel(moduleName: String, possiblePath: String, vararg options: OpenOption): FileChannel =
+        FileChannel.open(createFile(moduleName, possiblePath).toPath(), *options)
+
     /**
      * Called by SandboxFile.mkdirs() to ensure directories inside module sandbox are created.
      * Returns true if dirs were created or already exist.
@@ -139,9 +149,11 @@ object ModuleSandbox {
         return parent.mkdirs() || parent.exists()
     }
 
+    // compares whole path elements, so a sibling whose name merely starts with the module's
+    // (`../shop_x/f` from inside `shop`) is outside; canonical paths so symlinks can't lead out either
     private fun isSafePath(root: File, file: File): Boolean {
         return try {
-            file.canonicalPath.startsWith(root.canonicalPath)
+            file.canonicalFile.toPath().normalize().startsWith(root.canonicalFile.toPath().normalize())
         } catch (e: Exception) {
             false
         }
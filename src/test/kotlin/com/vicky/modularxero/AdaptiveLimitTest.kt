@@ -0,0 +1,52 @@
+package com.vicky.modularxero
+
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class AdaptiveLimitTest {
+    private val fast = TimeUnit.MILLISECONDS.toNanos(1)
+    private val slow = TimeUnit.MILLISECONDS.toNanos(20)
+
+    private fun AdaptiveLimit.busy(rttNanos: Long, samples: Int): Int {
+        repeat(samples) { onSample(rttNanos, limit, false) }
+        return limit
+    }
+
+    @Test
+    fun `initial limit is kept within bounds`() {
+        assertEquals(10, AdaptiveLimit(2, 10, initialLimit = 20).limit)
+        assertEquals(2, AdaptiveLimit(2, 10, initialLimit = 1).limit)
+    }
+
+    @Test
+    fun `steady latency grows the limit up to the max`() {
+        val limit = AdaptiveLimit(1, 50, initialLimit = 10)
+        assertTrue(limit.busy(fast, 10) > 10)
+        assertEquals(50, limit.busy(fast, 200))
+    }
+
+    @Test
+    fun `rising latency shrinks the limit`() {
+        val limit = AdaptiveLimit(1, 1000, initialLimit = 10)
+        val before = limit.busy(fast, 30)
+        val after = limit.busy(slow, 10)
+        assertTrue(after < before, "limit went from $before to $after")
+    }
+
+    @Test
+    fun `idle module leaves the limit alone`() {
+        val limit = AdaptiveLimit(1, 100, initialLimit = 20)
+        repeat(50) { limit.onSample(fast, 1, false) }
+        assertEquals(20, limit.limit)
+    }
+
+    @Test
+    fun `dropped requests back off down to the min`() {
+        val limit = AdaptiveLimit(5, 100, initialLimit = 20, backoff = 0.5)
+        assertEquals(10, limit.onSample(fast, 20, true))
+        assertEquals(5, limit.onSample(fast, 20, true))
+        assertEquals(5, limit.onSample(fast, 20, true))
+    }
+}
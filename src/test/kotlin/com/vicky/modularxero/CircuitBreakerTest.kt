@@ -0,0 +1,140 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.CircuitBreaker.State
+import com.vicky.modularxero.common.RequestEnvelope
+import com.vicky.modularxero.common.Response
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class CircuitBreakerTest {
+    private val seen = ArrayList<CircuitBreaker.Transition>()
+
+    private fun breaker(openNanos: Long = Long.MAX_VALUE, probes: Int = 2, slowRate: Double = 0.0) =
+        CircuitBreaker("orders", 10, 4, 0.5, TimeUnit.MILLISECONDS.toNanos(100), slowRate, openNanos, probes) { seen.add(it) }
+
+    private fun CircuitBreaker.call(failed: Boolean, latencyNanos: Long = 0) {
+        val permit = tryAcquire()
+        assertTrue(permit >= 0, "request refused in state $state")
+        onResult(permit, failed, latencyNanos)
+    }
+
+    private fun CircuitBreaker.trip() {
+        repeat(4) { call(failed = true) }
+        assertEquals(State.OPEN, state)
+    }
+
+    @Test
+    fun `stays closed until min calls are in`() {
+        val breaker = breaker()
+        repeat(3) { breaker.call(failed = true) }
+        assertEquals(State.CLOSED, breaker.state)
+
+        breaker.call(failed = false)
+        assertEquals(State.OPEN, breaker.state)
+        assertEquals(1L, breaker.trips)
+        assertEquals(listOf(State.CLOSED to State.OPEN), seen.map { it.from to it.to })
+    }
+
+    @Test
+    fun `failures below the rate keep it closed`() {
+        val breaker = breaker()
+        repeat(20) { breaker.call(failed = it % 4 == 0) }
+        assertEquals(State.CLOSED, breaker.state)
+    }
+
+    @Test
+    fun `open breaker short-circuits`() {
+        val breaker = breaker()
+        breaker.trip()
+        assertEquals(-1L, breaker.tryAcquire())
+        assertEquals(-1L, breaker.tryAcquire())
+        assertEquals(2L, breaker.shortCircuited)
+
+        val response = breaker.rejected(RequestEnvelope.parse("{\"type\":\"LIST\",\"id\":\"r9\"}"))
+        assertEquals("r9", response.id)
+        assertEquals(Response.ResponseStatus.FAILED, response.status)
+    }
+
+    @Test
+    fun `slow calls open it`() {
+        val breaker = breaker(slowRate = 0.5)
+        repeat(2) { breaker.call(failed = false) }
+        repeat(2) { breaker.call(failed = false, latencyNanos = TimeUnit.MILLISECONDS.toNanos(150)) }
+        assertEquals(State.OPEN, breaker.state)
+    }
+
+    @Test
+    fun `passing probes close it`() {
+        val breaker = breaker(openNanos = 0)
+        breaker.trip()
+
+        val first = breaker.tryAcquire()
+        assertEquals(State.HALF_OPEN, breaker.state)
+        val second = breaker.tryAcquire()
+        assertTrue(first >= 0 && second >= 0)
+        assertEquals(-1L, breaker.tryAcquire(), "only two probes at a time")
+
+        breaker.onResult(first, false, 0)
+        assertEquals(State.HALF_OPEN, breaker.state)
+        breaker.onResult(second, false, 0)
+        assertEquals(State.CLOSED, breaker.state)
+        assertEquals(
+            listOf(State.CLOSED to State.OPEN, State.OPEN to State.HALF_OPEN, State.HALF_OPEN to State.CLOSED),
+            breaker.transitions().map { it.from to it.to }
+        )
+        assertEquals(seen, breaker.transitions())
+
+        // the window starts over once closed
+        repeat(3) { breaker.call(failed = true) }
+        assertEquals(State.CLOSED, breaker.state)
+    }
+
+    @Test
+    fun `failed or slow probe reopens it`() {
+        val breaker = breaker(openNanos = 0)
+        breaker.trip()
+        breaker.call(failed = true)
+        assertEquals(State.OPEN, breaker.state)
+        assertEquals(2L, breaker.trips)
+
+        breaker.call(failed = false, latencyNanos = TimeUnit.MILLISECONDS.toNanos(200))
+        assertEquals(State.OPEN, breaker.state)
+        assertEquals(3L, breaker.trips)
+    }
+
+    @Test
+    fun `released probe can be taken again`() {
+        val breaker = breaker(openNanos = 0, probes = 1)
+        breaker.trip()
+        val probe = breaker.tryAcquire()
+        assertEquals(-1L, breaker.tryAcquire())
+        breaker.release(probe)
+        breaker.call(failed = false)
+        assertEquals(State.CLOSED, breaker.state)
+    }
+
+    @Test
+    fun `results from an earlier state are ignored`() {
+        val breaker = breaker(openNanos = 0, probes = 1)
+        val stale = breaker.tryAcquire()
+        breaker.trip()
+        breaker.tryAcquire()
+        assertEquals(State.HALF_OPEN, breaker.state)
+
+        breaker.onResult(stale, true, 0)
+        assertEquals(State.HALF_OPEN, breaker.state)
+    }
+
+    @Test
+    fun `reset closes it`() {
+        val breaker = breaker()
+        breaker.trip()
+        breaker.reset()
+        assertEquals(State.CLOSED, breaker.state)
+        repeat(3) { breaker.call(failed = true) }
+        assertEquals(State.CLOSED, breaker.state)
+        assertEquals(State.CLOSED, seen.last().to)
+    }
+}
@@ -0,0 +1,39 @@
+package com.vicky.modularxero
+
+import org.java_websocket.handshake.HandshakeImpl1Client
+import java.net.URLEncoder
+import java.nio.charset.StandardCharsets
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+import kotlin.test.assertNull
+
+class ConnectionContextTest {
+    private fun handshake(path: String = "/", header: String? = null) = HandshakeImpl1Client().apply {
+        resourceDescriptor = path
+        header?.let { put(ConnectionContext.SESSION_HEADER, it) }
+    }
+
+    @Test
+    fun `issued sessions are resumed from the query or the header`() {
+        val session = ConnectionContext.issueSession()
+        val encoded = URLEncoder.encode(session, StandardCharsets.UTF_8)
+        assertEquals(session, ConnectionContext.sessionOf(handshake("/?x=1&session=$encoded")))
+        assertEquals(session, ConnectionContext.sessionOf(handshake(header = session)))
+        assertNotEquals(session, ConnectionContext.issueSession())
+    }
+
+    @Test
+    fun `sessions the server did not issue are ignored`() {
+        assertNull(ConnectionContext.sessionOf(handshake()))
+        assertNull(ConnectionContext.sessionOf(handshake("/?session=alice")))
+        assertNull(ConnectionContext.sessionOf(handshake(header = "alice")))
+
+        // a real id with someone else's signature, or a tampered id
+        val (id, mac) = ConnectionContext.issueSession().split('.')
+        val (otherId, otherMac) = ConnectionContext.issueSession().split('.')
+        assertNull(ConnectionContext.sessionOf(handshake(header = "$id.$otherMac")))
+        assertNull(ConnectionContext.sessionOf(handshake(header = "$otherId.$mac")))
+        assertNull(ConnectionContext.sessionOf(handshake(header = "$id.not-base64!")))
+    }
+}
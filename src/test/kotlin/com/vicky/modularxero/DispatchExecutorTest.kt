@@ -0,0 +1,60 @@
+package com.vicky.modularxero
+
+import java.time.Duration
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.AfterTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class DispatchExecutorTest {
+    private val executor = DispatchExecutor(DispatchMode.PLATFORM, 4)
+
+    @AfterTest
+    fun shutdown() {
+        executor.shutdown(Duration.ofSeconds(5))
+    }
+
+    @Test
+    fun `lane runs its tasks one at a time in submission order`() {
+        val lane = executor.newLane()
+        val order = Collections.synchronizedList(ArrayList<Int>())
+        val running = AtomicInteger()
+        val overlapped = AtomicInteger()
+        val done = CountDownLatch(500)
+        repeat(500) { i ->
+            lane.submit {
+                if (running.incrementAndGet() > 1) overlapped.incrementAndGet()
+                order += i
+                running.decrementAndGet()
+                done.countDown()
+            }
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        assertEquals((0 until 500).toList(), order)
+        assertEquals(0, overlapped.get())
+    }
+
+    @Test
+    fun `a blocked lane doesn't hold up the others`() {
+        val blocked = executor.newLane()
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        blocked.submit {
+            started.countDown()
+            release.await()
+        }
+        blocked.submit { }
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+
+        val ran = CountDownLatch(1)
+        executor.newLane().submit { ran.countDown() }
+        assertTrue(ran.await(5, TimeUnit.SECONDS))
+        assertEquals(1, blocked.pending())
+        release.countDown()
+    }
+}
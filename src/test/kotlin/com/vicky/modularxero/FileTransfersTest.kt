@@ -0,0 +1,93 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.BinaryMessageCodec
+import com.vicky.modularxero.common.RequestEnvelope
+import com.vicky.modularxero.common.Response
+import com.vicky.modularxero.common.values.MapValue
+import com.vicky.modularxero.common.values.MessageValue
+import com.vicky.modularxero.sandbox.ModuleSandbox
+import org.java_websocket.WebSocket
+import java.lang.reflect.Proxy
+import java.nio.ByteBuffer
+import java.util.concurrent.Executor
+import kotlin.test.AfterTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class FileTransfersTest {
+    private val module = TestModule("transfers")
+    private val replies = mutableListOf<Response<*>>()
+    // 4 byte chunks, a window of 4 of them
+    private val transfers = FileTransfers(
+        2, 4, 4, 1000, 1000, Executor { it.run() },
+        { name -> module.takeIf { name == it.name } },
+        { _, response -> replies += response },
+        { _, _ -> }
+    )
+    private val conn = Proxy.newProxyInstance(javaClass.classLoader, arrayOf(WebSocket::class.java)) { proxy, method, args ->
+        when (method.name) {
+            "isOpen" -> true
+            "equals" -> proxy === args!![0]
+            "hashCode" -> System.identityHashCode(proxy)
+            "toString" -> "test connection"
+            else -> null
+        }
+    } as WebSocket
+
+    @AfterTest
+    fun cleanup() {
+        ModuleSandbox.createFile(module.name, "data.bin").parentFile.deleteRecursively()
+    }
+
+    private fun Response<*>.field(name: String): Any? = (payload as MapValue<*>).get()[name]?.let { (it as MessageValue<*>).get() }
+
+    private fun startUpload(size: Int): Long {
+        transfers.handle(conn, RequestEnvelope.parse(
+            "{\"type\":\"UPLOAD\",\"id\":\"u\",\"payload\":{\"module\":\"transfers\",\"path\":\"data.bin\",\"size\":$size}}"
+        ))
+        val started = replies.single()
+        replies.clear()
+        assertEquals(Response.ResponseStatus.PENDING, started.status)
+        return (started.field("transfer") as Int).toLong()
+    }
+
+    private fun chunk(transfer: Long, offset: Long): ByteBuffer {
+        val frame = ByteBuffer.allocate(BinaryMessageCodec.CHUNK_HEADER_MAX + 4)
+        BinaryMessageCodec.writeChunkHeader(frame, transfer, offset)
+        frame.put(byteArrayOf(1, 2, 3, 4)).flip()
+        return frame
+    }
+
+    @Test
+    fun `upload is acknowledged every half window`() {
+        val transfer = startUpload(24)
+        for (offset in 0L until 24L step 4) {
+            val frame = chunk(transfer, offset)
+            assertTrue(transfers.admit(conn, frame))
+            transfers.receive(conn, frame)
+        }
+
+        assertEquals(listOf(8, 16), replies.filter { it.status == Response.ResponseStatus.PENDING }.map { it.field("offset") })
+        assertEquals(Response.ResponseStatus.OK, replies.last().status)
+        assertEquals(0, transfers.active())
+    }
+
+    @Test
+    fun `data past the window is refused before it is queued`() {
+        val transfer = startUpload(100)
+        val queued = (0L until 16L step 4).map { chunk(transfer, it) }
+        queued.forEach { assertTrue(transfers.admit(conn, it)) }
+
+        // writing frees the window again
+        transfers.receive(conn, queued[0])
+        assertTrue(transfers.admit(conn, chunk(transfer, 16)))
+        assertFalse(transfers.admit(conn, chunk(transfer, 20)))
+
+        val failed = replies.last()
+        assertEquals(Response.ResponseStatus.FAILED, failed.status)
+        assertTrue((failed.field("reason") as String).startsWith("Sent more than 4 chunks"))
+        assertEquals(0, transfers.active())
+    }
+}
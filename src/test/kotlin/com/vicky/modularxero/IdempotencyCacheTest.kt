@@ -0,0 +1,80 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.Response
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class IdempotencyCacheTest {
+    private fun done(entry: IdempotencyCache.Entry) = entry.result.complete(Response.error("done"))
+
+    @Test
+    fun `retries share the first execution`() {
+        val cache = IdempotencyCache(10, 60_000)
+        val (first, owner) = cache.claim("a")
+        assertTrue(owner)
+
+        val (running, retryOwns) = cache.claim("a")
+        assertSame(first, running)
+        assertFalse(retryOwns)
+
+        done(first)
+        assertTrue(first.completedAt > 0)
+        val (replayed, replayOwns) = cache.claim("a")
+        assertSame(first, replayed)
+        assertFalse(replayOwns)
+    }
+
+    @Test
+    fun `ttl runs from completion`() {
+        val cache = IdempotencyCache(10, 50)
+        val (slow, _) = cache.claim("slow")
+        Thread.sleep(100) // longer than the ttl, but still running
+        assertSame(slow, cache.claim("slow").first)
+
+        done(slow)
+        assertSame(slow, cache.claim("slow").first)
+        Thread.sleep(100)
+        val (again, owner) = cache.claim("slow")
+        assertTrue(owner)
+        assertTrue(again !== slow)
+    }
+
+    @Test
+    fun `eviction skips entries still in flight`() {
+        val cache = IdempotencyCache(2, 60_000)
+        val (running, _) = cache.claim("running")
+        val (finished, _) = cache.claim("finished")
+        done(finished)
+
+        cache.claim("new")
+        assertEquals(2, cache.size())
+        assertSame(running, cache.claim("running").first, "the running entry was evicted")
+        assertTrue(cache.claim("finished").second, "the completed entry should have gone")
+    }
+
+    @Test
+    fun `requests past a cache full of running ones are not remembered`() {
+        val cache = IdempotencyCache(2, 60_000)
+        cache.claim("a")
+        cache.claim("b")
+
+        val (extra, owner) = cache.claim("c")
+        assertTrue(owner)
+        assertEquals(2, cache.size())
+        done(extra)
+        assertEquals(2, cache.size())
+        assertTrue(cache.claim("c").second, "c ran unremembered, a retry runs it again")
+    }
+
+    @Test
+    fun `removed entries are not brought back by completing`() {
+        val cache = IdempotencyCache(10, 60_000)
+        val (entry, _) = cache.claim("a")
+        cache.remove("a", entry)
+        done(entry)
+        assertEquals(0, cache.size())
+    }
+}
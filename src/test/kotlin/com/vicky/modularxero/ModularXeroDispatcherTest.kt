@@ -0,0 +1,109 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.RequestEnvelope
+import com.vicky.modularxero.common.Response
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import kotlin.test.AfterTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class ModularXeroDispatcherTest {
+    private var dispatcher: ModularXeroDispatcher? = null
+
+    private fun start(config: ServerConfig, module: TestModule = TestModule()): Pair<ModularXeroDispatcher, TestModule> {
+        val dispatcher = ModularXeroDispatcher(config).also { this.dispatcher = it }
+        dispatcher.registerModule(module)
+        return dispatcher to module
+    }
+
+    private fun ModularXeroDispatcher.call(envelope: RequestEnvelope): Response<*> =
+        executeForPeer(envelope).get(5, TimeUnit.SECONDS)
+
+    @AfterTest
+    fun shutdown() {
+        dispatcher?.shutdown()
+    }
+
+    @Test
+    fun `handler throwing an Error gives its slot back`() {
+        val (dispatcher, module) = start(ServerConfig(circuitBreaker = false))
+        module.handler = { throw AssertionError("broken handler") }
+        val route = dispatcher.getRoute(module.name)!!
+
+        repeat(route.bulkhead.maxConcurrency + route.bulkhead.maxQueue + 1) {
+            val response = dispatcher.call(TestModule.request(module.name, "BROKEN", "r$it"))
+            assertEquals(Response.ResponseStatus.FAILED, response.status)
+            assertEquals("r$it", response.id)
+        }
+        assertEquals(0, route.bulkhead.inFlight())
+
+        module.handler = { TestModule.ok("fine") }
+        assertEquals(Response.ResponseStatus.OK, dispatcher.call(TestModule.request(module.name, "OK", "last")).status)
+    }
+
+    @Test
+    fun `only virtual dispatch queues for a busy module`() {
+        val (virtual, module) = start(ServerConfig())
+        assertEquals(ModuleDescriptor.DEFAULT_MAX_QUEUE, virtual.getRoute(module.name)!!.bulkhead.maxQueue)
+        virtual.shutdown()
+
+        val (platform, other) = start(ServerConfig(dispatchMode = DispatchMode.PLATFORM, dispatchThreads = 2), TestModule("pooled"))
+        assertEquals(0, platform.getRoute(other.name)!!.bulkhead.maxQueue)
+    }
+
+    @Test
+    fun `routes report where the module is in its lifecycle`() {
+        val (dispatcher, module) = start(ServerConfig())
+        val route = dispatcher.getRoute(module.name)!!
+        assertEquals(ModuleRoute.State.RUNNING, route.state)
+
+        // a request still holding its slot keeps a closed module draining
+        assertTrue(route.bulkhead.tryEnter())
+        route.bulkhead.close()
+        assertEquals(ModuleRoute.State.DRAINING, route.state)
+        route.bulkhead.exit()
+        assertEquals(ModuleRoute.State.STOPPED, route.state)
+        route.bulkhead.open()
+
+        assertTrue(dispatcher.stopModule(module.name, Duration.ZERO))
+        assertEquals(ModuleRoute.State.STOPPED, route.state)
+        assertEquals(Response.ResponseStatus.FAILED, dispatcher.call(TestModule.request(module.name, "OK", "late")).status)
+    }
+
+    @Test
+    fun `probe throwing an Error reopens the breaker instead of wedging it`() {
+        val config = ServerConfig(breakerWindow = 2, breakerMinCalls = 2, breakerOpenMs = 0, breakerProbes = 1)
+        val (dispatcher, module) = start(config)
+        val breaker = dispatcher.getRoute(module.name)!!.breaker!!
+        module.handler = { throw StackOverflowError() }
+
+        repeat(2) { dispatcher.call(TestModule.request(module.name, "BROKEN", "trip$it")) }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state)
+
+        // the half-open probe fails the same way, its permit has to come back for the next probe
+        dispatcher.call(TestModule.request(module.name, "BROKEN", "probe"))
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state)
+        assertEquals(2L, breaker.trips)
+
+        module.handler = { TestModule.ok("fine") }
+        assertEquals(Response.ResponseStatus.OK, dispatcher.call(TestModule.request(module.name, "OK", "recovered")).status)
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state)
+    }
+
+    @Test
+    fun `deadline of a handler that threw an Error can't interrupt the next request`() {
+        // one platform thread, so the second request runs on the thread the first one used
+        val (dispatcher, module) = start(ServerConfig(dispatchMode = DispatchMode.PLATFORM, dispatchThreads = 1, circuitBreaker = false))
+        module.handler = { throw NoClassDefFoundError("gone") }
+        assertEquals(Response.ResponseStatus.FAILED, dispatcher.call(TestModule.request(module.name, "BROKEN", "a", timeoutMs = 100)).status)
+
+        module.handler = {
+            Thread.sleep(400) // well past the first request's deadline
+            TestModule.ok("slept")
+        }
+        assertEquals(Response.ResponseStatus.OK, dispatcher.call(TestModule.request(module.name, "SLOW", "b")).status)
+        assertEquals(0L, module.metrics.timedOutRequests)
+    }
+}
@@ -0,0 +1,94 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.Deadline
+import java.util.concurrent.CompletableFuture
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class ModuleBulkheadTest {
+    private val metrics = ModuleMetrics()
+
+    // tryEnter on another thread, exiting straight away if it got in
+    private fun ModuleBulkhead.enterAsync(deadline: Deadline? = null): CompletableFuture<Boolean> =
+        CompletableFuture.supplyAsync {
+            tryEnter(deadline).also { if (it) exit() }
+        }
+
+    private fun ModuleBulkhead.awaitQueued(count: Int) {
+        val until = System.currentTimeMillis() + 5000
+        while (queueDepth() < count) {
+            check(System.currentTimeMillis() < until) { "nothing queued" }
+            Thread.sleep(1)
+        }
+    }
+
+    @Test
+    fun `full queue is refused`() {
+        val bulkhead = ModuleBulkhead("orders", 2, 0, metrics)
+        assertTrue(bulkhead.tryEnter())
+        assertTrue(bulkhead.tryEnter())
+        assertFalse(bulkhead.tryEnter())
+        assertEquals(2, metrics.inFlight)
+        assertEquals(1L, metrics.rejectedRequests)
+
+        bulkhead.exit()
+        assertTrue(bulkhead.tryEnter())
+    }
+
+    @Test
+    fun `queued request gets the freed slot`() {
+        val bulkhead = ModuleBulkhead("orders", 1, 1, metrics)
+        assertTrue(bulkhead.tryEnter())
+        val queued = bulkhead.enterAsync()
+        bulkhead.awaitQueued(1)
+        assertEquals(1, metrics.queueDepth)
+        assertFalse(bulkhead.tryEnter(), "queue is full")
+
+        bulkhead.exit()
+        assertTrue(queued.get())
+        assertEquals(0, bulkhead.inFlight())
+        assertEquals(0, bulkhead.queueDepth())
+    }
+
+    @Test
+    fun `queued request gives up at its deadline`() {
+        val bulkhead = ModuleBulkhead("orders", 1, 1, metrics)
+        assertTrue(bulkhead.tryEnter())
+        assertFalse(bulkhead.enterAsync(Deadline.after(20)).get())
+        assertEquals(0L, metrics.rejectedRequests)
+        assertEquals(0, bulkhead.queueDepth())
+    }
+
+    @Test
+    fun `closed bulkhead refuses new requests and drains the rest`() {
+        val bulkhead = ModuleBulkhead("orders", 1, 1, metrics)
+        assertTrue(bulkhead.tryEnter())
+        val queued = bulkhead.enterAsync()
+        bulkhead.awaitQueued(1)
+
+        bulkhead.close()
+        assertTrue(bulkhead.isClosed)
+        assertFalse(bulkhead.tryEnter())
+        assertFalse(bulkhead.awaitDrained(20))
+
+        // the queued request was admitted before the close and still runs
+        bulkhead.exit()
+        assertTrue(queued.get())
+        assertTrue(bulkhead.awaitDrained(5000))
+
+        bulkhead.open()
+        assertTrue(bulkhead.tryEnter())
+    }
+
+    @Test
+    fun `adaptive limit caps concurrency and queue`() {
+        val bulkhead = ModuleBulkhead("orders", 50, 100, metrics, AdaptiveLimit(1, 50, initialLimit = 4))
+        assertEquals(4, bulkhead.concurrencyLimit())
+        assertEquals(8, bulkhead.queueLimit())
+        assertEquals(4, metrics.concurrencyLimit)
+        repeat(4) { assertTrue(bulkhead.tryEnter()) }
+        assertEquals(4, bulkhead.inFlight())
+    }
+}
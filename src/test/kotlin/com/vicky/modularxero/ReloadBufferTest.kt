@@ -0,0 +1,55 @@
+package com.vicky.modularxero
+
+import java.util.concurrent.Executor
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class ReloadBufferTest {
+    // runs nothing until the test says so
+    private val queued = ArrayDeque<Runnable>()
+    private val executor = Executor { queued.addLast(it) }
+    private val route = TestModule().let { ModuleRoute(it, ModuleBulkhead(it.name, 1, 0, it.metrics), emptyMap()) }
+
+    private fun runQueued() {
+        while (queued.isNotEmpty()) queued.removeFirst().run()
+    }
+
+    @Test
+    fun `parked requests wait for the release and a full buffer refuses`() {
+        val buffer = ReloadBuffer(2, executor)
+        val ran = mutableListOf<ModuleRoute>()
+        assertTrue(buffer.hold(null) { ran += it })
+        assertTrue(buffer.hold(null) { ran += it })
+        assertFalse(buffer.hold(null) { ran += it })
+        assertEquals(2, buffer.size)
+
+        assertEquals(2, buffer.release(route))
+        assertEquals(0, buffer.size)
+        assertTrue(ran.isEmpty(), "parked requests run on the executor, not the reload thread")
+        runQueued()
+        assertEquals(listOf(route, route), ran)
+    }
+
+    @Test
+    fun `each connection replays on its own lane in arrival order`() {
+        val buffer = ReloadBuffer(10, executor)
+        val first = SerialLane(executor)
+        val second = SerialLane(executor)
+        val ran = mutableListOf<String>()
+        buffer.hold(first) { ran += "a1" }
+        buffer.hold(second) { ran += "b1" }
+        buffer.hold(first) { ran += "a2" }
+
+        buffer.release(route)
+        assertEquals(2, queued.size, "one drain per lane")
+        // held after the release, still behind the connection's parked requests
+        buffer.hold(first) { ran += "a3" }
+        assertTrue(ran.isEmpty())
+
+        runQueued()
+        assertEquals(listOf("a1", "a2", "a3"), ran.filter { it.startsWith("a") })
+        assertEquals(listOf("b1"), ran.filter { it.startsWith("b") })
+    }
+}
@@ -0,0 +1,48 @@
+package com.vicky.modularxero
+
+import com.vicky.modularxero.common.MessageType
+import com.vicky.modularxero.common.RequestEnvelope
+import com.vicky.modularxero.common.Response
+import com.vicky.modularxero.common.values.MapValue
+import com.vicky.modularxero.common.values.MessageValue
+import com.vicky.modularxero.common.values.StringValue
+import org.hibernate.SessionFactory
+
+/**
+ * Module without a database whose fallback handler a test can swap out.
+ */
+class TestModule(override val name: String = "test") : AbstractModule() {
+    override val metrics = ModuleMetrics()
+    override val shouldSaveLog: Boolean
+        get() = false
+
+    @Volatile var handler: (RequestEnvelope) -> Response<MapValue<MessageValue<*>>>? = { ok(it.type ?: "") }
+    @Volatile var running = false
+        private set
+
+    override fun start() {
+        running = true
+    }
+
+    override fun stop() {
+        running = false
+    }
+
+    override fun pause() {}
+    override fun autoStart(): Boolean = false
+    override fun getModuleAnnotatedClasses(): List<Class<*>> = emptyList()
+    override fun acceptUpload(path: String, size: Long): Boolean = true
+    override fun setSessionFactory(factory: SessionFactory) {}
+    override fun handleRequest(envelope: RequestEnvelope): Response<MapValue<MessageValue<*>>>? = handler(envelope)
+
+    companion object {
+        fun ok(echo: String): Response<MapValue<MessageValue<*>>> =
+            Response(MessageType.REQUEST_DATA, MapValue(mapOf<String, MessageValue<*>>("echo" to StringValue(echo))), Response.ResponseStatus.OK)
+
+        fun request(module: String, type: String, id: String, timeoutMs: Long? = null): RequestEnvelope =
+            RequestEnvelope.parse(
+                "{\"moduleAddress\":\"$module\",\"type\":\"$type\",\"id\":\"$id\"" +
+                    (timeoutMs?.let { ",\"timeoutMs\":$it" } ?: "") + "}"
+            )
+    }
+}
@@ -0,0 +1,43 @@
+package com.vicky.modularxero.client
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class LatencyHistogramTest {
+    @Test
+    fun `empty histogram reports zero`() {
+        assertEquals(0L, LatencyHistogram().percentile(99.0))
+    }
+
+    @Test
+    fun `small values are exact`() {
+        val histogram = LatencyHistogram()
+        histogram.record(0)
+        histogram.record(3)
+        histogram.record(7)
+        assertEquals(1L, histogram.percentile(1.0))
+        assertEquals(3L, histogram.percentile(67.0))
+        assertEquals(7L, histogram.percentile(100.0))
+    }
+
+    @Test
+    fun `percentiles are within an eighth of the true value`() {
+        val histogram = LatencyHistogram()
+        for (micros in 1L..100_000L) histogram.record(micros)
+        for (percentile in listOf(10.0, 50.0, 90.0, 99.0, 99.9, 100.0)) {
+            val expected = (100_000 * percentile / 100).toLong()
+            val actual = histogram.percentile(percentile)
+            assertTrue(actual >= expected && actual <= expected + expected / 8, "p$percentile was $actual, expected $expected")
+        }
+    }
+
+    @Test
+    fun `very large values are bucketed too`() {
+        val histogram = LatencyHistogram()
+        val tenMinutes = 600_000_000L
+        histogram.record(tenMinutes)
+        val actual = histogram.percentile(50.0)
+        assertTrue(actual >= tenMinutes && actual <= tenMinutes + tenMinutes / 8, "got $actual")
+    }
+}
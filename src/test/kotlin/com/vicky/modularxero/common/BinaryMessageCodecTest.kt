@@ -0,0 +1,166 @@
+package com.vicky.modularxero.common
+
+import com.vicky.modularxero.common.values.IntegerValue
+import com.vicky.modularxero.common.values.ListValue
+import com.vicky.modularxero.common.values.MapValue
+import com.vicky.modularxero.common.values.StringValue
+import java.nio.ByteBuffer
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class BinaryMessageCodecTest {
+    private val payload = MapValue(mapOf(
+        "name" to StringValue("café"),
+        "count" to IntegerValue(-42),
+        "tags" to ListValue(listOf("a", 7L, true, null))
+    ))
+
+    @Test
+    fun `request round trip`() {
+        val buffer = ByteBuffer.wrap(BinaryMessageCodec.encodeRequest("orders", "LIST", "r1", payload))
+        val header = BinaryMessageCodec.readRequestHeader(buffer)
+        assertEquals("orders", header.moduleAddress)
+        assertEquals("LIST", header.type)
+        assertEquals("r1", header.id)
+        assertNull(header.timeoutMs)
+
+        val node = BinaryMessageCodec.readValueAsNode(buffer)
+        assertEquals("MapValue", node["valueType"].asText())
+        val value = node["value"]
+        assertEquals("StringValue", value["name"]["valueType"].asText())
+        assertEquals("café", value["name"]["value"].asText())
+        assertEquals(-42, value["count"]["value"].asInt())
+        val tags = value["tags"]["value"]
+        assertEquals("a", tags[0].asText())
+        assertEquals(7L, tags[1].asLong())
+        assertTrue(tags[2].asBoolean())
+        assertTrue(tags[3].isNull)
+        assertFalse(buffer.hasRemaining())
+    }
+
+    @Test
+    fun `timed request and null fields`() {
+        val buffer = ByteBuffer.wrap(BinaryMessageCodec.encodeRequest(null, "PING", null, null, 1500))
+        val header = BinaryMessageCodec.readRequestHeader(buffer)
+        assertNull(header.moduleAddress)
+        assertNull(header.id)
+        assertEquals(1500L, header.timeoutMs)
+        assertTrue(BinaryMessageCodec.readValueAsNode(buffer).isNull)
+    }
+
+    @Test
+    fun `response round trip`() {
+        val response = Response(MessageType.REQUEST_DATA, StringValue("done"), Response.ResponseStatus.PENDING)
+        response.id = "r2"
+        val node = BinaryMessageCodec.readResponseAsNode(ByteBuffer.wrap(BinaryMessageCodec.encodeResponse(response)))
+        assertEquals("REQUEST_DATA", node["type"].asText())
+        assertEquals("r2", node["id"].asText())
+        assertEquals("PENDING", node["status"].asText())
+        assertEquals("done", node["payload"]["value"].asText())
+    }
+
+    @Test
+    fun `batch keeps its requests in order`() {
+        val first = BinaryMessageCodec.encodeRequest("orders", "LIST", "a", null)
+        val second = BinaryMessageCodec.encodeRequest("users", "GET", "b", payload, 200)
+        val frame = ByteBuffer.wrap(BinaryMessageCodec.encodeBatch("batch", true, listOf(first, second)))
+        assertTrue(BinaryMessageCodec.isBatchFrame(frame))
+
+        val batch = BinaryMessageCodec.readBatch(frame)
+        assertEquals("batch", batch.id)
+        assertTrue(batch.sequential)
+        assertEquals(listOf("a", "b"), batch.requests.map { BinaryMessageCodec.readRequestHeader(it.duplicate()).id })
+        assertEquals(200L, BinaryMessageCodec.readRequestHeader(batch.requests[1]).timeoutMs)
+    }
+
+    @Test
+    fun `chunk header leaves the buffer at the data`() {
+        val buffer = ByteBuffer.allocate(BinaryMessageCodec.CHUNK_HEADER_MAX + 4)
+        BinaryMessageCodec.writeChunkHeader(buffer, Long.MAX_VALUE, 1L shl 40)
+        buffer.put(byteArrayOf(1, 2, 3, 4)).flip()
+        assertTrue(BinaryMessageCodec.isChunkFrame(buffer))
+        assertFalse(BinaryMessageCodec.isBatchFrame(buffer))
+
+        val header = BinaryMessageCodec.readChunkHeader(buffer)
+        assertEquals(Long.MAX_VALUE, header.transfer)
+        assertEquals(1L shl 40, header.offset)
+        assertEquals(4, buffer.remaining())
+        assertEquals(1.toByte(), buffer.get())
+    }
+
+    @Test
+    fun `truncated frames are rejected`() {
+        val request = BinaryMessageCodec.encodeRequest("orders", "LIST", "r1", payload, 300)
+        for (length in 0 until request.size) {
+            assertFailsWith<IllegalArgumentException>("request cut at $length") {
+                val buffer = ByteBuffer.wrap(request, 0, length)
+                BinaryMessageCodec.readRequestHeader(buffer)
+                BinaryMessageCodec.readValueAsNode(buffer)
+            }
+        }
+
+        val response = BinaryMessageCodec.encodeResponse(Response(MessageType.LOGIN, payload, Response.ResponseStatus.OK))
+        for (length in 0 until response.size) {
+            assertFailsWith<IllegalArgumentException>("response cut at $length") {
+                BinaryMessageCodec.readResponseAsNode(ByteBuffer.wrap(response, 0, length))
+            }
+        }
+
+        val batch = BinaryMessageCodec.encodeBatch("b", false, listOf(request))
+        for (length in 0 until batch.size) {
+            assertFailsWith<IllegalArgumentException>("batch cut at $length") {
+                BinaryMessageCodec.readBatch(ByteBuffer.wrap(batch, 0, length))
+            }
+        }
+
+        val chunk = ByteBuffer.allocate(BinaryMessageCodec.CHUNK_HEADER_MAX)
+        BinaryMessageCodec.writeChunkHeader(chunk, 300, 70_000)
+        chunk.flip()
+        for (length in 0 until chunk.remaining()) {
+            assertFailsWith<IllegalArgumentException>("chunk cut at $length") {
+                BinaryMessageCodec.readChunkHeader(chunk.duplicate().limit(length))
+            }
+        }
+    }
+
+    @Test
+    fun `deeply nested values are rejected`() {
+        // a raw list holding one element, 200k levels deep, then a null
+        val levels = 200_000
+        val frame = ByteArray(levels * 2 + 1)
+        for (i in 0 until levels) {
+            frame[i * 2] = 0x19
+            frame[i * 2 + 1] = 1
+        }
+        assertFailsWith<IllegalArgumentException> { BinaryMessageCodec.readValueAsNode(ByteBuffer.wrap(frame)) }
+
+        // nesting Jackson would accept still decodes
+        val shallow = ByteArray(100 * 2 + 1)
+        for (i in 0 until 100) {
+            shallow[i * 2] = 0x19
+            shallow[i * 2 + 1] = 1
+        }
+        assertTrue(BinaryMessageCodec.readValueAsNode(ByteBuffer.wrap(shallow)).isArray)
+    }
+
+    @Test
+    fun `currency without an amount is rejected`() {
+        // CurrencyValue tag, null symbol, null amount
+        assertFailsWith<IllegalArgumentException> { BinaryMessageCodec.readValueAsNode(ByteBuffer.wrap(byteArrayOf(0x07, 0, 0))) }
+        assertFailsWith<IllegalArgumentException> { BinaryMessageCodec.readValueAsNode(ByteBuffer.wrap(byteArrayOf(0x07, 0, 2, 'x'.code.toByte()))) }
+    }
+
+    @Test
+    fun `frame kinds are not interchangeable`() {
+        val request = BinaryMessageCodec.encodeRequest("orders", "LIST", "r1", null)
+        assertFailsWith<IllegalArgumentException> { BinaryMessageCodec.readResponseAsNode(ByteBuffer.wrap(request)) }
+        assertFailsWith<IllegalArgumentException> { BinaryMessageCodec.readChunkHeader(ByteBuffer.wrap(request)) }
+        assertFailsWith<IllegalArgumentException> {
+            BinaryMessageCodec.readRequestHeader(ByteBuffer.wrap("{\"type\":\"LIST\"}".toByteArray()))
+        }
+    }
+}